@@ -1,5 +1,6 @@
 package common;
 
+import java.time.LocalDate;
 import java.time.temporal.ChronoUnit;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -51,11 +52,58 @@ public class Date implements Comparable<Date> {
     );
   }
 
+  /**
+   * Creates a date from the number of days since 1970-01-01.
+   *
+   * @param epochDay number of days, negative for earlier dates
+   *
+   * @return date
+   */
+  public static Date fromEpochDay(long epochDay) {
+    LocalDate date = LocalDate.ofEpochDay(epochDay);
+
+    return new Date(
+        new GregorianCalendar(date.getYear(), date.getMonthValue() - 1, date.getDayOfMonth())
+    );
+  }
+
   @Override
   public int compareTo(Date other) {
     return this.calendarDate.compareTo(other.calendarDate);
   }
 
+  /**
+   * Dates are equal if they are the same instant, consistently with
+   * {@link #compareTo(Date)}.
+   */
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof Date && compareTo((Date) other) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(calendarDate.getTimeInMillis());
+  }
+
+  public int getYear() {
+    return calendarDate.get(Calendar.YEAR);
+  }
+
+  /**
+   * @return month of the year from 1 to 12
+   */
+  public int getMonth() {
+    return calendarDate.get(Calendar.MONTH) + 1;
+  }
+
+  /**
+   * @return day of the month from 1
+   */
+  public int getDay() {
+    return calendarDate.get(Calendar.DATE);
+  }
+
   /**
    * @return integer representation of the date where:
    *     <ol>
@@ -72,6 +120,17 @@ public class Date implements Comparable<Date> {
     );
   }
 
+  /**
+   * @return number of days since 1970-01-01 (negative for earlier dates)
+   */
+  public long toEpochDay() {
+    return LocalDate.of(
+        calendarDate.get(Calendar.YEAR),
+        calendarDate.get(Calendar.MONTH) + 1,
+        calendarDate.get(Calendar.DATE)
+    ).toEpochDay();
+  }
+
   /**
    * @return difference between two dates in days
    */
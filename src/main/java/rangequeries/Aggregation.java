@@ -0,0 +1,33 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+/**
+ * Aggregation of values over a range of keys described as a monoid:
+ * every value is lifted into the aggregate type, and aggregates are combined
+ * by associative {@code combine} operation with {@code identity} element.
+ * <p>
+ * Values are combined in the order of their keys, so {@code combine} does not
+ * have to be commutative.
+ *
+ * @param <V> type of the value
+ * @param <A> type of the aggregate
+ */
+public interface Aggregation<V, A> {
+  /**
+   * @return aggregate of empty range
+   */
+  A identity();
+
+  /**
+   * @return aggregate of the single value
+   */
+  A lift(V value);
+
+  /**
+   * @return aggregate of the range consisting of {@code left} range followed
+   *     by {@code right} range
+   */
+  A combine(A left, A right);
+}
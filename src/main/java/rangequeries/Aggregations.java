@@ -0,0 +1,149 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongFunction;
+
+/**
+ * Factory of commonly used {@link Aggregation}s.
+ * <p>
+ * Maps that keep aggregates in their nodes recognize aggregations by identity,
+ * so the same instance must be used for registration and for queries.
+ */
+public final class Aggregations {
+  private Aggregations() {
+  }
+
+  public static <V, A> Aggregation<V, A> of(
+      A identity,
+      Function<? super V, ? extends A> lift,
+      BinaryOperator<A> combine
+  ) {
+    return new Monoid<>(identity, lift, combine);
+  }
+
+  public static <V> LongAggregation<V> ofLong(
+      long identity,
+      ToLongFunction<? super V> lift,
+      LongBinaryOperator combine
+  ) {
+    return new LongMonoid<>(identity, lift, combine);
+  }
+
+  public static <V> LongAggregation<V> sum(ToLongFunction<? super V> toLong) {
+    return ofLong(0, toLong, Long::sum);
+  }
+
+  public static <V> LongAggregation<V> count() {
+    return ofLong(0, value -> 1, Long::sum);
+  }
+
+  /**
+   * @return aggregation with {@link Long#MAX_VALUE} for the empty range
+   */
+  public static <V> LongAggregation<V> min(ToLongFunction<? super V> toLong) {
+    return ofLong(Long.MAX_VALUE, toLong, Math::min);
+  }
+
+  /**
+   * @return aggregation with {@link Long#MIN_VALUE} for the empty range
+   */
+  public static <V> LongAggregation<V> max(ToLongFunction<? super V> toLong) {
+    return ofLong(Long.MIN_VALUE, toLong, Math::max);
+  }
+
+  public static <V> Aggregation<V, Average> average(ToLongFunction<? super V> toLong) {
+    return of(
+        Average.EMPTY,
+        value -> new Average(toLong.applyAsLong(value), 1),
+        (left, right) -> new Average(left.sum + right.sum, left.count + right.count)
+    );
+  }
+
+  /**
+   * Immutable sum and count of values.
+   */
+  public static final class Average {
+    static final Average EMPTY = new Average(0, 0);
+    private final long sum;
+    private final long count;
+
+    Average(long sum, long count) {
+      this.sum = sum;
+      this.count = count;
+    }
+
+    public long getSum() {
+      return sum;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return average value or {@link Double#NaN} for the empty range
+     */
+    public double getValue() {
+      return count == 0 ? Double.NaN : (double) sum / count;
+    }
+  }
+
+  private static final class Monoid<V, A> implements Aggregation<V, A> {
+    private final A identity;
+    private final Function<? super V, ? extends A> lift;
+    private final BinaryOperator<A> combine;
+
+    Monoid(A identity, Function<? super V, ? extends A> lift, BinaryOperator<A> combine) {
+      this.identity = identity;
+      this.lift = lift;
+      this.combine = combine;
+    }
+
+    @Override
+    public A identity() {
+      return identity;
+    }
+
+    @Override
+    public A lift(V value) {
+      return lift.apply(value);
+    }
+
+    @Override
+    public A combine(A left, A right) {
+      return combine.apply(left, right);
+    }
+  }
+
+  private static final class LongMonoid<V> implements LongAggregation<V> {
+    private final long identity;
+    private final ToLongFunction<? super V> lift;
+    private final LongBinaryOperator combine;
+
+    LongMonoid(long identity, ToLongFunction<? super V> lift, LongBinaryOperator combine) {
+      this.identity = identity;
+      this.lift = lift;
+      this.combine = combine;
+    }
+
+    @Override
+    public long identityAsLong() {
+      return identity;
+    }
+
+    @Override
+    public long liftAsLong(V value) {
+      return lift.applyAsLong(value);
+    }
+
+    @Override
+    public long combineAsLong(long left, long right) {
+      return combine.applyAsLong(left, right);
+    }
+  }
+}
@@ -3,530 +3,2031 @@
  */
 package rangequeries;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
 /**
- * {@link RangeMap} implementation based on BTree.
- * BTree is made of nodes and buckets in the following structure:
+ * {@link RangeMap} implementation based on B+tree.
+ * B+tree is made of inner nodes and leaves in the following structure:
  * <p>
- * --------(Node)------   [Bucket] (Node) [Bucket] (Node) ...
- * /                   \             |               |
- * (Node) [Bucket] ... (Node)       ...             ...
+ * ------------[k1 | k2](Inner)------------
+ * /                  |                    \
+ * [k0 k0'](Leaf)     [k1 k1'](Leaf)     [k2 k2' k2''](Leaf)
+ * |   |              |   |              |   |   |
+ * B   B              B   B              B   B   B
  *
  * <p>
- * Node has only children and pointers to its neighbour buckets and nodes.
- * Bucket contains key and values associated with key. Buckets are not necessary and
- * are only created for proper handling items with equal keys.
+ * Every node keeps its keys in a contiguous sorted array, which is searched
+ * by binary search. Inner node has one child more than keys, key {@code i}
+ * is the minimum key of the child {@code i + 1}. Values are kept only in
+ * leaves: each leaf key has a {@link Bucket} with all values associated
+ * with the key (buckets are required for proper handling of items with
+ * equal keys).
+ * <p>
+ * Every node holds at most {@code branchingFactor - 1} keys, so a lookup
+ * touches one node per level and does O(log(branchingFactor)) comparisons in it.
+ * <p>
+ * Leaves are chained into a list in the order of keys, so that a range lookup
+ * is a single descent to the first leaf followed by a sequential walk
+ * over the leaves.
+ * <p>
+ * Keys that are not less than the current maximum (like operations arriving
+ * in time order) are appended straight into the rightmost leaf, which is
+ * cached together with the path to it (right spine). Splits caused by such
+ * appends propagate only along the right spine. Any other modification
+ * invalidates the cache.
+ * <p>
+ * Removal keeps every node except the root at least half full by merging
+ * underflown nodes with their siblings or redistributing keys between them.
+ * {@link #removeRange(Comparable, Comparable)} detaches subtrees that lie
+ * entirely inside of the range without visiting their keys one by one.
+ * <p>
+ * Every node keeps the number of values in its subtree, which gives exact
+ * sizes to {@link #spliterator(Comparable, Comparable)}.
+ * <p>
+ * {@link Aggregation}s registered in the constructor are maintained in every
+ * node and bucket as the aggregate of its subtree, so that
+ * {@link #aggregate(Aggregation, Comparable, Comparable)} for them is answered
+ * in O(log n) regardless of the number of values in the range.
+ * <p>
+ * {@link #snapshot()} freezes the current nodes: they are shared with the
+ * snapshot and copied on the first modification afterwards (every node
+ * remembers the epoch it was created in). Only the path from the root to the
+ * modified nodes is copied, the rest of the tree is shared. Leaf links belong
+ * to the map only: copy of a leaf replaces it in the links of its neighbours,
+ * so replaced leaves are reachable only from the snapshots, which find
+ * the next leaf through their root.
  *
- * @param <K>     type of the node's key
- * @param <V>type of the node's value
+ * @param <K> type of the key
+ * @param <V> type of the value
  */
 public class BTreeRangeMap<K extends Comparable<K>, V> implements RangeMap<K, V> {
-  private final int t = 4;
+  static final int DEFAULT_BRANCHING_FACTOR = 32;
+  private static final int MIN_BRANCHING_FACTOR = 4;
+  // Returned by internal remove methods when nothing has been removed
+  private static final Object NOT_FOUND = new Object();
+  private final int branchingFactor;
+  private final List<LongAggregation<? super V>> longAggregations;
+  private final List<Aggregation<? super V, Object>> aggregations;
+  private final LongAggregation<? super V> sumAggregation;
+  // Map is read-only snapshot of another map
+  private final boolean readOnly;
   private Node root;
   private int size;
+  // Nodes and buckets of the current epoch are modified in place, older ones
+  // are shared with snapshots. Snapshot keeps the epoch it was taken in.
+  private long epoch;
+  // Inner nodes on the path from the root to the rightmost leaf,
+  // both are valid only if rightmostLeaf is not null
+  private InnerNode[] rightSpine;
+  private LeafNode rightmostLeaf;
+  // Maximum key, null if the map is empty or if it is unknown until
+  // the right spine is found again. Keys less than it are not appended.
+  private K maximumKey;
+
+  public BTreeRangeMap() {
+    this(DEFAULT_BRANCHING_FACTOR);
+  }
+
+  /**
+   * @param branchingFactor maximum number of children of the inner node
+   *                        (at least 4)
+   */
+  public BTreeRangeMap(int branchingFactor) {
+    this(branchingFactor, (LongAggregation<? super V>) null);
+  }
+
+  /**
+   * Shortcut for creating map with a single sum aggregation, which is used
+   * by {@link #sumRange(Comparable, Comparable)}.
+   *
+   * @param summand function that converts values into summed numbers
+   */
+  public BTreeRangeMap(ToLongFunction<? super V> summand) {
+    this(DEFAULT_BRANCHING_FACTOR, summand);
+  }
+
+  /**
+   * @param branchingFactor maximum number of children of the inner node
+   *                        (at least 4)
+   * @param summand         function that converts values into summed numbers
+   */
+  public BTreeRangeMap(int branchingFactor, ToLongFunction<? super V> summand) {
+    this(branchingFactor, Aggregations.sum(summand));
+  }
+
+  /**
+   * @param branchingFactor maximum number of children of the inner node
+   *                        (at least 4)
+   * @param aggregations    aggregations to maintain in the nodes
+   */
+  @SafeVarargs
+  public BTreeRangeMap(int branchingFactor, Aggregation<? super V, ?>... aggregations) {
+    this(branchingFactor, (LongAggregation<? super V>) null);
+    // Elements are copied one by one, so the varargs array doesn't escape
+    for (Aggregation<? super V, ?> aggregation : aggregations) {
+      addAggregation(aggregation);
+    }
+    // Root has been created without aggregates
+    this.root = new LeafNode();
+  }
+
+  private BTreeRangeMap(int branchingFactor, LongAggregation<? super V> sumAggregation) {
+    if (branchingFactor < MIN_BRANCHING_FACTOR) {
+      throw new IllegalArgumentException(
+          "branching factor must be at least " + MIN_BRANCHING_FACTOR
+      );
+    }
+
+    this.branchingFactor = branchingFactor;
+    this.sumAggregation = sumAggregation;
+    this.longAggregations = new ArrayList<>();
+    this.aggregations = new ArrayList<>();
+
+    if (sumAggregation != null) {
+      this.longAggregations.add(sumAggregation);
+    }
+
+    this.readOnly = false;
+    this.size = 0;
+    this.epoch = 0;
+    this.root = new LeafNode();
+  }
+
+  /**
+   * Creates snapshot of the {@code map}.
+   */
+  private BTreeRangeMap(BTreeRangeMap<K, V> map) {
+    this.branchingFactor = map.branchingFactor;
+    this.sumAggregation = map.sumAggregation;
+    this.longAggregations = map.longAggregations;
+    this.aggregations = map.aggregations;
+    this.readOnly = true;
+    this.root = map.root;
+    this.size = map.size;
+    this.epoch = map.epoch;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void addAggregation(Aggregation<? super V, ?> aggregation) {
+    if (aggregation instanceof LongAggregation) {
+      longAggregations.add((LongAggregation<? super V>) aggregation);
+    } else {
+      aggregations.add((Aggregation<? super V, Object>) aggregation);
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Creates read-only view of the current state of the map in O(1) time.
+   * Snapshot shares all nodes with the map, and the map copies them before
+   * the first modification afterwards, so snapshot is never affected by
+   * modifications of the map.
+   * <p>
+   * Snapshot may be read by other threads without any locking while the map
+   * is being modified (it must be passed to them safely, e.g. through
+   * an executor). Nodes which are replaced in the map are reclaimed by the
+   * garbage collector as soon as all snapshots using them are unreachable.
+   *
+   * @return snapshot, all modification methods of which throw
+   *     {@link UnsupportedOperationException}
+   */
+  public BTreeRangeMap<K, V> snapshot() {
+    if (readOnly) {
+      return this;
+    }
+
+    BTreeRangeMap<K, V> snapshot = new BTreeRangeMap<>(this);
+    epoch++;
+    // Right spine is shared with the snapshot now
+    rightmostLeaf = null;
+    return snapshot;
+  }
+
+  @Override
+  public void add(K key, V value) {
+    checkModifiable();
+
+    if (!tryAppend(key, value)) {
+      // Insertion may split nodes of the right spine
+      rightmostLeaf = null;
+
+      root = writable(root);
+      Node newSibling = root.insert(key, value);
+      if (newSibling != null) {
+        growRoot(newSibling);
+      }
+    }
+
+    size++;
+  }
+
+  /**
+   * Root has been split -> grow the tree.
+   */
+  private void growRoot(Node newSibling) {
+    InnerNode newRoot = new InnerNode();
+    newRoot.keys[0] = newSibling.getMinimumKey();
+    newRoot.children[0] = root;
+    newRoot.children[1] = newSibling;
+    newRoot.keysCount = 1;
+    newRoot.updateSummary();
+    root = newRoot;
+  }
+
+  /**
+   * Appends value to the rightmost leaf without descending from the root,
+   * if {@code key} is not less than the maximum key. Maximum key is checked
+   * first, so keys inserted elsewhere don't find the right spine.
+   *
+   * @return {@code false} if key is less than the maximum key
+   */
+  private boolean tryAppend(K key, V value) {
+    if (maximumKey != null && key.compareTo(maximumKey) < 0) {
+      return false;
+    }
+    if (rightmostLeaf == null) {
+      findRightSpine();
+    }
+
+    LeafNode leaf = rightmostLeaf;
+    int last = leaf.keysCount - 1;
+    int order = last >= 0 ? key.compareTo(leaf.keys[last]) : 1;
+
+    if (order < 0) {
+      return false;
+    }
+    maximumKey = key;
+
+    if (order == 0) {
+      leaf.getWritableBucket(last).addValueLast(value);
+    } else {
+      leaf.keys[last + 1] = key;
+      leaf.buckets[last + 1] = new Bucket(value);
+      leaf.keysCount++;
+    }
+
+    leaf.valuesCount++;
+    for (InnerNode node : rightSpine) {
+      node.valuesCount++;
+    }
+
+    if (leaf.hasAggregates()) {
+      // Value is the last one in every subtree of the spine
+      leaf.combineAggregates(value);
+      for (InnerNode node : rightSpine) {
+        node.combineAggregates(value);
+      }
+    }
+
+    if (leaf.isOverflown()) {
+      splitRightSpine();
+    }
+
+    return true;
+  }
+
+  /**
+   * Finds the right spine and makes all its nodes writable.
+   */
+  private void findRightSpine() {
+    List<InnerNode> spine = new ArrayList<>();
+    root = writable(root);
+    Node node = root;
+    while (node instanceof BTreeRangeMap.InnerNode) {
+      InnerNode inner = (InnerNode) node;
+      spine.add(inner);
+      node = inner.getWritableChild(inner.keysCount);
+    }
+
+    rightSpine = spine.toArray(newArray(new BTreeRangeMap<?, ?>.InnerNode[0]));
+    rightmostLeaf = (LeafNode) node;
+    maximumKey = rightmostLeaf.keysCount > 0
+        ? rightmostLeaf.keys[rightmostLeaf.keysCount - 1]
+        : null;
+  }
+
+  /**
+   * Splits overflown rightmost leaf and its overflown ancestors. New right
+   * siblings become the new right spine.
+   */
+  private void splitRightSpine() {
+    Node newSibling = rightmostLeaf.split();
+    rightmostLeaf = (LeafNode) newSibling;
+
+    for (int level = rightSpine.length - 1; level >= 0 && newSibling != null; level--) {
+      InnerNode parent = rightSpine[level];
+      parent.keys[parent.keysCount] = newSibling.getMinimumKey();
+      parent.children[parent.keysCount + 1] = newSibling;
+      parent.keysCount++;
+
+      if (parent.isOverflown()) {
+        newSibling = parent.split();
+        rightSpine[level] = (InnerNode) newSibling;
+      } else {
+        newSibling = null;
+      }
+    }
+
+    if (newSibling != null) {
+      growRoot(newSibling);
+      // Spine has become longer, it's cheaper to find it again
+      rightmostLeaf = null;
+    }
+  }
+
+  /**
+   * Fills an empty map with entries sorted by key in O(n) time. Nodes are
+   * built bottom-up: every level is filled from left to right up to
+   * {@code fillFactor} of the maximum number of keys, and inner nodes are
+   * built over the finished level below.
+   *
+   * @param sortedEntries entries in non-decreasing order of keys, values
+   *                      of equal keys are kept in the given order
+   * @param fillFactor    share of keys in the filled nodes, in range {@code (0, 1]}
+   *                      (nodes are never filled less than half)
+   *
+   * @throws IllegalStateException    if map is not empty
+   * @throws IllegalArgumentException if entries are not sorted or fill factor
+   *                                  is out of range
+   */
+  public void bulkLoad(
+      Iterator<? extends Map.Entry<? extends K, ? extends V>> sortedEntries,
+      double fillFactor
+  ) {
+    checkModifiable();
+    if (!isEmpty()) {
+      throw new IllegalStateException("bulk load is only possible into an empty map");
+    }
+    if (!(fillFactor > 0 && fillFactor <= 1)) {
+      throw new IllegalArgumentException("fill factor must be in range (0, 1]");
+    }
+
+    int keysPerNode = Math.max(
+        Math.max((branchingFactor - 1) / 2, 1),
+        (int) Math.round((branchingFactor - 1) * fillFactor)
+    );
+
+    /* Fill leaves */
+
+    List<Node> level = new ArrayList<>();
+    List<K> minimumKeys = new ArrayList<>();
+    LeafNode leaf = null;
+    int count = 0;
+
+    while (sortedEntries.hasNext()) {
+      Map.Entry<? extends K, ? extends V> entry = sortedEntries.next();
+      K key = entry.getKey();
+      int order = leaf == null ? 1 : key.compareTo(leaf.keys[leaf.keysCount - 1]);
+
+      if (order < 0) {
+        throw new IllegalArgumentException("entries are not sorted by key");
+      }
+
+      if (order == 0) {
+        leaf.buckets[leaf.keysCount - 1].addValueLast(entry.getValue());
+      } else {
+        if (leaf == null || leaf.keysCount == keysPerNode) {
+          LeafNode newLeaf = new LeafNode();
+          if (leaf != null) {
+            leaf.next = newLeaf;
+            newLeaf.previous = leaf;
+          }
+          leaf = newLeaf;
+          level.add(leaf);
+          minimumKeys.add(key);
+        }
+
+        leaf.keys[leaf.keysCount] = key;
+        leaf.buckets[leaf.keysCount] = new Bucket(entry.getValue());
+        leaf.keysCount++;
+      }
+
+      count++;
+    }
+
+    if (level.isEmpty()) {
+      return;
+    }
+
+    /* Build inner levels until there is a single node */
+
+    while (true) {
+      for (Node node : level) {
+        node.updateSummary();
+      }
+      fixLastNodeOfLevel(level, minimumKeys);
+
+      if (level.size() == 1) {
+        break;
+      }
+
+      List<Node> parents = new ArrayList<>();
+      List<K> parentsMinimumKeys = new ArrayList<>();
+      InnerNode parent = null;
+
+      for (int i = 0; i < level.size(); i++) {
+        if (parent == null || parent.keysCount == keysPerNode) {
+          parent = new InnerNode();
+          parent.children[0] = level.get(i);
+          parents.add(parent);
+          parentsMinimumKeys.add(minimumKeys.get(i));
+        } else {
+          parent.keys[parent.keysCount] = minimumKeys.get(i);
+          parent.children[parent.keysCount + 1] = level.get(i);
+          parent.keysCount++;
+        }
+      }
+
+      level = parents;
+      minimumKeys = parentsMinimumKeys;
+    }
+
+    root = level.get(0);
+    size = count;
+    rightmostLeaf = null;
+    maximumKey = null;
+  }
+
+  /**
+   * Shortcut for {@link #bulkLoad(Iterator, double)} which fills nodes completely.
+   */
+  public void bulkLoad(Iterator<? extends Map.Entry<? extends K, ? extends V>> sortedEntries) {
+    bulkLoad(sortedEntries, 1);
+  }
+
+  /**
+   * Last node of the level built by {@link #bulkLoad(Iterator, double)}
+   * may be underflown -> merge it with the previous one or redistribute
+   * keys between them.
+   */
+  private void fixLastNodeOfLevel(List<Node> level, List<K> minimumKeys) {
+    int last = level.size() - 1;
+    Node lastNode = level.get(last);
+    if (last == 0 || !lastNode.isUnderflown()) {
+      return;
+    }
+
+    Node previousNode = level.get(last - 1);
+    if (previousNode.canMergeWith(lastNode)) {
+      previousNode.mergeWith(lastNode, minimumKeys.get(last));
+      level.remove(last);
+      minimumKeys.remove(last);
+    } else {
+      minimumKeys.set(last, previousNode.redistributeWith(lastNode, minimumKeys.get(last)));
+    }
+  }
+
+  /**
+   * Removes the first value of the {@code key}. The key itself is removed
+   * together with its last value.
+   *
+   * @return removed value or {@code null} if there is no such key
+   */
+  @Override
+  public V remove(K key) {
+    Object removed = removeFirstMatching(key, value -> true);
+
+    @SuppressWarnings("unchecked")
+    V result = removed == NOT_FOUND ? null : (V) removed;
+    return result;
+  }
+
+  /**
+   * Removes the first value of the {@code key} that is equal to {@code value}.
+   *
+   * @return {@code true} if value has been removed
+   */
+  public boolean remove(K key, V value) {
+    return removeFirstMatching(key, other -> Objects.equals(other, value)) != NOT_FOUND;
+  }
+
+  /**
+   * Removes all values with keys in range {@code [from, to]}. Subtrees lying
+   * entirely inside of the range are detached as a whole without visiting
+   * them (number of their values is kept in the nodes), so time depends only
+   * on the height of the tree, not on the number of removed values.
+   *
+   * @return number of removed values
+   */
+  public int removeRange(K from, K to) {
+    checkModifiable();
+    if (from.compareTo(to) > 0) {
+      return 0;
+    }
+
+    // Only leaves on the paths to from and to survive, all leaves
+    // between them are detached
+    LeafNode firstLeaf = findWritableLeaf(from);
+    LeafNode lastLeaf = findLeaf(to);
+    if (firstLeaf != lastLeaf) {
+      firstLeaf.next = lastLeaf;
+      lastLeaf.previous = firstLeaf;
+    }
+
+    rightmostLeaf = null;
+    if (maximumKey != null && to.compareTo(maximumKey) >= 0) {
+      maximumKey = null;
+    }
+    int removedCount = root.removeRange(from, to, true, true);
+    size -= removedCount;
+    shrinkRoot();
+
+    return removedCount;
+  }
+
+  @Override
+  public boolean contains(K key) {
+    return lookupBucket(key) != null;
+  }
+
+  @Override
+  public V lookup(K key) {
+    Bucket bucket = lookupBucket(key);
+    if (bucket != null) {
+      return bucket.getFirstValue();
+    }
+    return null;
+  }
+
+  @Override
+  public List<V> lookupRange(K from, K to) {
+    List<V> lookupResult = new LinkedList<>();
+    forEachInRange(from, to, (key, value) -> lookupResult.add(value));
+    return lookupResult;
+  }
+
+  @Override
+  public RangeCursor<K, V> rangeCursor(K from, K to) {
+    return new Cursor(from, to, true);
+  }
+
+  /**
+   * Creates spliterator over values with keys in range {@code [from, to]},
+   * which is split at boundaries of the inner nodes, so that parallel
+   * streams can scan and aggregate big ranges:
+   * <pre>{@code
+   * StreamSupport.stream(map.spliterator(from, to), true)
+   *     .mapToLong(Integer::longValue)
+   *     .sum();
+   * }</pre>
+   * Both the spliterator and its parts know their exact sizes.
+   * Map must not be modified while the spliterator is in use.
+   */
+  public Spliterator<V> spliterator(K from, K to) {
+    return new RangeSpliterator(from, to, true, root);
+  }
+
+  /**
+   * Walks over the leaves without any allocations.
+   */
+  @Override
+  public void forEachInRange(K from, K to, BiConsumer<? super K, ? super V> visitor) {
+    LeafNode leaf = findLeaf(from);
+    int index = leaf.getFirstIndex(from, true);
+
+    while (leaf != null) {
+      for (; index < leaf.keysCount; index++) {
+        K key = leaf.keys[index];
+        if (key.compareTo(to) > 0) {
+          return;
+        }
+        leaf.buckets[index].forEachValue(key, visitor);
+      }
+
+      leaf = getNextLeaf(leaf);
+      index = 0;
+    }
+  }
+
+  @Override
+  public K ceilingKey(K key) {
+    return findHigherKey(key, true);
+  }
+
+  @Override
+  public K floorKey(K key) {
+    return root.findLowerKey(key, true);
+  }
+
+  @Override
+  public K higherKey(K key) {
+    return findHigherKey(key, false);
+  }
+
+  @Override
+  public K lowerKey(K key) {
+    return root.findLowerKey(key, false);
+  }
+
+  /**
+   * Aggregates all values with keys in range {@code [from, to]}. If the
+   * aggregation was registered in the constructor, it takes O(log n) time,
+   * otherwise all values in range are visited.
+   */
+  @Override
+  public <A> A aggregate(Aggregation<? super V, A> aggregation, K from, K to) {
+    if (aggregation instanceof LongAggregation) {
+      @SuppressWarnings("unchecked")
+      A result = (A) (Long) aggregateAsLong((LongAggregation<? super V>) aggregation, from, to);
+      return result;
+    }
+
+    if (from.compareTo(to) > 0) {
+      return aggregation.identity();
+    }
+
+    int slot = aggregations.indexOf(aggregation);
+    if (slot >= 0) {
+      @SuppressWarnings("unchecked")
+      A result = (A) root.aggregate(slot, from, to, true, true);
+      return result;
+    }
+
+    List<A> result = new ArrayList<>(List.of(aggregation.identity()));
+    forEachInRange(from, to, (key, value) -> result.set(
+        0, aggregation.combine(result.get(0), aggregation.lift(value))
+    ));
+    return result.get(0);
+  }
+
+  /**
+   * Same as {@link #aggregate(Aggregation, Comparable, Comparable)}, but
+   * without boxing.
+   */
+  @Override
+  public long aggregateAsLong(LongAggregation<? super V> aggregation, K from, K to) {
+    if (from.compareTo(to) > 0) {
+      return aggregation.identityAsLong();
+    }
+
+    int slot = longAggregations.indexOf(aggregation);
+    if (slot >= 0) {
+      return root.aggregateAsLong(slot, from, to, true, true);
+    }
+
+    long[] result = {aggregation.identityAsLong()};
+    forEachInRange(from, to, (key, value) -> result[0] = aggregation.combineAsLong(
+        result[0], aggregation.liftAsLong(value)
+    ));
+    return result[0];
+  }
+
+  /**
+   * Sums values with keys in range {@code [from, to]} in O(log n).
+   *
+   * @return sum of {@code summand(value)} over the values in range
+   *
+   * @throws UnsupportedOperationException if map was created without summand
+   */
+  public long sumRange(K from, K to) {
+    if (sumAggregation == null) {
+      throw new UnsupportedOperationException("map was created without summand");
+    }
+
+    return aggregateAsLong(sumAggregation, from, to);
+  }
+
+  /**
+   * @return index of the {@code key} in the first {@code count} elements
+   *     of {@code keys} or {@code -(insertion point) - 1} if there is no such key
+   */
+  private static int search(Object[] keys, int count, Object key) {
+    return Arrays.binarySearch(keys, 0, count, key);
+  }
+
+  private K[] createKeysArray() {
+    // K is erased to Comparable
+    return newArray(new Comparable<?>[branchingFactor]);
+  }
+
+  /**
+   * Arrays of type parameters and of the inner classes can't be created
+   * directly, so they are created with the erased or wildcard element type
+   * and cast here.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T[] newArray(Object[] erasedArray) {
+    return (T[]) erasedArray;
+  }
+
+  private void checkModifiable() {
+    if (readOnly) {
+      throw new UnsupportedOperationException("snapshot is read-only");
+    }
+  }
+
+  /**
+   * @return {@code object} if it belongs to the current epoch, otherwise its
+   *     copy, which must replace it in the tree
+   */
+  @SuppressWarnings("unchecked")
+  private <T extends Aggregated> T writable(T object) {
+    return object.epoch == epoch ? object : (T) object.copy();
+  }
+
+  /**
+   * @return leaf which may contain the {@code key}
+   */
+  private LeafNode findLeaf(K key) {
+    Node node = root;
+    while (node instanceof BTreeRangeMap.InnerNode) {
+      InnerNode inner = (InnerNode) node;
+      node = inner.children[inner.getChildIndex(key)];
+    }
+
+    return (LeafNode) node;
+  }
+
+  /**
+   * Same as {@link #findLeaf(Comparable)}, but makes the leaf and the path
+   * to it writable.
+   */
+  private LeafNode findWritableLeaf(K key) {
+    root = writable(root);
+    Node node = root;
+    while (node instanceof BTreeRangeMap.InnerNode) {
+      InnerNode inner = (InnerNode) node;
+      node = inner.getWritableChild(inner.getChildIndex(key));
+    }
+
+    return (LeafNode) node;
+  }
+
+  /**
+   * Map follows the leaf links. Links of the shared leaves are modified
+   * by the map, so snapshot descends from its root instead: the next leaf
+   * is the leftmost leaf of the subtree following the lowest subtree
+   * containing the last key of the {@code leaf} (only the root leaf may be
+   * empty).
+   *
+   * @return leaf following the {@code leaf} in this map
+   */
+  private LeafNode getNextLeaf(LeafNode leaf) {
+    if (!readOnly) {
+      return leaf.next;
+    }
+    if (leaf.keysCount == 0) {
+      return null;
+    }
+
+    K key = leaf.keys[leaf.keysCount - 1];
+    Node next = null;
+    Node node = root;
+    while (node instanceof BTreeRangeMap.InnerNode) {
+      InnerNode inner = (InnerNode) node;
+      int index = inner.getChildIndex(key);
+      if (index < inner.keysCount) {
+        next = inner.children[index + 1];
+      }
+      node = inner.children[index];
+    }
+
+    while (next instanceof BTreeRangeMap.InnerNode) {
+      next = ((InnerNode) next).children[0];
+    }
+    return (LeafNode) next;
+  }
+
+  /**
+   * @return number of leaves reachable through the links, which are not
+   *     in the tree anymore
+   */
+  int getDetachedLinkedLeavesCount() {
+    Set<LeafNode> leaves = Collections.newSetFromMap(new IdentityHashMap<>());
+    collectLeaves(root, leaves);
+
+    Node node = root;
+    while (node instanceof BTreeRangeMap.InnerNode) {
+      node = ((InnerNode) node).children[0];
+    }
+    int count = 0;
+    for (LeafNode leaf = (LeafNode) node; leaf != null; leaf = leaf.next) {
+      if (!leaves.contains(leaf)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void collectLeaves(Node node, Set<LeafNode> leaves) {
+    if (node instanceof BTreeRangeMap.InnerNode) {
+      InnerNode inner = (InnerNode) node;
+      for (int i = 0; i <= inner.keysCount; i++) {
+        collectLeaves(inner.children[i], leaves);
+      }
+    } else {
+      leaves.add((LeafNode) node);
+    }
+  }
+
+  /**
+   * @return the least key greater than {@code key} (or equal to it,
+   *     if {@code inclusive}) or {@code null} if there is no such key
+   */
+  private K findHigherKey(K key, boolean inclusive) {
+    LeafNode leaf = findLeaf(key);
+    int index = search(leaf.keys, leaf.keysCount, key);
+    if (index < 0) {
+      index = -index - 1;
+    } else if (!inclusive) {
+      index++;
+    }
+
+    if (index == leaf.keysCount) {
+      // All greater keys are in the next leaves
+      leaf = getNextLeaf(leaf);
+      index = 0;
+    }
+
+    return leaf != null && index < leaf.keysCount ? leaf.keys[index] : null;
+  }
+
+  /**
+   * @return removed value or {@link #NOT_FOUND}
+   */
+  private Object removeFirstMatching(K key, Predicate<Object> matcher) {
+    checkModifiable();
+
+    root = writable(root);
+    Object removed = root.remove(key, matcher);
+
+    if (removed != NOT_FOUND) {
+      rightmostLeaf = null;
+      if (maximumKey != null && key.compareTo(maximumKey) >= 0) {
+        // Maximum key may have lost its last value
+        maximumKey = null;
+      }
+      size--;
+      shrinkRoot();
+    }
+
+    return removed;
+  }
+
+  /**
+   * Removes inner roots with a single child -> shrinks the tree.
+   */
+  private void shrinkRoot() {
+    while (root instanceof BTreeRangeMap.InnerNode && root.keysCount == 0) {
+      root = ((InnerNode) root).children[0];
+    }
+  }
+
+  /**
+   * @return number of values with keys in range {@code [from, to]}
+   *     (or {@code [from, to)}, if not {@code toInclusive})
+   */
+  private long countRange(K from, K to, boolean toInclusive) {
+    int order = from.compareTo(to);
+    if (order > 0 || (order == 0 && !toInclusive)) {
+      return 0;
+    }
+
+    return root.countBefore(to, toInclusive) - root.countBefore(from, false);
+  }
+
+  private Bucket lookupBucket(K key) {
+    LeafNode leaf = findLeaf(key);
+    int index = search(leaf.keys, leaf.keysCount, key);
+    return index >= 0 ? leaf.buckets[index] : null;
+  }
+
+  /**
+   * Base class for nodes and buckets, which keeps aggregates of all values
+   * inside of it for every registered aggregation.
+   * <p>
+   * It is modified in place only in the epoch it was created in, otherwise
+   * it is copied (see {@link #writable(Aggregated)}).
+   */
+  private abstract class Aggregated {
+    final long epoch;
+    final long[] longAggregates;
+    final Object[] aggregates;
+
+    Aggregated() {
+      this.epoch = BTreeRangeMap.this.epoch;
+      this.longAggregates = new long[longAggregations.size()];
+      this.aggregates = new Object[aggregations.size()];
+      resetAggregates();
+    }
+
+    Aggregated(Aggregated original) {
+      this.epoch = BTreeRangeMap.this.epoch;
+      this.longAggregates = original.longAggregates.clone();
+      this.aggregates = original.aggregates.clone();
+    }
+
+    /**
+     * @return copy of this, which belongs to the current epoch
+     */
+    abstract Aggregated copy();
+
+    boolean hasAggregates() {
+      return longAggregates.length > 0 || aggregates.length > 0;
+    }
+
+    void resetAggregates() {
+      for (int i = 0; i < longAggregates.length; i++) {
+        longAggregates[i] = longAggregations.get(i).identityAsLong();
+      }
+      for (int i = 0; i < aggregates.length; i++) {
+        aggregates[i] = aggregations.get(i).identity();
+      }
+    }
+
+    /**
+     * Appends aggregates of the {@code other} to the aggregates of this.
+     */
+    void combineAggregates(Aggregated other) {
+      for (int i = 0; i < longAggregates.length; i++) {
+        longAggregates[i] = longAggregations.get(i).combineAsLong(
+            longAggregates[i], other.longAggregates[i]
+        );
+      }
+      for (int i = 0; i < aggregates.length; i++) {
+        aggregates[i] = aggregations.get(i).combine(aggregates[i], other.aggregates[i]);
+      }
+    }
+
+    /**
+     * Appends lifted {@code value} to the aggregates of this.
+     */
+    void combineAggregates(V value) {
+      for (int i = 0; i < longAggregates.length; i++) {
+        LongAggregation<? super V> aggregation = longAggregations.get(i);
+        longAggregates[i] = aggregation.combineAsLong(
+            longAggregates[i], aggregation.liftAsLong(value)
+        );
+      }
+      for (int i = 0; i < aggregates.length; i++) {
+        Aggregation<? super V, Object> aggregation = aggregations.get(i);
+        aggregates[i] = aggregation.combine(aggregates[i], aggregation.lift(value));
+      }
+    }
+  }
+
+  /**
+   * Node of the B+tree. All main B+tree operations are implemented in
+   * {@link InnerNode} and {@link LeafNode}.
+   * <p>
+   * Both kinds of nodes may temporarily contain {@code branchingFactor} keys
+   * (one more than allowed), right before they are split.
+   */
+  private abstract class Node extends Aggregated {
+    final K[] keys;
+    int keysCount;
+    // Number of values in the subtree
+    int valuesCount;
+
+    Node() {
+      super();
+      this.keys = createKeysArray();
+      this.keysCount = 0;
+    }
+
+    Node(Node original) {
+      super(original);
+      this.keys = original.keys.clone();
+      this.keysCount = original.keysCount;
+      this.valuesCount = original.valuesCount;
+    }
+
+    boolean isOverflown() {
+      return keysCount >= branchingFactor;
+    }
+
+    boolean isUnderflown() {
+      return keysCount < (branchingFactor - 1) / 2;
+    }
+
+    /**
+     * Recalculates number of values and aggregates from children or buckets.
+     */
+    void updateSummary() {
+      updateValuesCount();
+      if (hasAggregates()) {
+        updateAggregates();
+      }
+    }
+
+    abstract K getMinimumKey();
+
+    abstract K getMaximumKey();
+
+    /**
+     * Leaves are linked only forward, so lower keys are found by
+     * descending from the root.
+     *
+     * @return the greatest key of the subtree less than {@code key} (or equal
+     *     to it, if {@code inclusive}) or {@code null} if there is no such key
+     */
+    abstract K findLowerKey(K key, boolean inclusive);
 
-  public BTreeRangeMap() {
-    this.size = 0;
-    this.root = new Node(null, true);
-  }
+    /**
+     * Inserts value into the subtree.
+     *
+     * @return new right sibling if the node has been split, otherwise {@code null}
+     */
+    abstract Node insert(K key, V value);
 
-  @Override
-  public int size() {
-    return size;
-  }
+    /**
+     * Removes the first value of the {@code key} accepted by {@code matcher}.
+     * Node may become underflown, it is fixed by the parent.
+     *
+     * @return removed value or {@link #NOT_FOUND}
+     */
+    abstract Object remove(K key, Predicate<Object> matcher);
 
-  @Override
-  public boolean isEmpty() {
-    return size == 0;
-  }
+    /**
+     * Removes values with keys in {@code [from, to]} from the subtree (bounds
+     * have the same meaning as in {@link #aggregate}). Node may become
+     * underflown or even empty, it is fixed by the parent. All other nodes
+     * of the subtree are fixed before return.
+     *
+     * @return number of removed values
+     */
+    abstract int removeRange(K from, K to, boolean fromBounded, boolean toBounded);
 
-  @Override
-  public void add(K key, V value) {
-    Bucket existingBucket = root.lookupBucket(key);
+    /**
+     * Recalculates number of values from children or buckets.
+     */
+    abstract void updateValuesCount();
 
-    if (existingBucket != null) {
-      existingBucket.addValueLast(value);
-    } else {
-      Bucket newBucket = new Bucket(key, value);
+    /**
+     * @return number of values in the subtree with keys less than
+     *     {@code bound} (or equal to it, if {@code inclusive})
+     */
+    abstract int countBefore(K bound, boolean inclusive);
 
-      if (root.isFull()) {
-        /* Split root */
-        Node newRoot = new Node(null, false);
-        Node oldRoot = root;
-        oldRoot.parent = newRoot;
+    /**
+     * @return {@code true} if keys of the {@code right} sibling fit into this node
+     */
+    abstract boolean canMergeWith(Node right);
 
-        newRoot.firstNode = root;
-        newRoot.lastNode = root;
-        newRoot.childrenCount = 1;
+    /**
+     * Moves all keys of the {@code right} sibling into this node.
+     *
+     * @param separator key of the parent between this node and {@code right}
+     */
+    abstract void mergeWith(Node right, K separator);
 
-        oldRoot.split();
+    /**
+     * Evenly redistributes keys between this node and the {@code right} sibling.
+     *
+     * @param separator key of the parent between this node and {@code right}
+     *
+     * @return new separator
+     */
+    abstract K redistributeWith(Node right, K separator);
 
-        root = newRoot;
-      }
+    /**
+     * Recalculates aggregates from children or buckets.
+     */
+    abstract void updateAggregates();
 
-      root.insertNonFull(newBucket);
-    }
+    /**
+     * Aggregates values with keys in {@code [from, to]} in the subtree.
+     *
+     * @param fromBounded {@code false} if all keys of the subtree are
+     *                    known to be not less than {@code from}
+     * @param toBounded   {@code false} if all keys of the subtree are
+     *                    known to be not greater than {@code to}
+     */
+    abstract Object aggregate(int slot, K from, K to, boolean fromBounded, boolean toBounded);
 
-    size++;
+    /**
+     * Same as {@link #aggregate(int, Comparable, Comparable, boolean, boolean)}
+     * for the long aggregation.
+     */
+    abstract long aggregateAsLong(
+        int slot, K from, K to, boolean fromBounded, boolean toBounded
+    );
   }
 
-  @Override
-  public V remove(K key) {
-    return null;
-  }
+  private final class InnerNode extends Node {
+    final Node[] children;
 
-  @Override
-  public boolean contains(K key) {
-    return root.lookupBucket(key) != null;
-  }
+    InnerNode() {
+      super();
+      this.children = newArray(new BTreeRangeMap<?, ?>.Node[branchingFactor + 1]);
+    }
 
-  @Override
-  public V lookup(K key) {
-    Value value = root.lookupValue(key);
-    if (value != null) {
-      return value.value;
+    InnerNode(InnerNode original) {
+      super(original);
+      this.children = original.children.clone();
     }
-    return null;
-  }
 
-  @Override
-  public List<V> lookupRange(K from, K to) {
-    List<V> lookupResult = new LinkedList<>();
+    @Override
+    InnerNode copy() {
+      return new InnerNode(this);
+    }
+
+    /**
+     * Replaces the child with its writable version.
+     *
+     * @return writable child
+     */
+    Node getWritableChild(int index) {
+      Node child = writable(children[index]);
+      children[index] = child;
+      return child;
+    }
 
-    // Find "from" value and iteratively add its successors into the list
-    for (
-        Value value = root.lookupValue(from);
-        value != null && value.parent.key.compareTo(to) <= 0;
-        value = value.getSuccessor()
-    ) {
-      lookupResult.add(value.value);
+    /**
+     * @return index of the child, which subtree may contain the {@code key}
+     */
+    int getChildIndex(K key) {
+      int index = search(keys, keysCount, key);
+      return index >= 0 ? index + 1 : -index - 1;
     }
 
-    return lookupResult;
-  }
+    @Override
+    K getMinimumKey() {
+      return children[0].getMinimumKey();
+    }
 
-  /**
-   * Node of the BTree. All main BTree operations are implemented here.
-   * <p>
-   * It has fields
-   * - {@code previousNode, previousBucket, nextNode, nextBucket} that
-   * helps for faster traversing in the tree.
-   * - {@code firstNode, firstBucket, lastNode, lastBucket} for easier accessing its
-   * child nodes and buckets.
-   */
-  private final class Node {
-    Node parent;
-    boolean leaf;
-    int childrenCount;
-    int bucketsCount;
-    Node previousNode;
-    Bucket previousBucket;
-    Node nextNode;
-    Bucket nextBucket;
-    Node firstNode;
-    Bucket firstBucket;
-    Node lastNode;
-    Bucket lastBucket;
-
-    public Node(Node parent, boolean leaf) {
-      this.parent = parent;
-      this.leaf = leaf;
-      this.childrenCount = 0;
-      this.bucketsCount = 0;
-      this.previousNode = null;
-      this.previousBucket = null;
-      this.nextNode = null;
-      this.nextBucket = null;
-      this.firstNode = null;
-      this.firstBucket = null;
-      this.lastNode = null;
-      this.lastBucket = null;
-    }
-
-    Value lookupValue(K key) {
-      Bucket bucket = lookupBucket(key);
-      if (bucket != null) {
-        return bucket.firstValue;
-      }
-      return null;
+    @Override
+    K getMaximumKey() {
+      return children[keysCount].getMaximumKey();
     }
 
-    Bucket lookupBucket(K key) {
-      Bucket bucket = firstBucket;
-      while (bucket != null && key.compareTo(bucket.key) > 0) {
-        bucket = bucket.nextBucket;
+    @Override
+    K findLowerKey(K key, boolean inclusive) {
+      int index = search(keys, keysCount, key);
+      int childIndex;
+      if (index < 0) {
+        childIndex = -index - 1;
+      } else {
+        // Key is the minimum of the child index + 1
+        childIndex = inclusive ? index + 1 : index;
       }
 
-      if (bucket != null && key.compareTo(bucket.key) == 0) {
-        /* Bucket is found */
-        return bucket;
+      K result = children[childIndex].findLowerKey(key, inclusive);
+      if (result == null && childIndex > 0) {
+        // All keys of the previous child are less than the key
+        result = children[childIndex - 1].getMaximumKey();
       }
+      return result;
+    }
 
-      /* Bucket in the current node is not found */
+    @Override
+    Node insert(K key, V value) {
+      int childIndex = getChildIndex(key);
+      Node newChild = getWritableChild(childIndex).insert(key, value);
+      valuesCount++;
 
-      if (leaf) {
+      if (newChild == null) {
+        if (hasAggregates()) {
+          updateAggregates();
+        }
         return null;
       }
 
-      // Search in the subtree
-      Node childToLookup = bucket == null ? lastNode : bucket.previousNode;
-      return childToLookup.lookupBucket(key);
-    }
-
-    void split() {
-      assert isFull();
-
-      Bucket medianBucket = getMedianBucket();
-      assert medianBucket.parent == this;
-
-      // Save nodes and buckets around the median bucket
-      // ... [B] (N) [M] (N) [B] ...
-      //             ^^^^
-      Node preMedianNode = medianBucket.previousNode;
-      Bucket preMedianBucket = medianBucket.previousBucket;
-      Node postMedianNode = medianBucket.nextNode;
-      Bucket postMedianBucket = medianBucket.nextBucket;
-
-      assert preMedianBucket != null;
-      assert postMedianBucket != null;
-
-      // Add median bucket to the right of this node.
-      // It will be added after the pointer to this node in the parent
-      // and newly created node (the pointer to which will
-      // located be after this added bucket) will be returned
-      // ... (N) [M] (N) ...
-      //    this    newNode
-      //      |       -
-      //     ...
-      Node newNode = addBucketToTheRight(medianBucket);
-
-      // "Transfer" right part of buckets and children lists
-      // to the newly created node
-      newNode.firstBucket = postMedianBucket;
-      newNode.lastBucket = lastBucket;
-      lastBucket = preMedianBucket;
-      postMedianBucket.previousBucket = null;
-      preMedianBucket.nextBucket = null;
-
-      if (leaf) {
-        /* do not transfer children, since leaf has no children */
-        assert preMedianNode == null;
-        assert postMedianNode == null;
-        assert newNode.leaf;
-      } else {
-        newNode.firstNode = postMedianNode;
-        newNode.lastNode = lastNode;
+      /* Child has been split -> insert new child right after it */
 
-        lastNode = preMedianNode;
+      System.arraycopy(keys, childIndex, keys, childIndex + 1, keysCount - childIndex);
+      System.arraycopy(
+          children, childIndex + 1, children, childIndex + 2, keysCount - childIndex
+      );
+      keys[childIndex] = newChild.getMinimumKey();
+      children[childIndex + 1] = newChild;
+      keysCount++;
 
-        preMedianNode.nextBucket = null;
-        preMedianNode.nextNode = null;
-        postMedianNode.previousNode = null;
-        postMedianNode.previousBucket = null;
+      if (isOverflown()) {
+        return split();
+      }
 
-        childrenCount = t;
-        newNode.childrenCount = t;
+      if (hasAggregates()) {
+        updateAggregates();
       }
+      return null;
+    }
+
+    /**
+     * Moves right half of keys and children into the new node. Median key
+     * is not kept in any of the nodes, since it is the minimum key
+     * of the new node.
+     *
+     * @return new right sibling
+     */
+    InnerNode split() {
+      int median = keysCount / 2;
+      InnerNode sibling = new InnerNode();
 
-      // Update sizes
-      newNode.bucketsCount = t - 1;
-      bucketsCount = t - 1;
+      sibling.keysCount = keysCount - median - 1;
+      System.arraycopy(keys, median + 1, sibling.keys, 0, sibling.keysCount);
+      System.arraycopy(children, median + 1, sibling.children, 0, sibling.keysCount + 1);
 
-      newNode.updateChildrenAndBucketsParent();
+      Arrays.fill(keys, median, keysCount, null);
+      Arrays.fill(children, median + 1, keysCount + 1, null);
+      keysCount = median;
+
+      updateSummary();
+      sibling.updateSummary();
+
+      return sibling;
+    }
+
+    @Override
+    void updateAggregates() {
+      resetAggregates();
+      for (int i = 0; i <= keysCount; i++) {
+        combineAggregates(children[i]);
+      }
     }
 
-    boolean isFull() {
-      return bucketsCount >= (2 * t) - 1;
+    @Override
+    Object remove(K key, Predicate<Object> matcher) {
+      int childIndex = getChildIndex(key);
+      Object removed = getWritableChild(childIndex).remove(key, matcher);
+
+      if (removed != NOT_FOUND) {
+        fixUnderflownChildren(childIndex, childIndex);
+        updateSummary();
+      }
+      return removed;
     }
 
-    boolean nonEmpty() {
-      return bucketsCount > 0;
+    @Override
+    int removeRange(K from, K to, boolean fromBounded, boolean toBounded) {
+      int firstChild = fromBounded ? getChildIndex(from) : 0;
+      int lastChild = toBounded ? getChildIndex(to) : keysCount;
+
+      if (firstChild == lastChild) {
+        int removedCount =
+            getWritableChild(firstChild).removeRange(from, to, fromBounded, toBounded);
+        fixUnderflownChildren(firstChild, firstChild);
+        updateSummary();
+        return removedCount;
+      }
+
+      int removedCount = 0;
+      if (fromBounded) {
+        removedCount += getWritableChild(firstChild).removeRange(from, to, true, false);
+      }
+      if (toBounded) {
+        removedCount += getWritableChild(lastChild).removeRange(from, to, false, true);
+      }
+
+      /* Detach children lying entirely inside of the range */
+
+      int detachFrom = fromBounded ? firstChild + 1 : firstChild;
+      int detachTo = toBounded ? lastChild : lastChild + 1;
+      for (int i = detachFrom; i < detachTo; i++) {
+        removedCount += children[i].valuesCount;
+      }
+      removeChildren(detachFrom, detachTo);
+
+      // Now boundary children (if there are both) are next to each other
+      int boundary = fromBounded ? firstChild : detachFrom;
+      fixUnderflownChildren(boundary, boundary + 1);
+      updateSummary();
+
+      return removedCount;
     }
 
     /**
-     * Returns median bucket (at index t - 1) in the node.
-     * Important: assuming that node is full!
+     * Removes children in range {@code [from, to)} and the same number
+     * of keys around them.
      */
-    Bucket getMedianBucket() {
-      int i = 0;
-      Bucket bucket = firstBucket;
-      while (i < t - 1 && bucket != null) {
-        bucket = bucket.nextBucket;
-        i++;
+    void removeChildren(int from, int to) {
+      int count = to - from;
+      if (count == 0) {
+        return;
       }
-      return bucket;
+
+      // Key i is between children i and i + 1: remove keys to the left
+      // of the removed children, unless they start from the first child
+      int keysFrom = from > 0 ? from - 1 : 0;
+      System.arraycopy(keys, keysFrom + count, keys, keysFrom, keysCount - keysFrom - count);
+      System.arraycopy(children, to, children, from, keysCount + 1 - to);
+
+      int newKeysCount = keysCount - count;
+      Arrays.fill(keys, newKeysCount, keysCount, null);
+      Arrays.fill(children, newKeysCount + 1, keysCount + 1, null);
+      keysCount = newKeysCount;
     }
 
     /**
-     * Add new bucket to the right of this node.
-     * Also creates and adds to the right one new node, because between each bucket
-     * must be a node.
-     * Updates all necessary pointers and increments parent's children and buckets
-     * counters.
-     *
-     * @param bucket bucket to add
-     *
-     * @return newly created node that will be the next node of the added bucket
+     * Merges underflown children in range {@code [from, to]} with their
+     * siblings or redistributes keys between them, until none of them is
+     * underflown (or the only child is left). Children may be arbitrarily
+     * underflown, but all nodes in their subtrees must be fixed.
      */
-    Node addBucketToTheRight(Bucket bucket) {
-      assert !parent.leaf;
+    void fixUnderflownChildren(int from, int to) {
+      int index = from;
+
+      while (keysCount > 0 && index <= Math.min(to, keysCount)) {
+        if (!children[index].isUnderflown()) {
+          index++;
+          continue;
+        }
+
+        int left = index > 0 ? index - 1 : index;
+        Node leftChild = getWritableChild(left);
+        Node rightChild = getWritableChild(left + 1);
 
-      Node newNode = new Node(parent, this.leaf);
-      bucket.parent = parent;
+        if (leftChild.canMergeWith(rightChild)) {
+          leftChild.mergeWith(rightChild, keys[left]);
+          removeChildren(left + 1, left + 2);
+          to--;
+        } else {
+          keys[left] = leftChild.redistributeWith(rightChild, keys[left]);
+        }
+
+        // Both children may still be underflown -> check them again
+        index = left;
+      }
+    }
+
+    @Override
+    void updateValuesCount() {
+      valuesCount = 0;
+      for (int i = 0; i <= keysCount; i++) {
+        valuesCount += children[i].valuesCount;
+      }
+    }
 
-      Node oldNextNode = nextNode;
-      Bucket oldNextBucket = nextBucket;
+    @Override
+    int countBefore(K bound, boolean inclusive) {
+      // All keys of the previous children are less than the bound
+      int childIndex = getChildIndex(bound);
 
-      nextNode = newNode;
-      nextBucket = bucket;
-      newNode.previousNode = this;
-      newNode.previousBucket = bucket;
-      newNode.nextNode = oldNextNode;
-      newNode.nextBucket = oldNextBucket;
+      int count = 0;
+      for (int i = 0; i < childIndex; i++) {
+        count += children[i].valuesCount;
+      }
+      return count + children[childIndex].countBefore(bound, inclusive);
+    }
+
+    @Override
+    boolean canMergeWith(Node right) {
+      // Separator is moved into the merged node too
+      return keysCount + right.keysCount + 1 < branchingFactor;
+    }
 
-      bucket.previousNode = this;
-      bucket.previousBucket = previousBucket;
-      bucket.nextNode = newNode;
-      bucket.nextBucket = oldNextBucket;
+    @Override
+    void mergeWith(Node right, K separator) {
+      InnerNode rightInner = (InnerNode) right;
+      int junction = keysCount;
+
+      keys[keysCount] = separator;
+      System.arraycopy(rightInner.keys, 0, keys, keysCount + 1, rightInner.keysCount);
+      System.arraycopy(
+          rightInner.children, 0, children, keysCount + 1, rightInner.keysCount + 1
+      );
+      keysCount += rightInner.keysCount + 1;
+
+      // Underflown children of merged nodes are next to each other now
+      fixUnderflownChildren(junction, junction + 1);
+      updateSummary();
+    }
 
-      if (oldNextNode == null) {
-        /* Node was last node */
-        assert oldNextBucket == null;
+    @Override
+    K redistributeWith(Node right, K separator) {
+      InnerNode rightInner = (InnerNode) right;
+
+      /* Concatenate both nodes with the separator and split them evenly */
+
+      int totalKeys = keysCount + rightInner.keysCount + 1;
+      K[] allKeys = newArray(new Comparable<?>[totalKeys]);
+      Node[] allChildren = newArray(new BTreeRangeMap<?, ?>.Node[totalKeys + 1]);
+
+      System.arraycopy(keys, 0, allKeys, 0, keysCount);
+      allKeys[keysCount] = separator;
+      System.arraycopy(rightInner.keys, 0, allKeys, keysCount + 1, rightInner.keysCount);
+      System.arraycopy(children, 0, allChildren, 0, keysCount + 1);
+      System.arraycopy(
+          rightInner.children, 0, allChildren, keysCount + 1, rightInner.keysCount + 1
+      );
+
+      Arrays.fill(keys, null);
+      Arrays.fill(children, null);
+      Arrays.fill(rightInner.keys, null);
+      Arrays.fill(rightInner.children, null);
+
+      keysCount = (totalKeys - 1) / 2;
+      rightInner.keysCount = totalKeys - 1 - keysCount;
+      System.arraycopy(allKeys, 0, keys, 0, keysCount);
+      System.arraycopy(allChildren, 0, children, 0, keysCount + 1);
+      System.arraycopy(allKeys, keysCount + 1, rightInner.keys, 0, rightInner.keysCount);
+      System.arraycopy(
+          allChildren, keysCount + 1, rightInner.children, 0, rightInner.keysCount + 1
+      );
+      K newSeparator = allKeys[keysCount];
+
+      // Underflown children could have been moved into any of the nodes
+      fixUnderflownChildren(0, keysCount);
+      rightInner.fixUnderflownChildren(0, rightInner.keysCount);
+      updateSummary();
+      rightInner.updateSummary();
+
+      return newSeparator;
+    }
 
-        parent.lastNode = newNode;
-        parent.lastBucket = bucket;
-      } else {
-        oldNextNode.previousNode = newNode;
-        // oldNextNode.previousBucket does not change
-        oldNextBucket.previousNode = newNode;
-        oldNextBucket.previousBucket = bucket;
+    @Override
+    Object aggregate(int slot, K from, K to, boolean fromBounded, boolean toBounded) {
+      if (!fromBounded && !toBounded) {
+        return aggregates[slot];
       }
 
-      if (previousBucket == null) {
-        /* Node is first node */
-        assert previousNode == null;
-        assert parent.firstNode == this;
-        parent.firstBucket = bucket;
-      } else {
-        previousBucket.nextBucket = bucket;
+      Aggregation<? super V, Object> aggregation = aggregations.get(slot);
+      int firstChild = fromBounded ? getChildIndex(from) : 0;
+      int lastChild = toBounded ? getChildIndex(to) : keysCount;
+
+      Object result = aggregation.identity();
+      for (int i = firstChild; i <= lastChild; i++) {
+        result = aggregation.combine(result, children[i].aggregate(
+            slot, from, to, fromBounded && i == firstChild, toBounded && i == lastChild
+        ));
+      }
+      return result;
+    }
+
+    @Override
+    long aggregateAsLong(int slot, K from, K to, boolean fromBounded, boolean toBounded) {
+      if (!fromBounded && !toBounded) {
+        return longAggregates[slot];
       }
 
-      parent.childrenCount++;
-      parent.bucketsCount++;
+      LongAggregation<? super V> aggregation = longAggregations.get(slot);
+      int firstChild = fromBounded ? getChildIndex(from) : 0;
+      int lastChild = toBounded ? getChildIndex(to) : keysCount;
+
+      long result = aggregation.identityAsLong();
+      for (int i = firstChild; i <= lastChild; i++) {
+        result = aggregation.combineAsLong(result, children[i].aggregateAsLong(
+            slot, from, to, fromBounded && i == firstChild, toBounded && i == lastChild
+        ));
+      }
+      return result;
+    }
+  }
+
+  private final class LeafNode extends Node {
+    final Bucket[] buckets;
+    // Links are read only by the map, so they are modified in place even
+    // after the leaf has been shared with snapshots
+    LeafNode previous;
+    LeafNode next;
+
+    LeafNode() {
+      super();
+      this.buckets = newArray(new BTreeRangeMap<?, ?>.Bucket[branchingFactor]);
+    }
 
-      return newNode;
+    LeafNode(LeafNode original) {
+      super(original);
+      this.buckets = original.buckets.clone();
+      this.previous = original.previous;
+      this.next = original.next;
     }
 
-    void updateChildrenAndBucketsParent() {
-      for (Node child = firstNode; child != null; child = child.nextNode) {
-        child.parent = this;
+    /**
+     * Copy replaces this leaf in the links, and this leaf is unlinked,
+     * so that it doesn't keep the leaves of the map reachable.
+     */
+    @Override
+    LeafNode copy() {
+      LeafNode copy = new LeafNode(this);
+      if (previous != null) {
+        previous.next = copy;
       }
-      for (Bucket bucket = firstBucket; bucket != null; bucket = bucket.nextBucket) {
-        bucket.parent = this;
+      if (next != null) {
+        next.previous = copy;
       }
+      previous = null;
+      next = null;
+      return copy;
+    }
+
+    /**
+     * Replaces the bucket with its writable version.
+     *
+     * @return writable bucket
+     */
+    Bucket getWritableBucket(int index) {
+      Bucket bucket = writable(buckets[index]);
+      buckets[index] = bucket;
+      return bucket;
+    }
+
+    @Override
+    K getMinimumKey() {
+      return keys[0];
+    }
+
+    @Override
+    K getMaximumKey() {
+      return keysCount > 0 ? keys[keysCount - 1] : null;
     }
 
-    void insertNonFull(Bucket bucket) {
-      Bucket leftNeighbour = lastBucket;
-      while (leftNeighbour != null && bucket.key.compareTo(leftNeighbour.key) < 0) {
-        leftNeighbour = leftNeighbour.previousBucket;
+    @Override
+    K findLowerKey(K key, boolean inclusive) {
+      int index = search(keys, keysCount, key);
+      if (index >= 0 && inclusive) {
+        return keys[index];
       }
 
-      if (leaf) {
-        /* Just insert bucket into buckets list */
+      int lowerIndex = (index >= 0 ? index : -index - 1) - 1;
+      return lowerIndex >= 0 ? keys[lowerIndex] : null;
+    }
+
+    @Override
+    Node insert(K key, V value) {
+      int index = search(keys, keysCount, key);
+      valuesCount++;
 
-        if (leftNeighbour == null) {
-          /* Key is minimum */
-          insertBucketInFrontLeaf(bucket);
-        } else {
-          appendBucketToBucketLeaf(leftNeighbour, bucket);
+      if (index >= 0) {
+        /* Key exists -> just add value to its bucket */
+        getWritableBucket(index).addValueLast(value);
+      } else {
+        int insertionIndex = -index - 1;
+        System.arraycopy(
+            keys, insertionIndex, keys, insertionIndex + 1, keysCount - insertionIndex
+        );
+        System.arraycopy(
+            buckets, insertionIndex, buckets, insertionIndex + 1, keysCount - insertionIndex
+        );
+        keys[insertionIndex] = key;
+        buckets[insertionIndex] = new Bucket(value);
+        keysCount++;
+
+        if (isOverflown()) {
+          return split();
         }
+      }
 
-        assert bucket.parent == this;
-      } else {
-        /* Insert into subtree */
+      if (hasAggregates()) {
+        updateAggregates();
+      }
+      return null;
+    }
 
-        Node childToInsert = leftNeighbour == null ? firstNode : leftNeighbour.nextNode;
-        assert childToInsert.parent == this;
+    /**
+     * Moves right half of keys and buckets into the new leaf and links
+     * it right after this leaf.
+     *
+     * @return new right sibling
+     */
+    LeafNode split() {
+      int middle = keysCount / 2;
+      LeafNode sibling = new LeafNode();
+
+      sibling.keysCount = keysCount - middle;
+      System.arraycopy(keys, middle, sibling.keys, 0, sibling.keysCount);
+      System.arraycopy(buckets, middle, sibling.buckets, 0, sibling.keysCount);
+
+      Arrays.fill(keys, middle, keysCount, null);
+      Arrays.fill(buckets, middle, keysCount, null);
+      keysCount = middle;
+
+      sibling.previous = this;
+      sibling.next = next;
+      if (next != null) {
+        next.previous = sibling;
+      }
+      next = sibling;
 
-        if (childToInsert.isFull()) {
-          childToInsert.split();
+      updateSummary();
+      sibling.updateSummary();
 
-          /*
-            Child has been split -> bucket was lifted and new node was inserted
-            after childToInsert -> we should decide into which node of two
-            to insert now
-          */
+      return sibling;
+    }
 
-          Bucket liftedBucket = childToInsert.nextBucket;
+    @Override
+    void updateAggregates() {
+      resetAggregates();
+      for (int i = 0; i < keysCount; i++) {
+        combineAggregates(buckets[i]);
+      }
+    }
 
-          assert liftedBucket.parent == childToInsert.parent;
-          assert liftedBucket.parent == this;
-          assert childToInsert.nextNode == liftedBucket.nextNode;
+    @Override
+    Object remove(K key, Predicate<Object> matcher) {
+      int index = search(keys, keysCount, key);
+      if (index < 0) {
+        return NOT_FOUND;
+      }
 
-          if (bucket.key.compareTo(liftedBucket.key) > 0) {
-            childToInsert = childToInsert.nextNode;
-          }
-        }
+      Object removed = getWritableBucket(index).removeFirstMatching(matcher);
+      if (removed == NOT_FOUND) {
+        return NOT_FOUND;
+      }
 
-        childToInsert.insertNonFull(bucket);
+      if (buckets[index].size == 0) {
+        removeEntries(index, index + 1);
       }
+
+      updateSummary();
+      return removed;
     }
 
-    void insertBucketInFrontLeaf(Bucket bucket) {
-      assert leaf;
-      assert firstNode == null;
-      assert lastNode == null;
+    @Override
+    int removeRange(K from, K to, boolean fromBounded, boolean toBounded) {
+      int first = getFirstIndex(from, fromBounded);
+      int last = getLastIndex(to, toBounded);
+      if (first > last) {
+        return 0;
+      }
 
-      bucket.parent = this;
+      int removedCount = 0;
+      for (int i = first; i <= last; i++) {
+        removedCount += buckets[i].size;
+      }
+      removeEntries(first, last + 1);
 
-      if (bucketsCount == 0) {
-        /* Bucket is first */
-        assert firstBucket == null;
-        assert lastBucket == null;
+      updateSummary();
+      return removedCount;
+    }
 
-        firstBucket = bucket;
-        lastBucket = bucket;
-      } else {
-        assert firstBucket != null;
-        assert lastBucket != null;
+    /**
+     * Removes keys and buckets in range {@code [from, to)}.
+     */
+    void removeEntries(int from, int to) {
+      System.arraycopy(keys, to, keys, from, keysCount - to);
+      System.arraycopy(buckets, to, buckets, from, keysCount - to);
+
+      int newKeysCount = keysCount - (to - from);
+      Arrays.fill(keys, newKeysCount, keysCount, null);
+      Arrays.fill(buckets, newKeysCount, keysCount, null);
+      keysCount = newKeysCount;
+    }
+
+    @Override
+    void updateValuesCount() {
+      valuesCount = 0;
+      for (int i = 0; i < keysCount; i++) {
+        valuesCount += buckets[i].size;
+      }
+    }
 
-        Bucket oldFirstBucket = firstBucket;
-        bucket.nextBucket = oldFirstBucket;
-        oldFirstBucket.previousBucket = bucket;
+    @Override
+    int countBefore(K bound, boolean inclusive) {
+      int index = search(keys, keysCount, bound);
+      int limit = index >= 0 ? (inclusive ? index + 1 : index) : -index - 1;
 
-        firstBucket = bucket;
+      int count = 0;
+      for (int i = 0; i < limit; i++) {
+        count += buckets[i].size;
       }
+      return count;
+    }
 
-      bucketsCount++;
+    @Override
+    boolean canMergeWith(Node right) {
+      return keysCount + right.keysCount < branchingFactor;
     }
 
-    void appendBucketToBucketLeaf(Bucket leftBucket, Bucket newBucket) {
-      assert leaf;
-      assert leftBucket.parent == this;
+    @Override
+    void mergeWith(Node right, K separator) {
+      LeafNode rightLeaf = (LeafNode) right;
 
-      newBucket.parent = this;
+      System.arraycopy(rightLeaf.keys, 0, keys, keysCount, rightLeaf.keysCount);
+      System.arraycopy(rightLeaf.buckets, 0, buckets, keysCount, rightLeaf.keysCount);
+      keysCount += rightLeaf.keysCount;
+      next = rightLeaf.next;
+      if (next != null) {
+        next.previous = this;
+      }
 
-      if (leftBucket.nextBucket == null) {
-        /* appending in the end */
-        assert lastBucket == leftBucket;
+      updateSummary();
+    }
 
-        leftBucket.nextBucket = newBucket;
-        newBucket.previousBucket = leftBucket;
-        lastBucket = newBucket;
+    @Override
+    K redistributeWith(Node right, K separator) {
+      LeafNode rightLeaf = (LeafNode) right;
+      int newKeysCount = (keysCount + rightLeaf.keysCount) / 2;
+
+      if (keysCount > newKeysCount) {
+        /* Move tail of this leaf to the start of the right one */
+        int moved = keysCount - newKeysCount;
+        System.arraycopy(rightLeaf.keys, 0, rightLeaf.keys, moved, rightLeaf.keysCount);
+        System.arraycopy(rightLeaf.buckets, 0, rightLeaf.buckets, moved, rightLeaf.keysCount);
+        System.arraycopy(keys, newKeysCount, rightLeaf.keys, 0, moved);
+        System.arraycopy(buckets, newKeysCount, rightLeaf.buckets, 0, moved);
+        rightLeaf.keysCount += moved;
+        removeEntries(newKeysCount, keysCount);
       } else {
-        assert lastBucket != null;
-        assert lastBucket != leftBucket;
-
-        Bucket oldNextBucket = leftBucket.nextBucket;
-        leftBucket.nextBucket = newBucket;
-        newBucket.previousBucket = leftBucket;
-        newBucket.nextBucket = oldNextBucket;
-        oldNextBucket.previousBucket = newBucket;
+        /* Move head of the right leaf to the end of this one */
+        int moved = newKeysCount - keysCount;
+        System.arraycopy(rightLeaf.keys, 0, keys, keysCount, moved);
+        System.arraycopy(rightLeaf.buckets, 0, buckets, keysCount, moved);
+        keysCount += moved;
+        rightLeaf.removeEntries(0, moved);
       }
 
-      bucketsCount++;
+      updateSummary();
+      rightLeaf.updateSummary();
+
+      return rightLeaf.keys[0];
+    }
+
+    /**
+     * @return index of the first key not less than {@code from}
+     */
+    int getFirstIndex(K from, boolean fromBounded) {
+      if (!fromBounded) {
+        return 0;
+      }
+      int index = search(keys, keysCount, from);
+      return index >= 0 ? index : -index - 1;
     }
 
-    Value getMinimumValue() {
-      return getMinimumBucket().firstValue;
+    /**
+     * @return index of the last key not greater than {@code to}
+     */
+    int getLastIndex(K to, boolean toBounded) {
+      if (!toBounded) {
+        return keysCount - 1;
+      }
+      int index = search(keys, keysCount, to);
+      return index >= 0 ? index : -index - 2;
     }
 
-    Bucket getMinimumBucket() {
-      if (!leaf && firstNode != null && firstNode.nonEmpty()) {
-        return firstNode.getMinimumBucket();
+    @Override
+    Object aggregate(int slot, K from, K to, boolean fromBounded, boolean toBounded) {
+      Aggregation<? super V, Object> aggregation = aggregations.get(slot);
+      int last = getLastIndex(to, toBounded);
+
+      Object result = aggregation.identity();
+      for (int i = getFirstIndex(from, fromBounded); i <= last; i++) {
+        result = aggregation.combine(result, buckets[i].aggregates[slot]);
       }
+      return result;
+    }
+
+    @Override
+    long aggregateAsLong(int slot, K from, K to, boolean fromBounded, boolean toBounded) {
+      LongAggregation<? super V> aggregation = longAggregations.get(slot);
+      int last = getLastIndex(to, toBounded);
 
-      return firstBucket;
+      long result = aggregation.identityAsLong();
+      for (int i = getFirstIndex(from, fromBounded); i <= last; i++) {
+        result = aggregation.combineAsLong(result, buckets[i].longAggregates[slot]);
+      }
+      return result;
     }
   }
 
   /**
-   * Class which contains all values for the specific key (as linked list).
+   * Class which contains all values for the specific key (as array).
    * I created this class to properly handle items with equal keys.
    */
-  private final class Bucket {
-    K key;
+  private final class Bucket extends Aggregated {
+    Object[] values;
     int size;
-    Node parent;
-    Node previousNode;
-    Node nextNode;
-    Bucket previousBucket;
-    Bucket nextBucket;
-    Value firstValue;
-    Value lastValue;
-
-    public Bucket(K key, V initialValue) {
-      this.key = key;
-      this.parent = null;
-      this.previousNode = null;
-      this.previousBucket = null;
-      this.nextNode = null;
-      this.nextBucket = null;
-
-      firstValue = new Value(initialValue, this);
-      lastValue = firstValue;
+
+    Bucket(V initialValue) {
+      super();
+      this.values = new Object[] {initialValue};
       this.size = 1;
+      combineAggregates(initialValue);
+    }
+
+    Bucket(Bucket original) {
+      super(original);
+      this.values = original.values.clone();
+      this.size = original.size;
+    }
+
+    @Override
+    Bucket copy() {
+      return new Bucket(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    V getFirstValue() {
+      return (V) values[0];
     }
 
     void addValueLast(V value) {
-      Value newValue = new Value(value, this);
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+      combineAggregates(value);
+    }
 
-      if (size == 0) {
-        firstValue = newValue;
-      } else {
-        Value oldLastValue = lastValue;
-        oldLastValue.nextValue = newValue;
-        newValue.previousValue = oldLastValue;
+    /**
+     * @return removed value or {@link #NOT_FOUND}
+     */
+    Object removeFirstMatching(Predicate<Object> matcher) {
+      for (int i = 0; i < size; i++) {
+        Object value = values[i];
+        if (matcher.test(value)) {
+          System.arraycopy(values, i + 1, values, i, size - i - 1);
+          values[--size] = null;
+          if (hasAggregates()) {
+            updateAggregates();
+          }
+          return value;
+        }
+      }
+      return NOT_FOUND;
+    }
+
+    @SuppressWarnings("unchecked")
+    void updateAggregates() {
+      resetAggregates();
+      for (int i = 0; i < size; i++) {
+        combineAggregates((V) values[i]);
       }
+    }
+
+    @SuppressWarnings("unchecked")
+    V getValue(int index) {
+      return (V) values[index];
+    }
 
-      lastValue = newValue;
-      size++;
+    void forEachValue(K key, BiConsumer<? super K, ? super V> visitor) {
+      for (int i = 0; i < size; i++) {
+        visitor.accept(key, getValue(i));
+      }
     }
   }
 
   /**
-   * Class that represents single value. It is stored in {@link Bucket}, which
-   * stores the associated key.
+   * Cursor walking over the leaves. It keeps the position of the current
+   * entry: leaf, index of the key and index of the value in its bucket.
    */
-  private final class Value {
-    V value;
-    Bucket parent;
-    Value previousValue;
-    Value nextValue;
+  private final class Cursor implements RangeCursor<K, V> {
+    private final K to;
+    private final boolean toInclusive;
+    private LeafNode leaf;
+    private int index;
+    private Bucket bucket;
+    private int valueIndex;
+
+    Cursor(K from, K to, boolean toInclusive) {
+      this.to = to;
+      this.toInclusive = toInclusive;
+      this.leaf = findLeaf(from);
+      // Positioned right before the first key of the range
+      this.index = leaf.getFirstIndex(from, true) - 1;
+    }
+
+    @Override
+    public boolean next() {
+      if (leaf == null) {
+        return false;
+      }
+
+      if (bucket != null && valueIndex + 1 < bucket.size) {
+        valueIndex++;
+        return true;
+      }
+
+      /* Move to the next key */
+
+      index++;
+      while (index == leaf.keysCount) {
+        leaf = getNextLeaf(leaf);
+        index = 0;
+        if (leaf == null) {
+          bucket = null;
+          return false;
+        }
+      }
+
+      int order = leaf.keys[index].compareTo(to);
+      if (order > 0 || (order == 0 && !toInclusive)) {
+        leaf = null;
+        bucket = null;
+        return false;
+      }
 
-    Value(V value, Bucket parent) {
-      this.value = value;
-      this.parent = parent;
-      this.previousValue = null;
-      this.nextValue = null;
+      bucket = leaf.buckets[index];
+      valueIndex = 0;
+      return true;
     }
 
-    /**
-     * @return successor value
-     */
-    Value getSuccessor() {
-      if (nextValue != null) {
-        return nextValue;
+    @Override
+    public K getKey() {
+      checkPosition();
+      return leaf.keys[index];
+    }
+
+    @Override
+    public V getValue() {
+      checkPosition();
+      return bucket.getValue(valueIndex);
+    }
+
+    private void checkPosition() {
+      if (bucket == null) {
+        throw new NoSuchElementException("cursor is not at an entry");
+      }
+    }
+  }
+
+  /**
+   * Spliterator over values with keys in range {@code [from, to]} (or
+   * {@code [from, to)}). It is split by a key of the lowest inner node that
+   * covers the whole range, so that both parts get about a half of its
+   * children. Sizes of the parts are counted in O(log n) using numbers
+   * of values kept in the nodes.
+   */
+  private final class RangeSpliterator implements Spliterator<V> {
+    private final K to;
+    private final boolean toInclusive;
+    private K from;
+    // Lowest known node which covers the whole range
+    private Node node;
+    private long remaining;
+    // Created when traversal starts, after that spliterator is not split
+    private Cursor cursor;
+
+    RangeSpliterator(K from, K to, boolean toInclusive, Node node) {
+      this.from = from;
+      this.to = to;
+      this.toInclusive = toInclusive;
+      this.node = node;
+      this.remaining = countRange(from, to, toInclusive);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super V> action) {
+      if (cursor == null) {
+        cursor = new Cursor(from, to, toInclusive);
+      }
+
+      if (!cursor.next()) {
+        return false;
       }
 
-      Bucket bucket = parent;
+      remaining--;
+      action.accept(cursor.getValue());
+      return true;
+    }
 
-      if (bucket.nextNode != null && bucket.nextNode.nonEmpty()) {
-        return bucket.nextNode.getMinimumValue();
-      } else if (bucket.nextBucket != null) {
-        return bucket.nextBucket.firstValue;
+    @Override
+    public Spliterator<V> trySplit() {
+      if (cursor != null) {
+        return null;
       }
 
-      for (Node node = bucket.parent; node != null; node = node.parent) {
-        if (node.nextBucket != null) {
-          return node.nextBucket.firstValue;
+      while (node instanceof BTreeRangeMap.InnerNode) {
+        InnerNode inner = (InnerNode) node;
+        int firstChild = inner.getChildIndex(from);
+        int index = search(inner.keys, inner.keysCount, to);
+        int lastChild = index >= 0 ? (toInclusive ? index + 1 : index) : -index - 1;
+
+        if (firstChild < lastChild) {
+          /* Split between children -> this keeps the right half */
+          int middleChild = (firstChild + lastChild + 1) / 2;
+          K splitKey = inner.keys[middleChild - 1];
+
+          RangeSpliterator prefix = new RangeSpliterator(from, splitKey, false, inner);
+          from = splitKey;
+          remaining -= prefix.remaining;
+          return prefix;
+        }
+
+        if (firstChild > lastChild) {
+          // Empty range
+          return null;
         }
+
+        node = inner.children[firstChild];
       }
 
+      // Leaves are not split
       return null;
     }
+
+    @Override
+    public long estimateSize() {
+      return remaining;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED;
+    }
   }
 }
@@ -0,0 +1,358 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link RangeMap} decorator, which caches results of a single long
+ * aggregation (e.g. sum) by range, so that repeated reports over the same
+ * ranges cost a single hash lookup:
+ * <pre>{@code
+ * LongAggregation<Integer> sum = Aggregations.sum(Integer::longValue);
+ * RangeMap<Date, Integer> history =
+ *     new CachingRangeMap<>(new BTreeRangeMap<>(32, sum), sum, 1024);
+ * long total = history.aggregateAsLong(sum, from, to);
+ * }</pre>
+ * Cache keeps at most {@code capacity} ranges and evicts the least recently
+ * used one. Write of a key invalidates only the cached ranges containing
+ * the key: cached ranges are also kept in an interval index (treap ordered
+ * by the range start, where every node knows the greatest range end in its
+ * subtree), so ranges containing the key are found in O(log n + m).
+ * <p>
+ * All modifications of the wrapped map must go through the decorator.
+ * Like the wrapped maps, decorator is not thread-safe.
+ *
+ * @param <K> type of the key
+ * @param <V> type of the value
+ */
+public class CachingRangeMap<K extends Comparable<K>, V> implements RangeMap<K, V> {
+  private final RangeMap<K, V> rangeMap;
+  private final LongAggregation<? super V> aggregation;
+  private final LinkedHashMap<Range<K>, IndexNode<K>> cache;
+  // Root of the interval index of the cached ranges
+  private IndexNode<K> root;
+
+  /**
+   * @param rangeMap    wrapped map
+   * @param aggregation aggregation, whose results are cached, it is
+   *                    recognized by identity
+   * @param capacity    maximum number of cached ranges
+   */
+  public CachingRangeMap(
+      RangeMap<K, V> rangeMap,
+      LongAggregation<? super V> aggregation,
+      int capacity
+  ) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+
+    this.rangeMap = rangeMap;
+    this.aggregation = aggregation;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Range<K>, IndexNode<K>> eldest) {
+        if (size() > capacity) {
+          root = removeFromIndex(root, eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    return rangeMap.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return rangeMap.isEmpty();
+  }
+
+  @Override
+  public void add(K key, V value) {
+    rangeMap.add(key, value);
+    invalidate(key);
+  }
+
+  @Override
+  public V remove(K key) {
+    if (rangeMap.contains(key)) {
+      invalidate(key);
+    }
+    return rangeMap.remove(key);
+  }
+
+  @Override
+  public boolean contains(K key) {
+    return rangeMap.contains(key);
+  }
+
+  @Override
+  public V lookup(K key) {
+    return rangeMap.lookup(key);
+  }
+
+  @Override
+  public List<V> lookupRange(K from, K to) {
+    return rangeMap.lookupRange(from, to);
+  }
+
+  @Override
+  public RangeCursor<K, V> rangeCursor(K from, K to) {
+    return rangeMap.rangeCursor(from, to);
+  }
+
+  @Override
+  public void forEachInRange(K from, K to, BiConsumer<? super K, ? super V> visitor) {
+    rangeMap.forEachInRange(from, to, visitor);
+  }
+
+  @Override
+  public K ceilingKey(K key) {
+    return rangeMap.ceilingKey(key);
+  }
+
+  @Override
+  public K floorKey(K key) {
+    return rangeMap.floorKey(key);
+  }
+
+  @Override
+  public K higherKey(K key) {
+    return rangeMap.higherKey(key);
+  }
+
+  @Override
+  public K lowerKey(K key) {
+    return rangeMap.lowerKey(key);
+  }
+
+  @Override
+  public <A> A aggregate(Aggregation<? super V, A> aggregation, K from, K to) {
+    if (aggregation == this.aggregation) {
+      @SuppressWarnings("unchecked")
+      A result = (A) (Long) aggregateAsLong(this.aggregation, from, to);
+      return result;
+    }
+    return rangeMap.aggregate(aggregation, from, to);
+  }
+
+  /**
+   * Result of the cached aggregation is taken from the cache or computed
+   * by the wrapped map and cached.
+   */
+  @Override
+  public long aggregateAsLong(LongAggregation<? super V> aggregation, K from, K to) {
+    if (aggregation != this.aggregation || from.compareTo(to) > 0) {
+      return rangeMap.aggregateAsLong(aggregation, from, to);
+    }
+
+    IndexNode<K> cached = cache.get(new Range<>(from, to));
+    if (cached != null) {
+      return cached.result;
+    }
+
+    long result = rangeMap.aggregateAsLong(aggregation, from, to);
+    IndexNode<K> node = new IndexNode<>(from, to, result);
+    root = insertIntoIndex(root, node);
+    cache.put(node.range, node);
+    return result;
+  }
+
+  int getCachedCount() {
+    return cache.size();
+  }
+
+  /**
+   * Removes cached ranges containing the {@code key}.
+   */
+  private void invalidate(K key) {
+    List<IndexNode<K>> stale = new ArrayList<>();
+    findContaining(root, key, stale);
+    for (IndexNode<K> node : stale) {
+      cache.remove(node.range);
+      root = removeFromIndex(root, node);
+    }
+  }
+
+  /* Interval index */
+
+  private static <K extends Comparable<K>> int compare(IndexNode<K> left, IndexNode<K> right) {
+    int result = left.range.from.compareTo(right.range.from);
+    return result != 0 ? result : left.range.to.compareTo(right.range.to);
+  }
+
+  private static <K extends Comparable<K>> IndexNode<K> insertIntoIndex(
+      IndexNode<K> node,
+      IndexNode<K> inserted
+  ) {
+    if (node == null) {
+      return inserted;
+    }
+
+    if (compare(inserted, node) < 0) {
+      node.left = insertIntoIndex(node.left, inserted);
+      if (node.left.priority > node.priority) {
+        node = rotateRight(node);
+      }
+    } else {
+      node.right = insertIntoIndex(node.right, inserted);
+      if (node.right.priority > node.priority) {
+        node = rotateLeft(node);
+      }
+    }
+    node.update();
+    return node;
+  }
+
+  private static <K extends Comparable<K>> IndexNode<K> removeFromIndex(
+      IndexNode<K> node,
+      IndexNode<K> removed
+  ) {
+    if (node == null) {
+      return null;
+    }
+
+    if (node == removed) {
+      return mergeIndex(node.left, node.right);
+    }
+    if (compare(removed, node) < 0) {
+      node.left = removeFromIndex(node.left, removed);
+    } else {
+      node.right = removeFromIndex(node.right, removed);
+    }
+    node.update();
+    return node;
+  }
+
+  /**
+   * Merges subtrees, all ranges of the {@code left} precede ranges
+   * of the {@code right}.
+   */
+  private static <K extends Comparable<K>> IndexNode<K> mergeIndex(
+      IndexNode<K> left,
+      IndexNode<K> right
+  ) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+
+    if (left.priority > right.priority) {
+      left.right = mergeIndex(left.right, right);
+      left.update();
+      return left;
+    }
+    right.left = mergeIndex(left, right.left);
+    right.update();
+    return right;
+  }
+
+  /**
+   * Subtrees, where all ranges end before the {@code key}, are skipped,
+   * as well as right subtrees of the ranges starting after it.
+   */
+  private static <K extends Comparable<K>> void findContaining(
+      IndexNode<K> node,
+      K key,
+      List<IndexNode<K>> result
+  ) {
+    if (node == null || node.maxTo.compareTo(key) < 0) {
+      return;
+    }
+
+    findContaining(node.left, key, result);
+    if (node.range.from.compareTo(key) <= 0) {
+      if (node.range.to.compareTo(key) >= 0) {
+        result.add(node);
+      }
+      findContaining(node.right, key, result);
+    }
+  }
+
+  private static <K extends Comparable<K>> IndexNode<K> rotateRight(IndexNode<K> node) {
+    IndexNode<K> left = node.left;
+    node.left = left.right;
+    left.right = node;
+    node.update();
+    return left;
+  }
+
+  private static <K extends Comparable<K>> IndexNode<K> rotateLeft(IndexNode<K> node) {
+    IndexNode<K> right = node.right;
+    node.right = right.left;
+    right.left = node;
+    node.update();
+    return right;
+  }
+
+  /**
+   * Key of the cache.
+   */
+  private static final class Range<K> {
+    final K from;
+    final K to;
+
+    Range(K from, K to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Range)) {
+        return false;
+      }
+      Range<?> range = (Range<?>) other;
+      return from.equals(range.from) && to.equals(range.to);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(from, to);
+    }
+  }
+
+  /**
+   * Cached result, which is also a node of the interval index.
+   */
+  private static final class IndexNode<K extends Comparable<K>> {
+    final Range<K> range;
+    final long result;
+    final int priority;
+    IndexNode<K> left;
+    IndexNode<K> right;
+    // The greatest end of the ranges in the subtree
+    K maxTo;
+
+    IndexNode(K from, K to, long result) {
+      this.range = new Range<>(from, to);
+      this.result = result;
+      this.priority = ThreadLocalRandom.current().nextInt();
+      this.maxTo = to;
+    }
+
+    void update() {
+      maxTo = range.to;
+      if (left != null && left.maxTo.compareTo(maxTo) > 0) {
+        maxTo = left.maxTo;
+      }
+      if (right != null && right.maxTo.compareTo(maxTo) > 0) {
+        maxTo = right.maxTo;
+      }
+    }
+  }
+}
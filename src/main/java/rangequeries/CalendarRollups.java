@@ -0,0 +1,102 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import common.Date;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Companion index of the operations history, which keeps totals of amounts
+ * per day, per month and per year. Every write updates one total of each
+ * level.
+ * <p>
+ * Range {@code [from, to]} is split into days before the first full month,
+ * full months before the first full year, full years, full months after
+ * the last full year and days after the last full month. So a report reads
+ * at most 2 * (30 + 11) totals plus one total per year, regardless of
+ * the number of operations in the range.
+ * <p>
+ * Totals are kept in hash maps, so only days, months and years having
+ * operations take memory.
+ */
+public class CalendarRollups {
+  private final Map<Long, Long> dayTotals;
+  private final Map<Integer, Long> monthTotals;
+  private final Map<Integer, Long> yearTotals;
+
+  public CalendarRollups() {
+    this.dayTotals = new HashMap<>();
+    this.monthTotals = new HashMap<>();
+    this.yearTotals = new HashMap<>();
+  }
+
+  /**
+   * Adds {@code amount} to the totals of the day, the month and the year
+   * of the {@code date}. Operation is cancelled by adding negated amount.
+   */
+  public void add(Date date, long amount) {
+    dayTotals.merge(date.toEpochDay(), amount, Long::sum);
+    monthTotals.merge(getMonthKey(date.getYear(), date.getMonth()), amount, Long::sum);
+    yearTotals.merge(date.getYear(), amount, Long::sum);
+  }
+
+  /**
+   * @return sum of amounts with dates in range {@code [from, to]}
+   */
+  public long sumRange(Date from, Date to) {
+    LocalDate first = LocalDate.of(from.getYear(), from.getMonth(), from.getDay());
+    LocalDate last = LocalDate.of(to.getYear(), to.getMonth(), to.getDay());
+    long sum = 0;
+
+    // Days of the partial months at the ends of the range
+    while (!first.isAfter(last) && !isFullMonth(first, first, last)) {
+      sum += dayTotals.getOrDefault(first.toEpochDay(), 0L);
+      first = first.plusDays(1);
+    }
+    while (!first.isAfter(last) && !isFullMonth(last, first, last)) {
+      sum += dayTotals.getOrDefault(last.toEpochDay(), 0L);
+      last = last.minusDays(1);
+    }
+
+    // Range consists of full months, months of the partial years are
+    // at the ends of it
+    while (!first.isAfter(last) && !isFullYear(first, first, last)) {
+      sum += monthTotals.getOrDefault(getMonthKey(first.getYear(), first.getMonthValue()), 0L);
+      first = first.plusMonths(1);
+    }
+    while (!first.isAfter(last) && !isFullYear(last, first, last)) {
+      sum += monthTotals.getOrDefault(getMonthKey(last.getYear(), last.getMonthValue()), 0L);
+      last = last.withDayOfMonth(1).minusDays(1);
+    }
+
+    for (; !first.isAfter(last); first = first.plusYears(1)) {
+      sum += yearTotals.getOrDefault(first.getYear(), 0L);
+    }
+    return sum;
+  }
+
+  private static int getMonthKey(int year, int month) {
+    return year * 12 + month - 1;
+  }
+
+  /**
+   * @return whether the whole month of the {@code date} is inside
+   *     of range {@code [first, last]}
+   */
+  private static boolean isFullMonth(LocalDate date, LocalDate first, LocalDate last) {
+    return !date.withDayOfMonth(1).isBefore(first)
+        && !date.withDayOfMonth(date.lengthOfMonth()).isAfter(last);
+  }
+
+  /**
+   * @return whether the whole year of the {@code date} is inside
+   *     of range {@code [first, last]}
+   */
+  private static boolean isFullYear(LocalDate date, LocalDate first, LocalDate last) {
+    return !date.withDayOfYear(1).isBefore(first)
+        && !date.withDayOfYear(date.lengthOfYear()).isAfter(last);
+  }
+}
@@ -0,0 +1,627 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Version of {@link LongIntRangeMap} with compressed leaves for keeping
+ * long histories in memory.
+ * <p>
+ * Leaf doesn't keep arrays of keys and values, but a single {@code byte[]}
+ * block: for every entry the difference from the previous key (the first
+ * key is kept in the leaf) and the value, both as varints (7 bits per byte),
+ * the value is zigzag-encoded, so small negative amounts are short too.
+ * Keys of a ledger are epoch days close to each other, so an entry takes
+ * a byte for the key and one to three bytes for the amount, instead of
+ * 12 bytes in {@link LongIntRangeMap} and a bucket, a value node and boxed
+ * key and value in {@link BTreeRangeMap}.
+ * <p>
+ * Leaves are decoded sequentially on scans. Insertion at the end of a leaf
+ * (the usual case for a ledger, which is written in order of dates) appends
+ * the entry to the block, insertion in the middle decodes and re-encodes
+ * the leaf. Blocks of the split leaves are allocated with the exact size,
+ * so only the last leaf has a spare space.
+ * <p>
+ * Inner nodes are the same as in {@link LongIntRangeMap}, including sums
+ * of the subtrees, so {@link #sumRange(long, long)} takes O(log n) time plus
+ * decoding of the two boundary leaves.
+ */
+public class CompressedLongIntRangeMap {
+  /**
+   * Returned by {@link #lookup(long)} if there is no such key.
+   */
+  public static final int NO_VALUE = LongIntRangeMap.NO_VALUE;
+  static final int DEFAULT_BRANCHING_FACTOR = 128;
+  private static final int MIN_BRANCHING_FACTOR = 4;
+  // Varint of a long key difference and of an int value
+  private static final int MAX_ENTRY_SIZE = 10 + 5;
+  private final int branchingFactor;
+  // Decoded entries of the leaf being modified
+  private final long[] decodedKeys;
+  private final int[] decodedValues;
+  private Node root;
+  private int size;
+
+  public CompressedLongIntRangeMap() {
+    this(DEFAULT_BRANCHING_FACTOR);
+  }
+
+  /**
+   * @param branchingFactor maximum number of children of the inner node
+   *                        and of entries of the leaf (at least 4)
+   */
+  public CompressedLongIntRangeMap(int branchingFactor) {
+    if (branchingFactor < MIN_BRANCHING_FACTOR) {
+      throw new IllegalArgumentException(
+          "branching factor must be at least " + MIN_BRANCHING_FACTOR
+      );
+    }
+
+    this.branchingFactor = branchingFactor;
+    this.decodedKeys = new long[branchingFactor];
+    this.decodedValues = new int[branchingFactor];
+    this.root = new LeafNode();
+    this.size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds entry after all entries with the same key.
+   */
+  public void add(long key, int value) {
+    Node newSibling = root.insert(key, value);
+
+    if (newSibling != null) {
+      /* Root has been split -> grow the tree */
+      InnerNode newRoot = new InnerNode();
+      newRoot.keys[0] = newSibling.getMinimumKey();
+      newRoot.children[0] = root;
+      newRoot.children[1] = newSibling;
+      newRoot.keysCount = 1;
+      newRoot.sum = root.sum + newSibling.sum;
+      root = newRoot;
+    }
+
+    size++;
+  }
+
+  public boolean contains(long key) {
+    return rangeCursor(key, key).next();
+  }
+
+  /**
+   * @return first added value for the {@code key} or {@link #NO_VALUE}
+   *     if there is no such key (use {@link #contains(long)} to distinguish
+   *     it from the stored {@code Integer.MIN_VALUE})
+   */
+  public int lookup(long key) {
+    Cursor cursor = rangeCursor(key, key);
+    return cursor.next() ? cursor.getValue() : NO_VALUE;
+  }
+
+  /**
+   * @return values with keys in range {@code [from, to]} in the order of keys
+   */
+  public int[] lookupRange(long from, long to) {
+    int[] result = new int[16];
+    int resultSize = 0;
+
+    Cursor cursor = rangeCursor(from, to);
+    while (cursor.next()) {
+      if (resultSize == result.length) {
+        result = Arrays.copyOf(result, resultSize * 2);
+      }
+      result[resultSize++] = cursor.getValue();
+    }
+
+    return Arrays.copyOf(result, resultSize);
+  }
+
+  /**
+   * @return cursor over entries with keys in range {@code [from, to]}
+   *     in the order of keys
+   */
+  public Cursor rangeCursor(long from, long to) {
+    return new Cursor(from, to);
+  }
+
+  /**
+   * Calls {@code visitor} for every entry with key in range {@code [from, to]}
+   * in the order of keys.
+   */
+  public void forEachInRange(long from, long to, LongIntRangeMap.EntryVisitor visitor) {
+    Cursor cursor = rangeCursor(from, to);
+    while (cursor.next()) {
+      visitor.visit(cursor.getKey(), cursor.getValue());
+    }
+  }
+
+  /**
+   * Sums values with keys in range {@code [from, to]} in O(log n).
+   */
+  public long sumRange(long from, long to) {
+    if (from > to) {
+      return 0;
+    }
+
+    return root.sumBefore(to, true) - root.sumBefore(from, false);
+  }
+
+  /**
+   * @return number of bytes taken by the encoded entries, including
+   *     the spare space of the blocks
+   */
+  long getEncodedSize() {
+    Node node = root;
+    while (node instanceof InnerNode) {
+      node = ((InnerNode) node).children[0];
+    }
+
+    long encodedSize = 0;
+    for (LeafNode leaf = (LeafNode) node; leaf != null; leaf = leaf.next) {
+      encodedSize += leaf.data.length;
+    }
+    return encodedSize;
+  }
+
+  /**
+   * @return number of the first {@code count} keys that are less than {@code key}
+   */
+  private static int lowerBound(long[] keys, int count, long key) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (keys[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return number of the first {@code count} keys that are not greater
+   *     than {@code key}
+   */
+  private static int upperBound(long[] keys, int count, long key) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (keys[middle] <= key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return leaf which may contain the first entry with the {@code key};
+   *     if it doesn't, the entry may only be at the start of the next leaf
+   */
+  private LeafNode findFirstLeaf(long key) {
+    Node node = root;
+    while (node instanceof InnerNode) {
+      InnerNode inner = (InnerNode) node;
+      node = inner.children[lowerBound(inner.keys, inner.keysCount, key)];
+    }
+
+    return (LeafNode) node;
+  }
+
+  /* Encoding */
+
+  /**
+   * @return number of bytes of the varint
+   */
+  private static int getVarLongSize(long value) {
+    int varLongSize = 1;
+    while ((value & ~0x7fL) != 0) {
+      value >>>= 7;
+      varLongSize++;
+    }
+    return varLongSize;
+  }
+
+  /**
+   * Writes {@code value} as unsigned varint: 7 bits per byte starting from
+   * the lowest ones, the highest bit of the byte is set if more bytes follow.
+   *
+   * @return offset after the written bytes
+   */
+  private static int writeVarLong(byte[] data, int offset, long value) {
+    while ((value & ~0x7fL) != 0) {
+      data[offset++] = (byte) (value | 0x80);
+      value >>>= 7;
+    }
+    data[offset++] = (byte) value;
+    return offset;
+  }
+
+  /**
+   * Zigzag encoding maps signed values to unsigned ones with small absolute
+   * values staying small: 0, -1, 1, -2... to 0, 1, 2, 3...
+   */
+  private static long encodeZigzag(int value) {
+    return ((value << 1) ^ (value >> 31)) & 0xffffffffL;
+  }
+
+  private static int decodeZigzag(long encoded) {
+    return (int) (encoded >>> 1) ^ -(int) (encoded & 1);
+  }
+
+  /**
+   * Sequential reader of the entries of a leaf.
+   */
+  private static final class EntryReader {
+    private byte[] data;
+    private int offset;
+    long key;
+    int value;
+
+    void reset(LeafNode leaf) {
+      data = leaf.data;
+      offset = 0;
+      key = leaf.firstKey;
+    }
+
+    void read() {
+      key += readVarLong();
+      value = decodeZigzag(readVarLong());
+    }
+
+    private long readVarLong() {
+      long result = 0;
+      int shift = 0;
+      byte current;
+      do {
+        current = data[offset++];
+        result |= (long) (current & 0x7f) << shift;
+        shift += 7;
+      } while (current < 0);
+      return result;
+    }
+  }
+
+  /**
+   * Lazy cursor over entries of a key range with primitive accessors, same
+   * as {@link LongIntRangeMap.Cursor}. Entries are decoded one by one.
+   */
+  public final class Cursor {
+    private final long to;
+    private final EntryReader reader;
+    private LeafNode leaf;
+    // Number of read entries of the leaf
+    private int index;
+    // First entry of the range has been read while looking for it
+    private boolean hasPendingEntry;
+    private boolean atEntry;
+
+    private Cursor(long from, long to) {
+      this.to = to;
+      this.reader = new EntryReader();
+      this.leaf = findFirstLeaf(from);
+      this.index = 0;
+      reader.reset(leaf);
+
+      while (readEntry()) {
+        if (reader.key >= from) {
+          hasPendingEntry = true;
+          break;
+        }
+      }
+    }
+
+    /**
+     * Moves cursor to the next entry of the range.
+     *
+     * @return {@code false} if there are no more entries
+     */
+    public boolean next() {
+      atEntry = false;
+      if (hasPendingEntry) {
+        hasPendingEntry = false;
+      } else if (!readEntry()) {
+        return false;
+      }
+
+      if (reader.key > to) {
+        leaf = null;
+        return false;
+      }
+
+      atEntry = true;
+      return true;
+    }
+
+    public long getKey() {
+      checkPosition();
+      return reader.key;
+    }
+
+    public int getValue() {
+      checkPosition();
+      return reader.value;
+    }
+
+    /**
+     * Reads the next entry, moving to the next leaf if necessary.
+     *
+     * @return {@code false} if there are no more entries
+     */
+    private boolean readEntry() {
+      if (leaf == null) {
+        return false;
+      }
+
+      while (index == leaf.keysCount) {
+        leaf = leaf.next;
+        if (leaf == null) {
+          return false;
+        }
+        reader.reset(leaf);
+        index = 0;
+      }
+
+      reader.read();
+      index++;
+      return true;
+    }
+
+    private void checkPosition() {
+      if (!atEntry) {
+        throw new NoSuchElementException("cursor is not at an entry");
+      }
+    }
+  }
+
+  /**
+   * Node of the B+tree. Key {@code i} of the inner node is the minimum key
+   * of the child {@code i + 1}, so all keys of the child {@code i} are not
+   * greater than it and all keys of the child {@code i + 1} are not less.
+   */
+  private abstract static class Node {
+    int keysCount;
+    long sum;
+
+    abstract long getMinimumKey();
+
+    /**
+     * Inserts entry into the subtree after all entries with the same key.
+     *
+     * @return new right sibling if the node has been split, otherwise {@code null}
+     */
+    abstract Node insert(long key, int value);
+
+    /**
+     * @return sum of values with keys less than {@code bound}
+     *     (or equal to it, if {@code inclusive})
+     */
+    abstract long sumBefore(long bound, boolean inclusive);
+  }
+
+  private final class InnerNode extends Node {
+    final long[] keys;
+    final Node[] children;
+
+    InnerNode() {
+      this.keys = new long[branchingFactor];
+      this.children = new Node[branchingFactor + 1];
+    }
+
+    @Override
+    long getMinimumKey() {
+      return children[0].getMinimumKey();
+    }
+
+    @Override
+    Node insert(long key, int value) {
+      int childIndex = upperBound(keys, keysCount, key);
+      Node newChild = children[childIndex].insert(key, value);
+      sum += value;
+
+      if (newChild == null) {
+        return null;
+      }
+
+      /* Child has been split -> insert new child right after it */
+
+      System.arraycopy(keys, childIndex, keys, childIndex + 1, keysCount - childIndex);
+      System.arraycopy(
+          children, childIndex + 1, children, childIndex + 2, keysCount - childIndex
+      );
+      keys[childIndex] = newChild.getMinimumKey();
+      children[childIndex + 1] = newChild;
+      keysCount++;
+
+      return keysCount >= branchingFactor ? split() : null;
+    }
+
+    /**
+     * Moves right half of keys and children into the new node.
+     *
+     * @return new right sibling
+     */
+    InnerNode split() {
+      int median = keysCount / 2;
+      InnerNode sibling = new InnerNode();
+
+      sibling.keysCount = keysCount - median - 1;
+      System.arraycopy(keys, median + 1, sibling.keys, 0, sibling.keysCount);
+      System.arraycopy(children, median + 1, sibling.children, 0, sibling.keysCount + 1);
+
+      Arrays.fill(children, median + 1, keysCount + 1, null);
+      keysCount = median;
+
+      for (int i = 0; i <= sibling.keysCount; i++) {
+        sibling.sum += sibling.children[i].sum;
+      }
+      sum -= sibling.sum;
+
+      return sibling;
+    }
+
+    @Override
+    long sumBefore(long bound, boolean inclusive) {
+      int childIndex = inclusive
+          ? upperBound(keys, keysCount, bound)
+          : lowerBound(keys, keysCount, bound);
+
+      long result = 0;
+      for (int i = 0; i < childIndex; i++) {
+        result += children[i].sum;
+      }
+      return result + children[childIndex].sumBefore(bound, inclusive);
+    }
+  }
+
+  /**
+   * Leaf with {@code keysCount} entries encoded in the first {@code length}
+   * bytes of the {@code data}.
+   */
+  private final class LeafNode extends Node {
+    long firstKey;
+    long lastKey;
+    byte[] data;
+    int length;
+    LeafNode next;
+
+    LeafNode() {
+      this.data = new byte[0];
+    }
+
+    @Override
+    long getMinimumKey() {
+      return firstKey;
+    }
+
+    @Override
+    Node insert(long key, int value) {
+      if (keysCount == 0 || key >= lastKey) {
+        append(key, value);
+      } else {
+        int count = decode();
+        int index = upperBound(decodedKeys, count, key);
+        System.arraycopy(decodedKeys, index, decodedKeys, index + 1, count - index);
+        System.arraycopy(decodedValues, index, decodedValues, index + 1, count - index);
+        decodedKeys[index] = key;
+        decodedValues[index] = value;
+        encode(0, count + 1);
+      }
+
+      return keysCount >= branchingFactor ? split() : null;
+    }
+
+    /**
+     * Appends entry with the greatest key to the block.
+     */
+    private void append(long key, int value) {
+      if (keysCount == 0) {
+        firstKey = key;
+        lastKey = key;
+      }
+
+      if (data.length - length < MAX_ENTRY_SIZE) {
+        data = Arrays.copyOf(data, Math.max(length + MAX_ENTRY_SIZE, length + (length >> 1)));
+      }
+      length = writeVarLong(data, length, key - lastKey);
+      length = writeVarLong(data, length, encodeZigzag(value));
+      lastKey = key;
+      keysCount++;
+      sum += value;
+    }
+
+    /**
+     * Decodes all entries into {@code decodedKeys} and {@code decodedValues}.
+     *
+     * @return number of entries
+     */
+    private int decode() {
+      EntryReader reader = new EntryReader();
+      reader.reset(this);
+      for (int i = 0; i < keysCount; i++) {
+        reader.read();
+        decodedKeys[i] = reader.key;
+        decodedValues[i] = reader.value;
+      }
+      return keysCount;
+    }
+
+    /**
+     * Replaces entries with the decoded ones in range {@code [from, to)},
+     * the block is allocated with the exact size.
+     */
+    private void encode(int from, int to) {
+      int encodedSize = 0;
+      for (int i = from; i < to; i++) {
+        long previousKey = i == from ? decodedKeys[from] : decodedKeys[i - 1];
+        encodedSize += getVarLongSize(decodedKeys[i] - previousKey);
+        encodedSize += getVarLongSize(encodeZigzag(decodedValues[i]));
+      }
+
+      data = new byte[encodedSize];
+      length = 0;
+      keysCount = 0;
+      sum = 0;
+      firstKey = decodedKeys[from];
+      lastKey = firstKey;
+      for (int i = from; i < to; i++) {
+        length = writeVarLong(data, length, decodedKeys[i] - lastKey);
+        length = writeVarLong(data, length, encodeZigzag(decodedValues[i]));
+        lastKey = decodedKeys[i];
+        keysCount++;
+        sum += decodedValues[i];
+      }
+    }
+
+    /**
+     * Moves right half of entries into the new leaf and links it right
+     * after this leaf.
+     *
+     * @return new right sibling
+     */
+    LeafNode split() {
+      int count = decode();
+      int middle = count / 2;
+      LeafNode sibling = new LeafNode();
+
+      sibling.encode(middle, count);
+      encode(0, middle);
+
+      sibling.next = next;
+      next = sibling;
+
+      return sibling;
+    }
+
+    @Override
+    long sumBefore(long bound, boolean inclusive) {
+      EntryReader reader = new EntryReader();
+      reader.reset(this);
+
+      long result = 0;
+      for (int i = 0; i < keysCount; i++) {
+        reader.read();
+        if (inclusive ? reader.key > bound : reader.key >= bound) {
+          break;
+        }
+        result += reader.value;
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,757 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe {@link RangeMap} based on B+tree with optimistic lock coupling.
+ * <p>
+ * Every node has a {@link StampedLock}, which serves as its version counter.
+ * Readers never lock anything: they descend from the root reading nodes
+ * optimistically and validate the version of every node after reading it
+ * (and the version of the parent after reading the child pointer). If any
+ * version has changed, operation is restarted from the root. Writers
+ * descend the same way and lock only the nodes they modify by upgrading
+ * the optimistic stamps: the leaf for inserts and removals, or a full node
+ * with its parent for splits. Full nodes are split on the way down, so a
+ * split never propagates upwards and parent always has room for the new child.
+ * <p>
+ * Removal doesn't rebalance the tree, leaves may become empty. Keys are never
+ * moved to the left (only splits move keys into the new right sibling), so
+ * range scans walk the leaves forward reading one leaf at a time, without
+ * restarting from the root.
+ * <p>
+ * Point operations are linearizable. Range lookups, cursors and navigation
+ * methods are weakly consistent: they see every entry that is present during
+ * the whole operation and may or may not see entries added or removed
+ * concurrently.
+ *
+ * @param <K> type of the key
+ * @param <V> type of the value
+ */
+public class ConcurrentBTreeRangeMap<K extends Comparable<K>, V> implements RangeMap<K, V> {
+  private static final int MIN_BRANCHING_FACTOR = 4;
+  private static final Restart RESTART = new Restart();
+  private final int branchingFactor;
+  private final LongAdder size;
+  private volatile Node root;
+
+  public ConcurrentBTreeRangeMap() {
+    this(BTreeRangeMap.DEFAULT_BRANCHING_FACTOR);
+  }
+
+  /**
+   * @param branchingFactor maximum number of children of the inner node
+   *                        (at least 4)
+   */
+  public ConcurrentBTreeRangeMap(int branchingFactor) {
+    if (branchingFactor < MIN_BRANCHING_FACTOR) {
+      throw new IllegalArgumentException(
+          "branching factor must be at least " + MIN_BRANCHING_FACTOR
+      );
+    }
+
+    this.branchingFactor = branchingFactor;
+    this.size = new LongAdder();
+    this.root = new LeafNode();
+  }
+
+  @Override
+  public int size() {
+    return size.intValue();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size.sum() == 0;
+  }
+
+  @Override
+  public void add(K key, V value) {
+    while (true) {
+      try {
+        tryAdd(key, value);
+        size.increment();
+        return;
+      } catch (Restart e) {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  /**
+   * Removes the first value of the {@code key}. The tree is not rebalanced.
+   *
+   * @return removed value or {@code null} if there is no such key
+   */
+  @Override
+  public V remove(K key) {
+    V removed = retry(() -> tryRemove(key));
+    if (removed != null) {
+      size.decrement();
+    }
+    return removed;
+  }
+
+  @Override
+  public boolean contains(K key) {
+    return retry(() -> lookupValues(key)) != null;
+  }
+
+  @Override
+  public V lookup(K key) {
+    Object[] values = retry(() -> lookupValues(key));
+    return values == null ? null : getValue(values, 0);
+  }
+
+  @Override
+  public List<V> lookupRange(K from, K to) {
+    List<V> lookupResult = new LinkedList<>();
+    forEachInRange(from, to, (key, value) -> lookupResult.add(value));
+    return lookupResult;
+  }
+
+  @Override
+  public RangeCursor<K, V> rangeCursor(K from, K to) {
+    return new Cursor(from, to, true);
+  }
+
+  @Override
+  public K ceilingKey(K key) {
+    return findHigherKey(key, true);
+  }
+
+  @Override
+  public K floorKey(K key) {
+    return retry(() -> findLowerKeyFromRoot(key, true));
+  }
+
+  @Override
+  public K higherKey(K key) {
+    return findHigherKey(key, false);
+  }
+
+  @Override
+  public K lowerKey(K key) {
+    return retry(() -> findLowerKeyFromRoot(key, false));
+  }
+
+  /**
+   * Runs {@code operation} until it completes without {@link #RESTART}.
+   */
+  private static <T> T retry(Supplier<T> operation) {
+    while (true) {
+      try {
+        return operation.get();
+      } catch (Restart e) {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  /**
+   * @return optimistic stamp of the node
+   *
+   * @throws Restart if node is locked
+   */
+  private static long readStamp(ConcurrentBTreeRangeMap<?, ?>.Node node) {
+    long stamp = node.lock.tryOptimisticRead();
+    if (stamp == 0) {
+      throw RESTART;
+    }
+    return stamp;
+  }
+
+  /**
+   * @throws Restart if node has been modified since {@code stamp} was taken
+   */
+  private static void validate(ConcurrentBTreeRangeMap<?, ?>.Node node, long stamp) {
+    if (!node.lock.validate(stamp)) {
+      throw RESTART;
+    }
+  }
+
+  /**
+   * Exception thrown while reading a node optimistically may be caused by
+   * concurrent modification (e.g. a key shifted out of its place), which
+   * means the operation must be restarted. Otherwise it is a real exception.
+   */
+  private static RuntimeException restartIfModified(
+      ConcurrentBTreeRangeMap<?, ?>.Node node,
+      long stamp,
+      RuntimeException exception
+  ) {
+    validate(node, stamp);
+    return exception;
+  }
+
+  private static int search(Object[] keys, int count, Object key) {
+    return Arrays.binarySearch(keys, 0, count, key);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <V> V getValue(Object[] values, int index) {
+    return (V) values[index];
+  }
+
+  private K[] createKeysArray() {
+    // K is erased to Comparable
+    return newArray(new Comparable<?>[branchingFactor - 1]);
+  }
+
+  /**
+   * Arrays of type parameters and of the inner classes can't be created
+   * directly, so they are created with the erased or wildcard element type
+   * and cast here.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> T[] newArray(Object[] erasedArray) {
+    return (T[]) erasedArray;
+  }
+
+  /**
+   * @return root with its optimistic stamp in {@code stamp[0]}
+   */
+  private Node readRoot(long[] stamp) {
+    Node node = root;
+    stamp[0] = readStamp(node);
+    if (node != root) {
+      // Root has been split before the stamp was taken
+      throw RESTART;
+    }
+    return node;
+  }
+
+  /**
+   * Reads child of the {@code parent}, which may contain the {@code key},
+   * and takes its stamp. Parent is validated after that, so the child is
+   * guaranteed to be the right one at the moment the stamp was taken.
+   *
+   * @return child with its optimistic stamp in {@code stamp[0]}
+   */
+  private Node readChild(InnerNode parent, long parentStamp, K key, long[] stamp) {
+    Node child;
+    try {
+      child = parent.children[parent.getChildIndex(key)];
+      stamp[0] = readStamp(child);
+    } catch (RuntimeException e) {
+      throw restartIfModified(parent, parentStamp, e);
+    }
+
+    validate(parent, parentStamp);
+    return child;
+  }
+
+  /**
+   * @return leaf which may contain the {@code key} with its optimistic stamp
+   *     in {@code stamp[0]}
+   */
+  private LeafNode findLeaf(K key, long[] stamp) {
+    Node node = readRoot(stamp);
+    while (node instanceof ConcurrentBTreeRangeMap.InnerNode) {
+      node = readChild((InnerNode) node, stamp[0], key, stamp);
+    }
+    return (LeafNode) node;
+  }
+
+  private Object[] lookupValues(K key) {
+    long[] stamp = new long[1];
+    LeafNode leaf = findLeaf(key, stamp);
+
+    Object[] values;
+    try {
+      int index = search(leaf.keys, leaf.keysCount, key);
+      values = index >= 0 ? leaf.values[index] : null;
+    } catch (RuntimeException e) {
+      throw restartIfModified(leaf, stamp[0], e);
+    }
+
+    validate(leaf, stamp[0]);
+    return values;
+  }
+
+  private void tryAdd(K key, V value) {
+    long[] stamp = new long[1];
+    Node node = readRoot(stamp);
+    InnerNode parent = null;
+    long parentStamp = 0;
+
+    while (true) {
+      if (node.keysCount == branchingFactor - 1) {
+        // Stamps are validated by the split, so the full node is real
+        splitFullNode(parent, parentStamp, node, stamp[0]);
+        throw RESTART;
+      }
+
+      if (node instanceof ConcurrentBTreeRangeMap.LeafNode) {
+        long writeStamp = node.lock.tryConvertToWriteLock(stamp[0]);
+        if (writeStamp == 0) {
+          throw RESTART;
+        }
+
+        try {
+          ((LeafNode) node).insert(key, value);
+        } finally {
+          node.lock.unlockWrite(writeStamp);
+        }
+        return;
+      }
+
+      parent = (InnerNode) node;
+      parentStamp = stamp[0];
+      node = readChild(parent, parentStamp, key, stamp);
+    }
+  }
+
+  /**
+   * Locks full {@code node} and its {@code parent} (if node is not the root)
+   * and splits the node. Parent is known to be not full, since full nodes
+   * are split on the way down.
+   *
+   * @throws Restart if any of the nodes has been modified since its stamp
+   *                 was taken
+   */
+  private void splitFullNode(InnerNode parent, long parentStamp, Node node, long stamp) {
+    long parentWriteStamp = 0;
+    if (parent != null) {
+      parentWriteStamp = parent.lock.tryConvertToWriteLock(parentStamp);
+      if (parentWriteStamp == 0) {
+        throw RESTART;
+      }
+    }
+
+    long writeStamp = node.lock.tryConvertToWriteLock(stamp);
+    if (writeStamp == 0) {
+      if (parent != null) {
+        parent.lock.unlockWrite(parentWriteStamp);
+      }
+      throw RESTART;
+    }
+
+    try {
+      K separator = node.keys[node.keysCount / 2];
+      Node sibling = node.split();
+
+      if (parent == null) {
+        /* Root has been split -> grow the tree */
+        InnerNode newRoot = new InnerNode();
+        newRoot.keys[0] = separator;
+        newRoot.children[0] = node;
+        newRoot.children[1] = sibling;
+        newRoot.keysCount = 1;
+        root = newRoot;
+      } else {
+        parent.insertChild(separator, sibling);
+      }
+    } finally {
+      node.lock.unlockWrite(writeStamp);
+      if (parent != null) {
+        parent.lock.unlockWrite(parentWriteStamp);
+      }
+    }
+  }
+
+  private V tryRemove(K key) {
+    long[] stamp = new long[1];
+    LeafNode leaf = findLeaf(key, stamp);
+
+    long writeStamp = leaf.lock.tryConvertToWriteLock(stamp[0]);
+    if (writeStamp == 0) {
+      throw RESTART;
+    }
+
+    try {
+      return leaf.removeFirst(key);
+    } finally {
+      leaf.lock.unlockWrite(writeStamp);
+    }
+  }
+
+  private K findHigherKey(K key, boolean inclusive) {
+    Cursor cursor = new Cursor(key, null, true);
+    while (cursor.next()) {
+      if (inclusive || cursor.getKey().compareTo(key) > 0) {
+        return cursor.getKey();
+      }
+    }
+    return null;
+  }
+
+  private K findLowerKeyFromRoot(K key, boolean inclusive) {
+    long[] stamp = new long[1];
+    Node node = readRoot(stamp);
+    return findLowerKey(node, stamp[0], key, inclusive);
+  }
+
+  /**
+   * Leaves are linked only forward and may be empty, so lower keys are found
+   * by descending from the root and going to the left children, until
+   * a non-empty one is found.
+   *
+   * @param key upper bound, {@code null} for the maximum key of the subtree
+   *
+   * @return the greatest key of the subtree less than {@code key} (or equal
+   *     to it, if {@code inclusive}) or {@code null} if there is no such key
+   */
+  private K findLowerKey(Node node, long stamp, K key, boolean inclusive) {
+    if (node instanceof ConcurrentBTreeRangeMap.LeafNode) {
+      K result;
+      try {
+        int count = node.keysCount;
+        int index = key == null ? -count - 1 : search(node.keys, count, key);
+        if (index >= 0 && inclusive) {
+          result = node.keys[index];
+        } else {
+          int lowerIndex = (index >= 0 ? index : -index - 1) - 1;
+          result = lowerIndex >= 0 ? node.keys[lowerIndex] : null;
+        }
+      } catch (RuntimeException e) {
+        throw restartIfModified(node, stamp, e);
+      }
+
+      validate(node, stamp);
+      return result;
+    }
+
+    InnerNode inner = (InnerNode) node;
+    int childIndex;
+    try {
+      int count = inner.keysCount;
+      int index = key == null ? -count - 1 : search(inner.keys, count, key);
+      childIndex = index >= 0 ? (inclusive ? index + 1 : index) : -index - 1;
+    } catch (RuntimeException e) {
+      throw restartIfModified(inner, stamp, e);
+    }
+
+    long[] childStamp = new long[1];
+    for (int i = childIndex; i >= 0; i--) {
+      Node child;
+      try {
+        child = inner.children[i];
+        childStamp[0] = readStamp(child);
+      } catch (RuntimeException e) {
+        throw restartIfModified(inner, stamp, e);
+      }
+      validate(inner, stamp);
+
+      // All keys of the previous children are less than the key
+      K result = findLowerKey(child, childStamp[0], i == childIndex ? key : null, inclusive);
+      if (result != null) {
+        return result;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Exception which means that a node has been modified while it was read,
+   * so operation must be restarted. It is thrown very often, so it is
+   * created once and has no stack trace.
+   */
+  private static final class Restart extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Restart() {
+      super(null, null, false, false);
+    }
+  }
+
+  /**
+   * Node of the B+tree. All fields are modified only under the write lock,
+   * and are read either under the optimistic stamp (which must be validated
+   * before the read data is trusted) or under the write lock.
+   * <p>
+   * Node is full when it has {@code branchingFactor - 1} keys.
+   */
+  private abstract class Node {
+    final StampedLock lock;
+    final K[] keys;
+    int keysCount;
+
+    Node() {
+      this.lock = new StampedLock();
+      this.keys = createKeysArray();
+    }
+
+    /**
+     * Moves right half of keys into the new node. Key
+     * {@code keys[keysCount / 2]} becomes separator of the nodes.
+     *
+     * @return new right sibling
+     */
+    abstract Node split();
+  }
+
+  private final class InnerNode extends Node {
+    final Node[] children;
+
+    InnerNode() {
+      super();
+      this.children = newArray(new ConcurrentBTreeRangeMap<?, ?>.Node[branchingFactor]);
+    }
+
+    /**
+     * @return index of the child, which subtree may contain the {@code key}
+     */
+    int getChildIndex(K key) {
+      int index = search(keys, keysCount, key);
+      return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Inserts {@code child} right after the child, which contains
+     * the {@code separator}.
+     */
+    void insertChild(K separator, Node child) {
+      int index = -search(keys, keysCount, separator) - 1;
+
+      System.arraycopy(keys, index, keys, index + 1, keysCount - index);
+      System.arraycopy(children, index + 1, children, index + 2, keysCount - index);
+      keys[index] = separator;
+      children[index + 1] = child;
+      keysCount++;
+    }
+
+    @Override
+    InnerNode split() {
+      int median = keysCount / 2;
+      InnerNode sibling = new InnerNode();
+
+      sibling.keysCount = keysCount - median - 1;
+      System.arraycopy(keys, median + 1, sibling.keys, 0, sibling.keysCount);
+      System.arraycopy(children, median + 1, sibling.children, 0, sibling.keysCount + 1);
+
+      Arrays.fill(keys, median, keysCount, null);
+      Arrays.fill(children, median + 1, keysCount + 1, null);
+      keysCount = median;
+
+      return sibling;
+    }
+  }
+
+  /**
+   * Leaf keeps values of every key in an array, which is never modified
+   * after publication (it is replaced on every change), so values can be
+   * read without holding any lock.
+   */
+  private final class LeafNode extends Node {
+    final Object[][] values;
+    LeafNode next;
+
+    LeafNode() {
+      super();
+      this.values = new Object[branchingFactor - 1][];
+    }
+
+    void insert(K key, V value) {
+      int index = search(keys, keysCount, key);
+
+      if (index >= 0) {
+        Object[] oldValues = values[index];
+        Object[] newValues = Arrays.copyOf(oldValues, oldValues.length + 1);
+        newValues[oldValues.length] = value;
+        values[index] = newValues;
+        return;
+      }
+
+      int insertionIndex = -index - 1;
+      System.arraycopy(
+          keys, insertionIndex, keys, insertionIndex + 1, keysCount - insertionIndex
+      );
+      System.arraycopy(
+          values, insertionIndex, values, insertionIndex + 1, keysCount - insertionIndex
+      );
+      keys[insertionIndex] = key;
+      values[insertionIndex] = new Object[] {value};
+      keysCount++;
+    }
+
+    /**
+     * @return removed value or {@code null} if there is no such key
+     */
+    V removeFirst(K key) {
+      int index = search(keys, keysCount, key);
+      if (index < 0) {
+        return null;
+      }
+
+      Object[] oldValues = values[index];
+      if (oldValues.length > 1) {
+        values[index] = Arrays.copyOfRange(oldValues, 1, oldValues.length);
+      } else {
+        System.arraycopy(keys, index + 1, keys, index, keysCount - index - 1);
+        System.arraycopy(values, index + 1, values, index, keysCount - index - 1);
+        keysCount--;
+        keys[keysCount] = null;
+        values[keysCount] = null;
+      }
+
+      return getValue(oldValues, 0);
+    }
+
+    @Override
+    LeafNode split() {
+      int middle = keysCount / 2;
+      LeafNode sibling = new LeafNode();
+
+      sibling.keysCount = keysCount - middle;
+      System.arraycopy(keys, middle, sibling.keys, 0, sibling.keysCount);
+      System.arraycopy(values, middle, sibling.values, 0, sibling.keysCount);
+
+      Arrays.fill(keys, middle, keysCount, null);
+      Arrays.fill(values, middle, keysCount, null);
+      keysCount = middle;
+
+      // Sibling is fully built before it becomes reachable
+      sibling.next = next;
+      next = sibling;
+
+      return sibling;
+    }
+  }
+
+  /**
+   * Cursor which copies entries of one leaf at a time into a buffer and then
+   * moves to the next leaf. Keys are never moved to the left, so the next
+   * leaf read together with the copied entries contains all following keys.
+   */
+  private final class Cursor implements RangeCursor<K, V> {
+    private final K to;
+    private final boolean toInclusive;
+    private final K[] bufferKeys;
+    private final Object[][] bufferValues;
+    private int bufferSize;
+    private int index;
+    private int valueIndex;
+    // Bound of the keys that are still to be read
+    private K lastKey;
+    private boolean lastKeyInclusive;
+    private LeafNode nextLeaf;
+    private boolean finished;
+
+    /**
+     * @param to upper bound of the keys, {@code null} for unbounded range
+     */
+    Cursor(K from, K to, boolean toInclusive) {
+      this.to = to;
+      this.toInclusive = toInclusive;
+      this.bufferKeys = createKeysArray();
+      this.bufferValues = new Object[branchingFactor - 1][];
+      this.lastKey = from;
+      this.lastKeyInclusive = true;
+      this.nextLeaf = retry(() -> findLeaf(from, new long[1]));
+      this.index = -1;
+    }
+
+    @Override
+    public boolean next() {
+      if (index >= 0 && index < bufferSize && valueIndex + 1 < bufferValues[index].length) {
+        valueIndex++;
+        return true;
+      }
+
+      index++;
+      while (index >= bufferSize) {
+        if (finished || nextLeaf == null) {
+          finished = true;
+          bufferSize = 0;
+          return false;
+        }
+        loadNextLeaf();
+      }
+
+      valueIndex = 0;
+      return true;
+    }
+
+    /**
+     * Copies entries of the next leaf with keys after the {@code lastKey}
+     * into the buffer.
+     */
+    private void loadNextLeaf() {
+      LeafNode leaf = nextLeaf;
+
+      while (true) {
+        long stamp = leaf.lock.tryOptimisticRead();
+        if (stamp == 0) {
+          Thread.onSpinWait();
+          continue;
+        }
+
+        try {
+          copyEntries(leaf);
+        } catch (RuntimeException e) {
+          if (leaf.lock.validate(stamp)) {
+            throw e;
+          }
+          continue;
+        }
+
+        if (leaf.lock.validate(stamp)) {
+          break;
+        }
+      }
+
+      index = 0;
+      if (bufferSize > 0) {
+        lastKey = bufferKeys[bufferSize - 1];
+        lastKeyInclusive = false;
+      }
+    }
+
+    private void copyEntries(LeafNode leaf) {
+      int count = leaf.keysCount;
+      int first = search(leaf.keys, count, lastKey);
+      if (first < 0) {
+        first = -first - 1;
+      } else if (!lastKeyInclusive) {
+        first++;
+      }
+
+      bufferSize = 0;
+      finished = false;
+      for (int i = first; i < count; i++) {
+        K key = leaf.keys[i];
+        if (to != null) {
+          int order = key.compareTo(to);
+          if (order > 0 || (order == 0 && !toInclusive)) {
+            finished = true;
+            break;
+          }
+        }
+
+        bufferKeys[bufferSize] = key;
+        bufferValues[bufferSize] = leaf.values[i];
+        bufferSize++;
+      }
+      nextLeaf = leaf.next;
+    }
+
+    @Override
+    public K getKey() {
+      checkPosition();
+      return bufferKeys[index];
+    }
+
+    @Override
+    public V getValue() {
+      checkPosition();
+      return ConcurrentBTreeRangeMap.getValue(bufferValues[index], valueIndex);
+    }
+
+    private void checkPosition() {
+      if (index < 0 || index >= bufferSize) {
+        throw new NoSuchElementException("cursor is not at an entry");
+      }
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+/**
+ * Fenwick (binary indexed) tree of sums over positions {@code [0, size)}.
+ * Both point updates and range sums take O(log n), and the tree is a single
+ * flat array, so it is the cheapest structure when all keys are known
+ * in advance and can be compressed into positions.
+ */
+public class FenwickTree {
+  // Element i (1-based) keeps the sum of positions (i - lowbit(i), i]
+  private final long[] tree;
+
+  public FenwickTree(int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("size must not be negative");
+    }
+    this.tree = new long[size + 1];
+  }
+
+  public int size() {
+    return tree.length - 1;
+  }
+
+  /**
+   * Adds {@code delta} to the {@code position}.
+   */
+  public void add(int position, long delta) {
+    checkPosition(position);
+    for (int i = position + 1; i < tree.length; i += i & -i) {
+      tree[i] += delta;
+    }
+  }
+
+  /**
+   * @return sum of the first {@code count} positions
+   */
+  public long prefixSum(int count) {
+    if (count < 0 || count > size()) {
+      throw new IndexOutOfBoundsException("count " + count + " is out of [0, " + size() + "]");
+    }
+
+    long sum = 0;
+    for (int i = count; i > 0; i -= i & -i) {
+      sum += tree[i];
+    }
+    return sum;
+  }
+
+  /**
+   * @return sum of positions in range {@code [from, to]}, {@code 0} if
+   *     {@code from > to}
+   */
+  public long sumRange(int from, int to) {
+    if (from > to) {
+      return 0;
+    }
+    checkPosition(from);
+    checkPosition(to);
+    return prefixSum(to + 1) - prefixSum(from);
+  }
+
+  private void checkPosition(int position) {
+    if (position < 0 || position >= size()) {
+      throw new IndexOutOfBoundsException(
+          "position " + position + " is out of [0, " + size() + ")"
+      );
+    }
+  }
+}
@@ -0,0 +1,33 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+/**
+ * {@link Aggregation} specialized for {@code long} aggregates, which
+ * are stored and combined without boxing.
+ *
+ * @param <V> type of the value
+ */
+public interface LongAggregation<V> extends Aggregation<V, Long> {
+  long identityAsLong();
+
+  long liftAsLong(V value);
+
+  long combineAsLong(long left, long right);
+
+  @Override
+  default Long identity() {
+    return identityAsLong();
+  }
+
+  @Override
+  default Long lift(V value) {
+    return liftAsLong(value);
+  }
+
+  @Override
+  default Long combine(Long left, Long right) {
+    return combineAsLong(left, right);
+  }
+}
@@ -0,0 +1,479 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Range map from {@code long} keys (e.g. epoch days or timestamps) to
+ * {@code int} values, specialized for primitives.
+ * <p>
+ * It is the same B+tree as {@link BTreeRangeMap}, but keys and values are kept
+ * in primitive arrays of the nodes, so there are no boxed keys, values or
+ * buckets per entry: a full leaf with the default branching factor spends
+ * about 12 bytes per entry. Entries with equal keys are stored next to each
+ * other in the order of insertion and may span several leaves.
+ * <p>
+ * Every node keeps the sum of values in its subtree, so
+ * {@link #sumRange(long, long)} takes O(log n) time.
+ */
+public class LongIntRangeMap {
+  /**
+   * Returned by {@link #lookup(long)} if there is no such key.
+   */
+  public static final int NO_VALUE = Integer.MIN_VALUE;
+  static final int DEFAULT_BRANCHING_FACTOR = 64;
+  private static final int MIN_BRANCHING_FACTOR = 4;
+  private final int branchingFactor;
+  private Node root;
+  private int size;
+
+  public LongIntRangeMap() {
+    this(DEFAULT_BRANCHING_FACTOR);
+  }
+
+  /**
+   * @param branchingFactor maximum number of children of the inner node
+   *                        (at least 4)
+   */
+  public LongIntRangeMap(int branchingFactor) {
+    if (branchingFactor < MIN_BRANCHING_FACTOR) {
+      throw new IllegalArgumentException(
+          "branching factor must be at least " + MIN_BRANCHING_FACTOR
+      );
+    }
+
+    this.branchingFactor = branchingFactor;
+    this.root = new LeafNode(branchingFactor);
+    this.size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds entry after all entries with the same key.
+   */
+  public void add(long key, int value) {
+    Node newSibling = root.insert(key, value);
+
+    if (newSibling != null) {
+      /* Root has been split -> grow the tree */
+      InnerNode newRoot = new InnerNode(branchingFactor);
+      newRoot.keys[0] = newSibling.getMinimumKey();
+      newRoot.children[0] = root;
+      newRoot.children[1] = newSibling;
+      newRoot.keysCount = 1;
+      newRoot.sum = root.sum + newSibling.sum;
+      root = newRoot;
+    }
+
+    size++;
+  }
+
+  public boolean contains(long key) {
+    LeafNode leaf = findFirstLeaf(key);
+    int index = lowerBound(leaf.keys, leaf.keysCount, key);
+    if (index == leaf.keysCount) {
+      // Key may only be at the start of the next leaf
+      leaf = leaf.next;
+      index = 0;
+    }
+
+    return leaf != null && index < leaf.keysCount && leaf.keys[index] == key;
+  }
+
+  /**
+   * @return first added value for the {@code key} or {@link #NO_VALUE}
+   *     if there is no such key (use {@link #contains(long)} to distinguish
+   *     it from the stored {@code Integer.MIN_VALUE})
+   */
+  public int lookup(long key) {
+    LeafNode leaf = findFirstLeaf(key);
+    int index = lowerBound(leaf.keys, leaf.keysCount, key);
+    if (index == leaf.keysCount) {
+      leaf = leaf.next;
+      index = 0;
+    }
+
+    if (leaf != null && index < leaf.keysCount && leaf.keys[index] == key) {
+      return leaf.values[index];
+    }
+    return NO_VALUE;
+  }
+
+  /**
+   * @return values with keys in range {@code [from, to]} in the order of keys
+   */
+  public int[] lookupRange(long from, long to) {
+    int[] result = new int[16];
+    int resultSize = 0;
+
+    if (from > to) {
+      return new int[0];
+    }
+
+    LeafNode leaf = findFirstLeaf(from);
+    int index = lowerBound(leaf.keys, leaf.keysCount, from);
+
+    while (leaf != null) {
+      for (; index < leaf.keysCount; index++) {
+        if (leaf.keys[index] > to) {
+          return Arrays.copyOf(result, resultSize);
+        }
+        if (resultSize == result.length) {
+          result = Arrays.copyOf(result, resultSize * 2);
+        }
+        result[resultSize++] = leaf.values[index];
+      }
+
+      leaf = leaf.next;
+      index = 0;
+    }
+
+    return Arrays.copyOf(result, resultSize);
+  }
+
+  /**
+   * @return cursor over entries with keys in range {@code [from, to]}
+   *     in the order of keys
+   */
+  public Cursor rangeCursor(long from, long to) {
+    return new Cursor(from, to);
+  }
+
+  /**
+   * Calls {@code visitor} for every entry with key in range {@code [from, to]}
+   * in the order of keys without any allocations.
+   */
+  public void forEachInRange(long from, long to, EntryVisitor visitor) {
+    LeafNode leaf = findFirstLeaf(from);
+    int index = lowerBound(leaf.keys, leaf.keysCount, from);
+
+    while (leaf != null) {
+      for (; index < leaf.keysCount; index++) {
+        if (leaf.keys[index] > to) {
+          return;
+        }
+        visitor.visit(leaf.keys[index], leaf.values[index]);
+      }
+
+      leaf = leaf.next;
+      index = 0;
+    }
+  }
+
+  /**
+   * Sums values with keys in range {@code [from, to]} in O(log n).
+   */
+  public long sumRange(long from, long to) {
+    if (from > to) {
+      return 0;
+    }
+
+    return root.sumBefore(to, true) - root.sumBefore(from, false);
+  }
+
+  /**
+   * @return number of the first {@code count} keys that are less than {@code key}
+   */
+  private static int lowerBound(long[] keys, int count, long key) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (keys[middle] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return number of the first {@code count} keys that are not greater
+   *     than {@code key}
+   */
+  private static int upperBound(long[] keys, int count, long key) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (keys[middle] <= key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return leaf which may contain the first entry with the {@code key};
+   *     if it doesn't, the entry may only be at the start of the next leaf
+   */
+  private LeafNode findFirstLeaf(long key) {
+    Node node = root;
+    while (node instanceof InnerNode) {
+      InnerNode inner = (InnerNode) node;
+      node = inner.children[lowerBound(inner.keys, inner.keysCount, key)];
+    }
+
+    return (LeafNode) node;
+  }
+
+  /**
+   * Visitor of entries for {@link #forEachInRange(long, long, EntryVisitor)}.
+   */
+  @FunctionalInterface
+  public interface EntryVisitor {
+    void visit(long key, int value);
+  }
+
+  /**
+   * Lazy cursor over entries of a key range with primitive accessors, same
+   * as {@link RangeCursor}. Cursor is positioned before the first entry,
+   * map must not be modified while the cursor is in use.
+   */
+  public final class Cursor {
+    private final long to;
+    private LeafNode leaf;
+    private int index;
+    private boolean atEntry;
+
+    private Cursor(long from, long to) {
+      this.to = to;
+      this.leaf = findFirstLeaf(from);
+      this.index = lowerBound(leaf.keys, leaf.keysCount, from) - 1;
+    }
+
+    /**
+     * Moves cursor to the next entry of the range.
+     *
+     * @return {@code false} if there are no more entries
+     */
+    public boolean next() {
+      atEntry = false;
+      if (leaf == null) {
+        return false;
+      }
+
+      index++;
+      while (index == leaf.keysCount) {
+        leaf = leaf.next;
+        index = 0;
+        if (leaf == null) {
+          return false;
+        }
+      }
+
+      if (leaf.keys[index] > to) {
+        leaf = null;
+        return false;
+      }
+
+      atEntry = true;
+      return true;
+    }
+
+    public long getKey() {
+      checkPosition();
+      return leaf.keys[index];
+    }
+
+    public int getValue() {
+      checkPosition();
+      return leaf.values[index];
+    }
+
+    private void checkPosition() {
+      if (!atEntry) {
+        throw new NoSuchElementException("cursor is not at an entry");
+      }
+    }
+  }
+
+  /**
+   * Node of the B+tree. Key {@code i} of the inner node is the minimum key
+   * of the child {@code i + 1}, so all keys of the child {@code i} are not
+   * greater than it and all keys of the child {@code i + 1} are not less.
+   */
+  private abstract static class Node {
+    final long[] keys;
+    int keysCount;
+    long sum;
+
+    Node(int branchingFactor) {
+      this.keys = new long[branchingFactor];
+    }
+
+    boolean isOverflown() {
+      return keysCount >= keys.length;
+    }
+
+    abstract long getMinimumKey();
+
+    /**
+     * Inserts entry into the subtree after all entries with the same key.
+     *
+     * @return new right sibling if the node has been split, otherwise {@code null}
+     */
+    abstract Node insert(long key, int value);
+
+    /**
+     * @return sum of values with keys less than {@code bound}
+     *     (or equal to it, if {@code inclusive})
+     */
+    abstract long sumBefore(long bound, boolean inclusive);
+  }
+
+  private static final class InnerNode extends Node {
+    final Node[] children;
+
+    InnerNode(int branchingFactor) {
+      super(branchingFactor);
+      this.children = new Node[branchingFactor + 1];
+    }
+
+    @Override
+    long getMinimumKey() {
+      return children[0].getMinimumKey();
+    }
+
+    @Override
+    Node insert(long key, int value) {
+      int childIndex = upperBound(keys, keysCount, key);
+      Node newChild = children[childIndex].insert(key, value);
+      sum += value;
+
+      if (newChild == null) {
+        return null;
+      }
+
+      /* Child has been split -> insert new child right after it */
+
+      System.arraycopy(keys, childIndex, keys, childIndex + 1, keysCount - childIndex);
+      System.arraycopy(
+          children, childIndex + 1, children, childIndex + 2, keysCount - childIndex
+      );
+      keys[childIndex] = newChild.getMinimumKey();
+      children[childIndex + 1] = newChild;
+      keysCount++;
+
+      return isOverflown() ? split() : null;
+    }
+
+    /**
+     * Moves right half of keys and children into the new node.
+     *
+     * @return new right sibling
+     */
+    InnerNode split() {
+      int median = keysCount / 2;
+      InnerNode sibling = new InnerNode(keys.length);
+
+      sibling.keysCount = keysCount - median - 1;
+      System.arraycopy(keys, median + 1, sibling.keys, 0, sibling.keysCount);
+      System.arraycopy(children, median + 1, sibling.children, 0, sibling.keysCount + 1);
+
+      Arrays.fill(children, median + 1, keysCount + 1, null);
+      keysCount = median;
+
+      for (int i = 0; i <= sibling.keysCount; i++) {
+        sibling.sum += sibling.children[i].sum;
+      }
+      sum -= sibling.sum;
+
+      return sibling;
+    }
+
+    @Override
+    long sumBefore(long bound, boolean inclusive) {
+      int childIndex = inclusive
+          ? upperBound(keys, keysCount, bound)
+          : lowerBound(keys, keysCount, bound);
+
+      long result = 0;
+      for (int i = 0; i < childIndex; i++) {
+        result += children[i].sum;
+      }
+      return result + children[childIndex].sumBefore(bound, inclusive);
+    }
+  }
+
+  private static final class LeafNode extends Node {
+    final int[] values;
+    LeafNode next;
+
+    LeafNode(int branchingFactor) {
+      super(branchingFactor);
+      this.values = new int[branchingFactor];
+    }
+
+    @Override
+    long getMinimumKey() {
+      return keys[0];
+    }
+
+    @Override
+    Node insert(long key, int value) {
+      int index = upperBound(keys, keysCount, key);
+
+      System.arraycopy(keys, index, keys, index + 1, keysCount - index);
+      System.arraycopy(values, index, values, index + 1, keysCount - index);
+      keys[index] = key;
+      values[index] = value;
+      keysCount++;
+      sum += value;
+
+      return isOverflown() ? split() : null;
+    }
+
+    /**
+     * Moves right half of entries into the new leaf and links it right
+     * after this leaf.
+     *
+     * @return new right sibling
+     */
+    LeafNode split() {
+      int middle = keysCount / 2;
+      LeafNode sibling = new LeafNode(keys.length);
+
+      sibling.keysCount = keysCount - middle;
+      System.arraycopy(keys, middle, sibling.keys, 0, sibling.keysCount);
+      System.arraycopy(values, middle, sibling.values, 0, sibling.keysCount);
+      keysCount = middle;
+
+      for (int i = 0; i < sibling.keysCount; i++) {
+        sibling.sum += sibling.values[i];
+      }
+      sum -= sibling.sum;
+
+      sibling.next = next;
+      next = sibling;
+
+      return sibling;
+    }
+
+    @Override
+    long sumBefore(long bound, boolean inclusive) {
+      int count = inclusive
+          ? upperBound(keys, keysCount, bound)
+          : lowerBound(keys, keysCount, bound);
+
+      long result = 0;
+      for (int i = 0; i < count; i++) {
+        result += values[i];
+      }
+      return result;
+    }
+  }
+}
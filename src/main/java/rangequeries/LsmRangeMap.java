@@ -0,0 +1,1213 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log-structured merge tree of long keys and int values for write-heavy
+ * ledgers, which is kept in a directory.
+ * <p>
+ * Writes go to the memtable: in-memory {@link BTreeRangeMap}. When it is
+ * full, it is written as an immutable sorted run file, so writes never
+ * modify files in place. Runs are ordered from the oldest to the newest,
+ * and reads merge the runs and the memtable (k-way merge of sorted sources).
+ * <p>
+ * Run consists of blocks of {@code BLOCK_RECORDS} records (key and value).
+ * The first and the last keys and the sum of every block are kept in memory
+ * as a sparse index, so a read of a key reads a single block per run, and
+ * {@link #sumRange(Long, Long)} reads only the two boundary blocks per run.
+ * <p>
+ * Since runs are immutable, {@link #remove(Long)} of a value, which is kept
+ * in a run, writes a tombstone: number of the oldest values of the key
+ * in the older runs, which are removed. Tombstones are written together with
+ * the values, and are applied while merging.
+ * <p>
+ * Runs are merged into bigger ones by a background thread (size-tiered
+ * compaction): when there are {@code COMPACTION_THRESHOLD} runs, the newest
+ * runs of similar size are merged into one, which replaces them. Tombstones
+ * are dropped once they are merged with the values they remove. List of the live
+ * runs is kept in the manifest file, which is replaced atomically, so a crash
+ * during flush or compaction leaves either the old or the new runs.
+ * <p>
+ * Memtable is written only by {@link #flush()} and {@link #close()}, so
+ * it has to be paired with {@link WriteAheadLog} to survive a crash.
+ * Like {@link BTreeRangeMap}, map is not thread-safe: only compaction
+ * runs concurrently, and its result is installed by the next modification.
+ */
+public class LsmRangeMap implements RangeMap<Long, Integer>, Closeable {
+  static final int DEFAULT_MEMTABLE_SIZE = 1 << 16;
+  static final int BLOCK_RECORDS = 256;
+  static final int COMPACTION_THRESHOLD = 4;
+  private static final int MAGIC = 0x4c534d52;
+  private static final int RECORD_SIZE = 12;
+  private static final int BLOCK_SIZE = BLOCK_RECORDS * RECORD_SIZE;
+  // First key, last key and sum of the block
+  private static final int INDEX_ENTRY_SIZE = 24;
+  // Key and number of the removed values
+  private static final int TOMBSTONE_SIZE = 12;
+  // Magic, records per block, number of values, blocks and tombstones
+  private static final int HEADER_SIZE = 24;
+  private static final String MANIFEST = "MANIFEST";
+  private static final String RUN_PREFIX = "run-";
+
+  private final Path directory;
+  private final int memtableSize;
+  private final ExecutorService compactor;
+  private BTreeRangeMap<Long, Integer> memtable;
+  // Number of the oldest values removed from the runs by key
+  private TreeMap<Long, Integer> memtableTombstones;
+  private int memtableTombstonesCount;
+  // Runs from the oldest to the newest
+  private final List<Run> runs;
+  private long nextRunNumber;
+  private Future<Run> compaction;
+  private List<Run> compactedRuns;
+  private int size;
+  private boolean closed;
+
+  /**
+   * Opens existing map or creates a new one with the default memtable size.
+   */
+  public LsmRangeMap(Path directory) throws IOException {
+    this(directory, DEFAULT_MEMTABLE_SIZE);
+  }
+
+  /**
+   * Opens existing map or creates a new one.
+   *
+   * @param memtableSize number of values and tombstones in the memtable,
+   *                     at which it is written as a run
+   *
+   * @throws IOException if directory can't be read or contains broken runs
+   */
+  public LsmRangeMap(Path directory, int memtableSize) throws IOException {
+    if (memtableSize <= 0) {
+      throw new IllegalArgumentException("memtable size must be positive");
+    }
+
+    this.directory = Files.createDirectories(directory);
+    this.memtableSize = memtableSize;
+    this.runs = new ArrayList<>();
+    this.memtable = new BTreeRangeMap<>(Integer::longValue);
+    this.memtableTombstones = new TreeMap<>();
+
+    try {
+      openRuns();
+    } catch (IOException | RuntimeException e) {
+      closeRuns(runs);
+      throw e;
+    }
+
+    this.compactor = Executors.newSingleThreadExecutor(task -> {
+      Thread thread = new Thread(task, "lsm-compaction");
+      thread.setDaemon(true);
+      return thread;
+    });
+    maybeCompact();
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public void add(Long key, Integer value) {
+    checkOpen();
+    installCompaction();
+    memtable.add(key, value);
+    size++;
+    maybeFlush();
+  }
+
+  /**
+   * Removes the first (the oldest) value of the {@code key}. If it is kept
+   * in a run, tombstone is added to the memtable.
+   *
+   * @return removed value or {@code null} if there is no such key
+   */
+  @Override
+  public Integer remove(Long key) {
+    checkOpen();
+    installCompaction();
+
+    Merger merger = new Merger(createRunSources(runs, key, key));
+    int removedFromRuns = memtableTombstones.getOrDefault(key, 0);
+    if (merger.next() && merger.values.count > removedFromRuns) {
+      memtableTombstones.put(key, removedFromRuns + 1);
+      memtableTombstonesCount++;
+      size--;
+      int removed = merger.values.get(removedFromRuns);
+      maybeFlush();
+      return removed;
+    }
+
+    Integer removed = memtable.remove(key);
+    if (removed != null) {
+      size--;
+    }
+    return removed;
+  }
+
+  @Override
+  public boolean contains(Long key) {
+    return lookup(key) != null;
+  }
+
+  @Override
+  public Integer lookup(Long key) {
+    RangeCursor<Long, Integer> cursor = rangeCursor(key, key);
+    return cursor.next() ? cursor.getValue() : null;
+  }
+
+  @Override
+  public List<Integer> lookupRange(Long from, Long to) {
+    List<Integer> lookupResult = new ArrayList<>();
+    forEachInRange(from, to, (key, value) -> lookupResult.add(value));
+    return lookupResult;
+  }
+
+  /**
+   * Cursor reads one block of every run in the range at a time.
+   */
+  @Override
+  public RangeCursor<Long, Integer> rangeCursor(Long from, Long to) {
+    checkOpen();
+    return new MergeCursor(createMerger(from, to));
+  }
+
+  @Override
+  public Long ceilingKey(Long key) {
+    RangeCursor<Long, Integer> cursor = rangeCursor(key, Long.MAX_VALUE);
+    return cursor.next() ? cursor.getKey() : null;
+  }
+
+  /**
+   * Candidate key is the greatest floor key of the sources, it is skipped
+   * if all its values are removed by tombstones.
+   */
+  @Override
+  public Long floorKey(Long key) {
+    checkOpen();
+    long floor = key;
+
+    while (true) {
+      Long candidate = memtable.floorKey(floor);
+      for (Run run : runs) {
+        Long runCandidate = run.floorKey(floor);
+        if (candidate == null || runCandidate != null && runCandidate > candidate) {
+          candidate = runCandidate;
+        }
+      }
+
+      if (candidate == null || contains(candidate)) {
+        return candidate;
+      }
+      if (candidate == Long.MIN_VALUE) {
+        return null;
+      }
+      floor = candidate - 1;
+    }
+  }
+
+  @Override
+  public Long higherKey(Long key) {
+    return key == Long.MAX_VALUE ? null : ceilingKey(key + 1);
+  }
+
+  @Override
+  public Long lowerKey(Long key) {
+    return key == Long.MIN_VALUE ? null : floorKey(key - 1);
+  }
+
+  /**
+   * Sums values with keys in range {@code [from, to]}. Memtable is summed
+   * in O(log n), runs add up sums of the blocks inside of the range and scan
+   * only the boundary blocks. Then values removed by tombstones in the range
+   * are subtracted.
+   */
+  public long sumRange(Long from, Long to) {
+    checkOpen();
+    if (from > to) {
+      return 0;
+    }
+
+    long sum = memtable.sumRange(from, to);
+    TreeSet<Long> removedKeys = new TreeSet<>();
+    removedKeys.addAll(memtableTombstones.subMap(from, true, to, true).keySet());
+    for (Run run : runs) {
+      sum += run.sumRange(from, to);
+      run.collectTombstoneKeys(from, to, removedKeys);
+    }
+
+    for (long key : removedKeys) {
+      Merger merger = createMerger(key, key);
+      if (merger.next()) {
+        sum -= merger.removedSum;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Writes the memtable as a new run.
+   */
+  public void flush() throws IOException {
+    checkOpen();
+    installCompaction();
+    if (memtable.isEmpty() && memtableTombstones.isEmpty()) {
+      return;
+    }
+
+    Path path = directory.resolve(RUN_PREFIX + nextRunNumber++);
+    Source[] sources = {
+        new MemtableSource(memtable, memtableTombstones, Long.MIN_VALUE, Long.MAX_VALUE)
+    };
+    Run run = Run.write(path, new Merger(sources));
+    runs.add(run);
+    try {
+      writeManifest();
+    } catch (IOException e) {
+      runs.remove(run);
+      closeRuns(List.of(run));
+      Files.deleteIfExists(path);
+      throw e;
+    }
+
+    memtable = new BTreeRangeMap<>(Integer::longValue);
+    memtableTombstones = new TreeMap<>();
+    memtableTombstonesCount = 0;
+    maybeCompact();
+  }
+
+  /**
+   * Writes the memtable, waits for the compactions, including the one
+   * started by this flush, and closes the runs.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    try {
+      flush();
+      awaitCompaction();
+    } finally {
+      closed = true;
+      // Compaction is not interrupted, so it doesn't leave a half-written run
+      compactor.shutdown();
+      try {
+        compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      closeRuns(runs);
+    }
+  }
+
+  /**
+   * Waits for the running compaction and installs its result.
+   */
+  void awaitCompaction() throws IOException {
+    while (compaction != null) {
+      try {
+        compaction.get();
+      } catch (ExecutionException e) {
+        // Rethrown by installation
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while waiting for compaction", e);
+      }
+      installCompaction();
+    }
+  }
+
+  int getRunsCount() {
+    return runs.size();
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("map is closed");
+    }
+  }
+
+  private void maybeFlush() {
+    if (memtable.size() + memtableTombstonesCount >= memtableSize) {
+      try {
+        flush();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Starts compaction of the newest runs, if there are enough of them.
+   * Older run joins the merged runs while it is not more than twice bigger
+   * than all of them together, so sizes of the runs grow geometrically.
+   */
+  private void maybeCompact() {
+    if (compaction != null || runs.size() < COMPACTION_THRESHOLD) {
+      return;
+    }
+
+    int first = runs.size() - 1;
+    long mergedSize = runs.get(first).getEntriesCount();
+    while (first > 0 && runs.get(first - 1).getEntriesCount() <= 2 * mergedSize) {
+      first--;
+      mergedSize += runs.get(first).getEntriesCount();
+    }
+    if (first == runs.size() - 1) {
+      return;
+    }
+
+    List<Run> merged = List.copyOf(runs.subList(first, runs.size()));
+    List<Run> olderRuns = List.copyOf(runs.subList(0, first));
+    Path path = directory.resolve(RUN_PREFIX + nextRunNumber++);
+    compactedRuns = merged;
+    compaction = compactor.submit(() -> {
+      Source[] sources = createRunSources(merged, Long.MIN_VALUE, Long.MAX_VALUE);
+      return Run.write(path, new Merger(sources, olderRuns));
+    });
+  }
+
+  /**
+   * Replaces the compacted runs with the result of the finished compaction.
+   * Runs flushed during compaction are newer, so they stay after it.
+   */
+  private void installCompaction() {
+    if (compaction == null || !compaction.isDone()) {
+      return;
+    }
+
+    Run merged;
+    try {
+      merged = compaction.get();
+    } catch (InterruptedException | ExecutionException e) {
+      compaction = null;
+      compactedRuns = null;
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      if (cause instanceof IOException) {
+        throw new UncheckedIOException((IOException) cause);
+      }
+      throw new IllegalStateException("compaction has failed", cause);
+    }
+
+    int first = runs.indexOf(compactedRuns.get(0));
+    runs.subList(first, first + compactedRuns.size()).clear();
+    runs.add(first, merged);
+    try {
+      writeManifest();
+      closeRuns(compactedRuns);
+      for (Run run : compactedRuns) {
+        Files.deleteIfExists(run.path);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      compaction = null;
+      compactedRuns = null;
+    }
+    maybeCompact();
+  }
+
+  /**
+   * Opens runs listed in the manifest and deletes all other run files,
+   * which are left by interrupted flushes and compactions.
+   */
+  private void openRuns() throws IOException {
+    Path manifest = directory.resolve(MANIFEST);
+    List<String> names = Files.exists(manifest)
+        ? Files.readAllLines(manifest, StandardCharsets.UTF_8)
+        : List.of();
+
+    for (String name : names) {
+      Run run = Run.open(directory.resolve(name));
+      runs.add(run);
+      size += run.valuesCount - run.tombstonesCount;
+      nextRunNumber = Math.max(nextRunNumber, getRunNumber(name) + 1);
+    }
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, RUN_PREFIX + "*")) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (!names.contains(name)) {
+          Files.deleteIfExists(file);
+          nextRunNumber = Math.max(nextRunNumber, getRunNumber(name) + 1);
+        }
+      }
+    }
+  }
+
+  private static long getRunNumber(String name) throws IOException {
+    try {
+      return Long.parseLong(name.substring(RUN_PREFIX.length()));
+    } catch (NumberFormatException e) {
+      throw new IOException("unexpected run file " + name, e);
+    }
+  }
+
+  private void writeManifest() throws IOException {
+    List<String> names = new ArrayList<>();
+    for (Run run : runs) {
+      names.add(run.path.getFileName().toString());
+    }
+
+    Path temporary = directory.resolve(MANIFEST + ".tmp");
+    Files.write(temporary, names, StandardCharsets.UTF_8);
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    Files.move(
+        temporary,
+        directory.resolve(MANIFEST),
+        StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING
+    );
+  }
+
+  private static void closeRuns(List<Run> runs) throws IOException {
+    for (Run run : runs) {
+      run.channel.close();
+    }
+  }
+
+  /**
+   * @return merger of all runs and the memtable
+   */
+  private Merger createMerger(long from, long to) {
+    if (from > to) {
+      return new Merger(new Source[0]);
+    }
+
+    Source[] sources = Arrays.copyOf(createRunSources(runs, from, to), runs.size() + 1);
+    sources[runs.size()] = new MemtableSource(memtable, memtableTombstones, from, to);
+    return new Merger(sources);
+  }
+
+  private static Source[] createRunSources(List<Run> runs, long from, long to) {
+    Source[] sources = new Source[runs.size()];
+    for (int i = 0; i < sources.length; i++) {
+      sources[i] = new RunSource(runs.get(i), from, to);
+    }
+    return sources;
+  }
+
+  /**
+   * Immutable sorted run file.
+   * <pre>
+   * header:     magic (0), records per block (4), number of values (8),
+   *             number of blocks (16), number of tombstones (20)
+   * records:    blocks of (key long, value int)
+   * index:      (first key long, last key long, sum long) per block
+   * tombstones: (key long, number of removed values int)
+   * </pre>
+   */
+  private static final class Run {
+    final Path path;
+    final FileChannel channel;
+    final int valuesCount;
+    final long[] firstKeys;
+    final long[] lastKeys;
+    final long[] sums;
+    final long[] tombstoneKeys;
+    final int[] tombstoneCounts;
+    final int tombstonesCount;
+
+    Run(
+        Path path,
+        FileChannel channel,
+        int valuesCount,
+        long[] firstKeys,
+        long[] lastKeys,
+        long[] sums,
+        long[] tombstoneKeys,
+        int[] tombstoneCounts
+    ) {
+      this.path = path;
+      this.channel = channel;
+      this.valuesCount = valuesCount;
+      this.firstKeys = firstKeys;
+      this.lastKeys = lastKeys;
+      this.sums = sums;
+      this.tombstoneKeys = tombstoneKeys;
+      this.tombstoneCounts = tombstoneCounts;
+      this.tombstonesCount = Arrays.stream(tombstoneCounts).sum();
+    }
+
+    /**
+     * Writes all keys produced by the {@code merger} into a new run file.
+     */
+    static Run write(Path path, Merger merger) throws IOException {
+      FileChannel channel = FileChannel.open(
+          path,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.READ,
+          StandardOpenOption.WRITE
+      );
+
+      try {
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        int valuesCount = 0;
+        int blocksCount = 0;
+        long[] firstKeys = new long[16];
+        long[] lastKeys = new long[16];
+        long[] sums = new long[16];
+        int tombstonesCount = 0;
+        long[] tombstoneKeys = new long[16];
+        int[] tombstoneCounts = new int[16];
+
+        while (merger.next()) {
+          for (int i = 0; i < merger.values.count; i++) {
+            if (!block.hasRemaining()) {
+              writeBlock(channel, block, blocksCount - 1);
+            }
+            if (block.position() == 0) {
+              if (blocksCount == firstKeys.length) {
+                firstKeys = Arrays.copyOf(firstKeys, blocksCount * 2);
+                lastKeys = Arrays.copyOf(lastKeys, blocksCount * 2);
+                sums = Arrays.copyOf(sums, blocksCount * 2);
+              }
+              firstKeys[blocksCount++] = merger.key;
+            }
+
+            int value = merger.values.get(i);
+            block.putLong(merger.key).putInt(value);
+            lastKeys[blocksCount - 1] = merger.key;
+            sums[blocksCount - 1] += value;
+            valuesCount++;
+          }
+
+          if (merger.tombstones > 0) {
+            if (tombstonesCount == tombstoneKeys.length) {
+              tombstoneKeys = Arrays.copyOf(tombstoneKeys, tombstonesCount * 2);
+              tombstoneCounts = Arrays.copyOf(tombstoneCounts, tombstonesCount * 2);
+            }
+            tombstoneKeys[tombstonesCount] = merger.key;
+            tombstoneCounts[tombstonesCount++] = merger.tombstones;
+          }
+        }
+        if (block.position() > 0) {
+          writeBlock(channel, block, blocksCount - 1);
+        }
+
+        long position = HEADER_SIZE + (long) valuesCount * RECORD_SIZE;
+        ByteBuffer index = ByteBuffer.allocate(blocksCount * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < blocksCount; i++) {
+          index.putLong(firstKeys[i]).putLong(lastKeys[i]).putLong(sums[i]);
+        }
+        writeFully(channel, index.flip(), position);
+        position += index.limit();
+
+        ByteBuffer tombstones = ByteBuffer.allocate(tombstonesCount * TOMBSTONE_SIZE);
+        for (int i = 0; i < tombstonesCount; i++) {
+          tombstones.putLong(tombstoneKeys[i]).putInt(tombstoneCounts[i]);
+        }
+        writeFully(channel, tombstones.flip(), position);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(BLOCK_RECORDS).putLong(valuesCount)
+            .putInt(blocksCount).putInt(tombstonesCount);
+        writeFully(channel, header.flip(), 0);
+        channel.force(true);
+
+        return new Run(
+            path,
+            channel,
+            valuesCount,
+            Arrays.copyOf(firstKeys, blocksCount),
+            Arrays.copyOf(lastKeys, blocksCount),
+            Arrays.copyOf(sums, blocksCount),
+            Arrays.copyOf(tombstoneKeys, tombstonesCount),
+            Arrays.copyOf(tombstoneCounts, tombstonesCount)
+        );
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        Files.deleteIfExists(path);
+        throw e;
+      }
+    }
+
+    private static void writeBlock(
+        FileChannel channel,
+        ByteBuffer block,
+        int index
+    ) throws IOException {
+      writeFully(channel, block.flip(), HEADER_SIZE + (long) index * BLOCK_SIZE);
+      block.clear();
+    }
+
+    /**
+     * Reads the header, the index and the tombstones of the run file.
+     */
+    static Run open(Path path) throws IOException {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+
+      try {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(channel, header, 0)
+            || header.getInt(0) != MAGIC
+            || header.getInt(4) != BLOCK_RECORDS) {
+          throw new IOException(path + " is not a run file");
+        }
+
+        long valuesCount = header.getLong(8);
+        int blocksCount = header.getInt(16);
+        int tombstonesCount = header.getInt(20);
+        long indexPosition = HEADER_SIZE + valuesCount * RECORD_SIZE;
+        long expectedSize = indexPosition
+            + (long) blocksCount * INDEX_ENTRY_SIZE
+            + (long) tombstonesCount * TOMBSTONE_SIZE;
+        if (channel.size() != expectedSize
+            || blocksCount != (valuesCount + BLOCK_RECORDS - 1) / BLOCK_RECORDS) {
+          throw new IOException(path + " is corrupted");
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(blocksCount * INDEX_ENTRY_SIZE);
+        readFully(channel, index, indexPosition);
+        long[] firstKeys = new long[blocksCount];
+        long[] lastKeys = new long[blocksCount];
+        long[] sums = new long[blocksCount];
+        for (int i = 0; i < blocksCount; i++) {
+          firstKeys[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+          lastKeys[i] = index.getLong(i * INDEX_ENTRY_SIZE + 8);
+          sums[i] = index.getLong(i * INDEX_ENTRY_SIZE + 16);
+        }
+
+        ByteBuffer tombstones = ByteBuffer.allocate(tombstonesCount * TOMBSTONE_SIZE);
+        readFully(channel, tombstones, indexPosition + index.capacity());
+        long[] tombstoneKeys = new long[tombstonesCount];
+        int[] tombstoneCounts = new int[tombstonesCount];
+        for (int i = 0; i < tombstonesCount; i++) {
+          tombstoneKeys[i] = tombstones.getLong(i * TOMBSTONE_SIZE);
+          tombstoneCounts[i] = tombstones.getInt(i * TOMBSTONE_SIZE + 8);
+        }
+
+        return new Run(
+            path,
+            channel,
+            (int) valuesCount,
+            firstKeys,
+            lastKeys,
+            sums,
+            tombstoneKeys,
+            tombstoneCounts
+        );
+      } catch (IOException | RuntimeException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    long getEntriesCount() {
+      return valuesCount + tombstonesCount;
+    }
+
+    int getBlockRecordsCount(int block) {
+      return Math.min(BLOCK_RECORDS, valuesCount - block * BLOCK_RECORDS);
+    }
+
+    /**
+     * Reads records of the {@code block} into the {@code buffer}.
+     */
+    void readBlock(int block, ByteBuffer buffer) {
+      buffer.clear();
+      buffer.limit(getBlockRecordsCount(block) * RECORD_SIZE);
+      try {
+        if (!readFully(channel, buffer, HEADER_SIZE + (long) block * BLOCK_SIZE)) {
+          throw new IOException(path + " is truncated");
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * @return index of the first block, which may contain keys greater than
+     *     or equal to the {@code key} (number of blocks if there is no such block)
+     */
+    int findFirstBlock(long key) {
+      int low = 0;
+      int high = lastKeys.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (lastKeys[middle] < key) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * @return index of the last block, which may contain keys less than
+     *     or equal to the {@code key} ({@code -1} if there is no such block)
+     */
+    int findLastBlock(long key) {
+      int low = 0;
+      int high = firstKeys.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (firstKeys[middle] <= key) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low - 1;
+    }
+
+    long sumRange(long from, long to) {
+      int firstBlock = findFirstBlock(from);
+      int lastBlock = findLastBlock(to);
+      long sum = 0;
+
+      for (int block = firstBlock; block <= lastBlock; block++) {
+        if (from <= firstKeys[block] && lastKeys[block] <= to) {
+          sum += sums[block];
+        } else {
+          ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+          readBlock(block, buffer);
+          for (int offset = 0; offset < buffer.limit(); offset += RECORD_SIZE) {
+            long key = buffer.getLong(offset);
+            if (from <= key && key <= to) {
+              sum += buffer.getInt(offset + 8);
+            }
+          }
+        }
+      }
+      return sum;
+    }
+
+    /**
+     * @return the greatest key of a value less than or equal to
+     *     the {@code key}, or {@code null} if there is no such key
+     */
+    Long floorKey(long key) {
+      int block = findLastBlock(key);
+      if (block < 0) {
+        return null;
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+      readBlock(block, buffer);
+      long floor = firstKeys[block];
+      for (int offset = RECORD_SIZE; offset < buffer.limit(); offset += RECORD_SIZE) {
+        long recordKey = buffer.getLong(offset);
+        if (recordKey > key) {
+          break;
+        }
+        floor = recordKey;
+      }
+      return floor;
+    }
+
+    void collectTombstoneKeys(long from, long to, TreeSet<Long> keys) {
+      int index = findTombstone(from);
+      for (; index < tombstoneKeys.length && tombstoneKeys[index] <= to; index++) {
+        keys.add(tombstoneKeys[index]);
+      }
+    }
+
+    /**
+     * @return index of the first tombstone with key greater than or equal
+     *     to the {@code key}
+     */
+    int findTombstone(long key) {
+      int index = Arrays.binarySearch(tombstoneKeys, key);
+      return index >= 0 ? index : -index - 1;
+    }
+  }
+
+  private static void writeFully(
+      FileChannel channel,
+      ByteBuffer buffer,
+      long position
+  ) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  /**
+   * @return {@code false} if end of the file is reached before
+   *     the buffer is filled
+   */
+  private static boolean readFully(
+      FileChannel channel,
+      ByteBuffer buffer,
+      long position
+  ) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        return false;
+      }
+      position += read;
+    }
+    return true;
+  }
+
+  /**
+   * Sorted stream of keys with their values and tombstones.
+   */
+  private interface Source {
+    boolean hasKey();
+
+    long key();
+
+    /**
+     * @return number of values of the current key removed from older sources
+     */
+    int tombstones();
+
+    /**
+     * Appends values of the current key to {@code values} and moves
+     * to the next key.
+     */
+    void readValues(Values values);
+  }
+
+  /**
+   * Keys of a run in range, blocks are read one by one.
+   */
+  private static final class RunSource implements Source {
+    private final Run run;
+    private final long to;
+    private final ByteBuffer buffer;
+    private int block;
+    private int offset;
+    private int tombstone;
+
+    RunSource(Run run, long from, long to) {
+      this.run = run;
+      this.to = to;
+      this.buffer = ByteBuffer.allocate(BLOCK_SIZE);
+      this.tombstone = run.findTombstone(from);
+
+      block = run.findFirstBlock(from);
+      if (block < run.lastKeys.length) {
+        run.readBlock(block, buffer);
+        while (buffer.getLong(offset) < from) {
+          offset += RECORD_SIZE;
+        }
+      }
+    }
+
+    private boolean hasRecord() {
+      return block < run.lastKeys.length && buffer.getLong(offset) <= to;
+    }
+
+    private boolean hasTombstone() {
+      return tombstone < run.tombstoneKeys.length && run.tombstoneKeys[tombstone] <= to;
+    }
+
+    @Override
+    public boolean hasKey() {
+      return hasRecord() || hasTombstone();
+    }
+
+    @Override
+    public long key() {
+      if (!hasRecord()) {
+        return run.tombstoneKeys[tombstone];
+      }
+      long recordKey = buffer.getLong(offset);
+      return hasTombstone() ? Math.min(recordKey, run.tombstoneKeys[tombstone]) : recordKey;
+    }
+
+    @Override
+    public int tombstones() {
+      return hasTombstone() && run.tombstoneKeys[tombstone] == key()
+          ? run.tombstoneCounts[tombstone]
+          : 0;
+    }
+
+    @Override
+    public void readValues(Values values) {
+      long key = key();
+      if (hasTombstone() && run.tombstoneKeys[tombstone] == key) {
+        tombstone++;
+      }
+
+      while (hasRecord() && buffer.getLong(offset) == key) {
+        values.add(buffer.getInt(offset + 8));
+        offset += RECORD_SIZE;
+        if (offset == buffer.limit()) {
+          offset = 0;
+          if (++block < run.lastKeys.length) {
+            run.readBlock(block, buffer);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Keys of the memtable and its tombstones in range.
+   */
+  private static final class MemtableSource implements Source {
+    private final RangeCursor<Long, Integer> cursor;
+    private final Iterator<Map.Entry<Long, Integer>> tombstonesIterator;
+    private boolean hasRecord;
+    private Map.Entry<Long, Integer> tombstone;
+
+    MemtableSource(
+        BTreeRangeMap<Long, Integer> memtable,
+        TreeMap<Long, Integer> tombstones,
+        long from,
+        long to
+    ) {
+      this.cursor = memtable.rangeCursor(from, to);
+      this.tombstonesIterator = tombstones.subMap(from, true, to, true).entrySet().iterator();
+      this.hasRecord = cursor.next();
+      this.tombstone = tombstonesIterator.hasNext() ? tombstonesIterator.next() : null;
+    }
+
+    @Override
+    public boolean hasKey() {
+      return hasRecord || tombstone != null;
+    }
+
+    @Override
+    public long key() {
+      if (!hasRecord) {
+        return tombstone.getKey();
+      }
+      long recordKey = cursor.getKey();
+      return tombstone != null ? Math.min(recordKey, tombstone.getKey()) : recordKey;
+    }
+
+    @Override
+    public int tombstones() {
+      return tombstone != null && tombstone.getKey() == key() ? tombstone.getValue() : 0;
+    }
+
+    @Override
+    public void readValues(Values values) {
+      long key = key();
+      if (tombstone != null && tombstone.getKey() == key) {
+        tombstone = tombstonesIterator.hasNext() ? tombstonesIterator.next() : null;
+      }
+
+      while (hasRecord && cursor.getKey() == key) {
+        values.add(cursor.getValue());
+        hasRecord = cursor.next();
+      }
+    }
+  }
+
+  /**
+   * Growable list of values of a key.
+   */
+  private static final class Values {
+    private int[] values = new int[8];
+    private int count;
+
+    int get(int index) {
+      return values[index];
+    }
+
+    void add(int value) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
+      }
+      values[count++] = value;
+    }
+
+    /**
+     * Removes the first {@code removedCount} values.
+     *
+     * @return sum of the removed values
+     */
+    long removeFirst(int removedCount) {
+      long removedSum = 0;
+      for (int i = 0; i < removedCount; i++) {
+        removedSum += values[i];
+      }
+      System.arraycopy(values, removedCount, values, 0, count - removedCount);
+      count -= removedCount;
+      return removedSum;
+    }
+
+    void clear() {
+      count = 0;
+    }
+  }
+
+  /**
+   * K-way merge of sources ordered from the oldest to the newest. Values of
+   * the key are collected from the oldest source, and tombstones of every
+   * source remove the first values collected from the older ones.
+   * <p>
+   * When only the newest runs are merged, tombstones have to remove
+   * the oldest values of the runs older than the merged ones first. So for
+   * the keys with tombstones, values of the older runs are looked up too,
+   * and the tombstones, which remove them, are kept in the merged run.
+   */
+  private static final class Merger {
+    private final Source[] sources;
+    // Runs older than the sources or null, if they are not known
+    private final List<Run> olderRuns;
+    final Values values;
+    long key;
+    // Tombstones, which remove values of sources older than the merged ones
+    int tombstones;
+    // Sum of the values removed by tombstones of the merged sources
+    long removedSum;
+
+    Merger(Source[] sources) {
+      this(sources, null);
+    }
+
+    Merger(Source[] sources, List<Run> olderRuns) {
+      this.sources = sources;
+      this.olderRuns = olderRuns;
+      this.values = new Values();
+    }
+
+    /**
+     * Moves to the next key, which has values or tombstones.
+     *
+     * @return {@code false} if there are no more keys
+     */
+    boolean next() {
+      boolean found = false;
+      for (Source source : sources) {
+        if (source.hasKey() && (!found || source.key() < key)) {
+          key = source.key();
+          found = true;
+        }
+      }
+      if (!found) {
+        return false;
+      }
+
+      values.clear();
+      tombstones = 0;
+      removedSum = 0;
+      int olderCount = olderRuns != null ? collectOlderValues() : 0;
+      for (Source source : sources) {
+        if (source.hasKey() && source.key() == key) {
+          int sourceTombstones = source.tombstones();
+          int removedCount = Math.min(sourceTombstones, values.count);
+          int removedOlderCount = Math.min(removedCount, olderCount);
+          removedSum += values.removeFirst(removedCount);
+          olderCount -= removedOlderCount;
+          tombstones += olderRuns != null ? removedOlderCount : sourceTombstones - removedCount;
+          source.readValues(values);
+        }
+      }
+
+      values.removeFirst(olderCount);
+      return true;
+    }
+
+    /**
+     * Collects values of the older runs, if sources have tombstones
+     * of the current key.
+     *
+     * @return number of the collected values
+     */
+    private int collectOlderValues() {
+      boolean hasTombstones = false;
+      for (Source source : sources) {
+        hasTombstones |= source.hasKey() && source.key() == key && source.tombstones() > 0;
+      }
+      if (!hasTombstones || olderRuns.isEmpty()) {
+        return 0;
+      }
+
+      Merger olderMerger = new Merger(createRunSources(olderRuns, key, key));
+      if (!olderMerger.next()) {
+        return 0;
+      }
+      for (int i = 0; i < olderMerger.values.count; i++) {
+        values.add(olderMerger.values.get(i));
+      }
+      return values.count;
+    }
+  }
+
+  /**
+   * Cursor over values of the merged keys, keys without values are skipped.
+   */
+  private static final class MergeCursor implements RangeCursor<Long, Integer> {
+    private final Merger merger;
+    private int index;
+    private boolean hasEntry;
+
+    MergeCursor(Merger merger) {
+      this.merger = merger;
+    }
+
+    @Override
+    public boolean next() {
+      if (hasEntry && ++index < merger.values.count) {
+        return true;
+      }
+
+      hasEntry = false;
+      while (merger.next()) {
+        if (merger.values.count > 0) {
+          index = 0;
+          hasEntry = true;
+          break;
+        }
+      }
+      return hasEntry;
+    }
+
+    @Override
+    public Long getKey() {
+      checkEntry();
+      return merger.key;
+    }
+
+    @Override
+    public Integer getValue() {
+      checkEntry();
+      return merger.values.get(index);
+    }
+
+    private void checkEntry() {
+      if (!hasEntry) {
+        throw new NoSuchElementException();
+      }
+    }
+  }
+}
@@ -0,0 +1,794 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Persistent version of {@link LongIntRangeMap}, which keeps the B+tree
+ * in a file.
+ * <p>
+ * File consists of fixed-size pages: page 0 is the header, all other pages
+ * are nodes of the tree or free pages. File is memory-mapped in chunks of
+ * {@code CHUNK_PAGES} pages, which are mapped once and then cached, and pages
+ * are read and written in place through the mapped buffers. So nodes are
+ * never deserialized into the Java heap: the working set is kept in the page
+ * cache of the OS, and opening an existing file only maps it.
+ * <p>
+ * Page layouts (offsets in bytes):
+ * <pre>
+ * header: magic (0), page size (8), branching factor (12), root page (16),
+ *         number of pages (20), first free page (24), number of entries (32)
+ * node:   type (0), number of keys (4), next leaf or free page (8),
+ *         previous leaf (12), data (16)
+ * leaf data:  keys long[b], values int[b]
+ * inner data: keys long[b], children int[b + 1], sums of the children long[b + 1]
+ * </pre>
+ * Sums of the children are kept in the inner node itself, so
+ * {@link #sumRange(long, long)} reads a single page per level.
+ * <p>
+ * Removal doesn't rebalance the tree, but empty leaves (and inner nodes left
+ * without leaves) are removed, and their pages are put into the free list
+ * to be reused by the next splits.
+ * <p>
+ * File grows by whole chunks. Changes are written to disk by the OS at any
+ * time, {@link #flush()} forces them. Map doesn't protect the file from the crash in the middle
+ * of modification.
+ */
+public class MappedLongIntRangeMap implements Closeable {
+  /**
+   * Returned by {@link #lookup(long)} if there is no such key.
+   */
+  public static final int NO_VALUE = LongIntRangeMap.NO_VALUE;
+  static final int PAGE_SIZE = 4096;
+  private static final int CHUNK_PAGES = 1024;
+  private static final long MAGIC = 0x4c45444745524d50L;
+  private static final int MIN_BRANCHING_FACTOR = 4;
+  // Returned by internal remove method when nothing has been removed,
+  // all values are ints, so it can't be a removed value
+  private static final long NOT_REMOVED = Long.MIN_VALUE;
+
+  /* Header offsets */
+  private static final int MAGIC_OFFSET = 0;
+  private static final int PAGE_SIZE_OFFSET = 8;
+  private static final int BRANCHING_FACTOR_OFFSET = 12;
+  private static final int ROOT_OFFSET = 16;
+  private static final int PAGES_COUNT_OFFSET = 20;
+  private static final int FREE_LIST_OFFSET = 24;
+  private static final int SIZE_OFFSET = 32;
+
+  /* Node offsets */
+  private static final int TYPE_OFFSET = 0;
+  private static final int KEYS_COUNT_OFFSET = 4;
+  private static final int NEXT_OFFSET = 8;
+  private static final int PREVIOUS_OFFSET = 12;
+  private static final int DATA_OFFSET = 16;
+
+  /* Node types */
+  private static final int LEAF = 1;
+  private static final int INNER = 2;
+  private static final int FREE = 3;
+
+  /**
+   * Maximum branching factor, at which inner node still fits into a page.
+   */
+  static final int MAX_BRANCHING_FACTOR = (PAGE_SIZE - DATA_OFFSET - 12) / 20;
+
+  private final FileChannel channel;
+  private final List<MappedByteBuffer> chunks;
+  private final int branchingFactor;
+  // Offsets of the arrays in the node pages
+  private final int valuesOffset;
+  private final int childrenOffset;
+  private final int sumsOffset;
+  // Copies of the header fields
+  private int root;
+  private int pagesCount;
+  private int freeList;
+  private int size;
+
+  /**
+   * Opens existing map or creates a new one with the maximum branching factor.
+   */
+  public MappedLongIntRangeMap(Path path) throws IOException {
+    this(path, MAX_BRANCHING_FACTOR);
+  }
+
+  /**
+   * Opens existing map or creates a new one.
+   *
+   * @param branchingFactor maximum number of children of the inner node
+   *                        (from 4 to {@link #MAX_BRANCHING_FACTOR}), it is
+   *                        used only for a new map, existing map keeps its own
+   *
+   * @throws IOException if file can't be opened or is not a map file
+   */
+  public MappedLongIntRangeMap(Path path, int branchingFactor) throws IOException {
+    if (branchingFactor < MIN_BRANCHING_FACTOR || branchingFactor > MAX_BRANCHING_FACTOR) {
+      throw new IllegalArgumentException(
+          "branching factor must be in range [" + MIN_BRANCHING_FACTOR
+              + ", " + MAX_BRANCHING_FACTOR + "]"
+      );
+    }
+
+    this.channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+    );
+    this.chunks = new ArrayList<>();
+
+    boolean isNew;
+    try {
+      isNew = channel.size() == 0;
+
+      if (!isNew) {
+        // Header is checked before mapping, since mapping extends the file
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE_OFFSET + 4);
+        channel.read(header, 0);
+        if (header.position() < header.limit()
+            || header.getLong(MAGIC_OFFSET) != MAGIC
+            || header.getInt(PAGE_SIZE_OFFSET) != PAGE_SIZE) {
+          throw new IOException("not a range map file: " + path);
+        }
+      }
+
+      mapChunk();
+      if (!isNew) {
+        while (chunks.size() * CHUNK_PAGES < getInt(0, PAGES_COUNT_OFFSET)) {
+          mapChunk();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+
+    this.branchingFactor = isNew ? branchingFactor : getInt(0, BRANCHING_FACTOR_OFFSET);
+    this.valuesOffset = DATA_OFFSET + 8 * this.branchingFactor;
+    this.childrenOffset = DATA_OFFSET + 8 * this.branchingFactor;
+    this.sumsOffset = childrenOffset + 4 * (this.branchingFactor + 1);
+
+    if (isNew) {
+      putLong(0, MAGIC_OFFSET, MAGIC);
+      putInt(0, PAGE_SIZE_OFFSET, PAGE_SIZE);
+      putInt(0, BRANCHING_FACTOR_OFFSET, branchingFactor);
+      setPagesCount(1);
+      setFreeList(0);
+      setSize(0);
+      setRoot(allocatePage(LEAF));
+    } else {
+      this.root = getInt(0, ROOT_OFFSET);
+      this.pagesCount = getInt(0, PAGES_COUNT_OFFSET);
+      this.freeList = getInt(0, FREE_LIST_OFFSET);
+      this.size = (int) getLong(0, SIZE_OFFSET);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds entry after all entries with the same key.
+   */
+  public void add(long key, int value) {
+    int newSibling = insert(root, key, value);
+
+    if (newSibling != 0) {
+      /* Root has been split -> grow the tree */
+      int newRoot = allocatePage(INNER);
+      setKey(newRoot, 0, getMinimumKey(newSibling));
+      setChild(newRoot, 0, root);
+      setChild(newRoot, 1, newSibling);
+      setChildSum(newRoot, 0, getSum(root));
+      setChildSum(newRoot, 1, getSum(newSibling));
+      setKeysCount(newRoot, 1);
+      setRoot(newRoot);
+    }
+
+    setSize(size + 1);
+  }
+
+  /**
+   * Removes the first entry with the {@code key}.
+   *
+   * @return {@code true} if entry has been removed
+   */
+  public boolean remove(long key) {
+    if (remove(root, key) == NOT_REMOVED) {
+      return false;
+    }
+
+    /* Remove inner roots with a single child -> shrink the tree */
+    while (getType(root) == INNER && getKeysCount(root) == 0) {
+      int oldRoot = root;
+      setRoot(getChild(root, 0));
+      freePage(oldRoot);
+    }
+
+    setSize(size - 1);
+    return true;
+  }
+
+  public boolean contains(long key) {
+    int leaf = findFirstLeaf(key);
+    int index = lowerBound(leaf, getKeysCount(leaf), key);
+    if (index == getKeysCount(leaf)) {
+      // Key may only be at the start of the next leaf
+      leaf = getNext(leaf);
+      index = 0;
+    }
+
+    return leaf != 0 && index < getKeysCount(leaf) && getKey(leaf, index) == key;
+  }
+
+  /**
+   * @return first added value for the {@code key} or {@link #NO_VALUE}
+   *     if there is no such key
+   */
+  public int lookup(long key) {
+    int leaf = findFirstLeaf(key);
+    int index = lowerBound(leaf, getKeysCount(leaf), key);
+    if (index == getKeysCount(leaf)) {
+      leaf = getNext(leaf);
+      index = 0;
+    }
+
+    if (leaf != 0 && index < getKeysCount(leaf) && getKey(leaf, index) == key) {
+      return getValue(leaf, index);
+    }
+    return NO_VALUE;
+  }
+
+  /**
+   * @return values with keys in range {@code [from, to]} in the order of keys
+   */
+  public int[] lookupRange(long from, long to) {
+    int[] result = new int[16];
+    int resultSize = 0;
+
+    if (from > to) {
+      return new int[0];
+    }
+
+    int leaf = findFirstLeaf(from);
+    int index = lowerBound(leaf, getKeysCount(leaf), from);
+
+    while (leaf != 0) {
+      int keysCount = getKeysCount(leaf);
+      for (; index < keysCount; index++) {
+        if (getKey(leaf, index) > to) {
+          return Arrays.copyOf(result, resultSize);
+        }
+        if (resultSize == result.length) {
+          result = Arrays.copyOf(result, resultSize * 2);
+        }
+        result[resultSize++] = getValue(leaf, index);
+      }
+
+      leaf = getNext(leaf);
+      index = 0;
+    }
+
+    return Arrays.copyOf(result, resultSize);
+  }
+
+  /**
+   * Calls {@code visitor} for every entry with key in range {@code [from, to]}
+   * in the order of keys.
+   */
+  public void forEachInRange(long from, long to, LongIntRangeMap.EntryVisitor visitor) {
+    if (from > to) {
+      return;
+    }
+
+    int leaf = findFirstLeaf(from);
+    int index = lowerBound(leaf, getKeysCount(leaf), from);
+
+    while (leaf != 0) {
+      int keysCount = getKeysCount(leaf);
+      for (; index < keysCount; index++) {
+        long key = getKey(leaf, index);
+        if (key > to) {
+          return;
+        }
+        visitor.visit(key, getValue(leaf, index));
+      }
+
+      leaf = getNext(leaf);
+      index = 0;
+    }
+  }
+
+  /**
+   * Sums values with keys in range {@code [from, to]} in O(log n).
+   */
+  public long sumRange(long from, long to) {
+    if (from > to) {
+      return 0;
+    }
+
+    return sumBefore(to, true) - sumBefore(from, false);
+  }
+
+  /**
+   * @return number of pages in the file including the header and free pages
+   */
+  int getPagesCount() {
+    return pagesCount;
+  }
+
+  /**
+   * Forces all changes to be written to the file.
+   */
+  public void flush() {
+    for (MappedByteBuffer chunk : chunks) {
+      chunk.force();
+    }
+  }
+
+  /**
+   * Flushes changes and closes the file. Mapped memory is released when
+   * the map is garbage collected.
+   */
+  @Override
+  public void close() throws IOException {
+    flush();
+    channel.close();
+  }
+
+  /* Tree operations */
+
+  /**
+   * Inserts entry into the subtree after all entries with the same key.
+   *
+   * @return new right sibling page if the node has been split, otherwise 0
+   */
+  private int insert(int page, long key, int value) {
+    int keysCount = getKeysCount(page);
+    int index = upperBound(page, keysCount, key);
+
+    if (getType(page) == LEAF) {
+      for (int i = keysCount; i > index; i--) {
+        setKey(page, i, getKey(page, i - 1));
+        setValue(page, i, getValue(page, i - 1));
+      }
+      setKey(page, index, key);
+      setValue(page, index, value);
+      setKeysCount(page, keysCount + 1);
+
+      return keysCount + 1 >= branchingFactor ? splitLeaf(page) : 0;
+    }
+
+    int newChild = insert(getChild(page, index), key, value);
+    if (newChild == 0) {
+      setChildSum(page, index, getChildSum(page, index) + value);
+      return 0;
+    }
+
+    /* Child has been split -> insert new child right after it */
+
+    for (int i = keysCount; i > index; i--) {
+      setKey(page, i, getKey(page, i - 1));
+      setChild(page, i + 1, getChild(page, i));
+      setChildSum(page, i + 1, getChildSum(page, i));
+    }
+    long newChildSum = getSum(newChild);
+    setKey(page, index, getMinimumKey(newChild));
+    setChild(page, index + 1, newChild);
+    setChildSum(page, index + 1, newChildSum);
+    setChildSum(page, index, getChildSum(page, index) + value - newChildSum);
+    setKeysCount(page, keysCount + 1);
+
+    return keysCount + 1 >= branchingFactor ? splitInner(page) : 0;
+  }
+
+  /**
+   * Moves right half of entries into the new leaf and links it right
+   * after this leaf.
+   *
+   * @return new right sibling
+   */
+  private int splitLeaf(int page) {
+    int keysCount = getKeysCount(page);
+    int middle = keysCount / 2;
+    int sibling = allocatePage(LEAF);
+
+    for (int i = middle; i < keysCount; i++) {
+      setKey(sibling, i - middle, getKey(page, i));
+      setValue(sibling, i - middle, getValue(page, i));
+    }
+    setKeysCount(sibling, keysCount - middle);
+    setKeysCount(page, middle);
+
+    int next = getNext(page);
+    setNext(sibling, next);
+    setPrevious(sibling, page);
+    if (next != 0) {
+      setPrevious(next, sibling);
+    }
+    setNext(page, sibling);
+
+    return sibling;
+  }
+
+  /**
+   * Moves right half of keys and children into the new node.
+   *
+   * @return new right sibling
+   */
+  private int splitInner(int page) {
+    int keysCount = getKeysCount(page);
+    int median = keysCount / 2;
+    int sibling = allocatePage(INNER);
+
+    for (int i = median + 1; i < keysCount; i++) {
+      setKey(sibling, i - median - 1, getKey(page, i));
+    }
+    for (int i = median + 1; i <= keysCount; i++) {
+      setChild(sibling, i - median - 1, getChild(page, i));
+      setChildSum(sibling, i - median - 1, getChildSum(page, i));
+    }
+    setKeysCount(sibling, keysCount - median - 1);
+    setKeysCount(page, median);
+
+    return sibling;
+  }
+
+  /**
+   * Removes the first entry with the {@code key} from the subtree. Empty
+   * children are removed, unless it is the only child (then the node itself
+   * is empty and is removed by its parent).
+   *
+   * @return removed value or {@link #NOT_REMOVED}
+   */
+  private long remove(int page, long key) {
+    int keysCount = getKeysCount(page);
+    int index = lowerBound(page, keysCount, key);
+
+    if (getType(page) == LEAF) {
+      if (index == keysCount || getKey(page, index) != key) {
+        return NOT_REMOVED;
+      }
+
+      int value = getValue(page, index);
+      for (int i = index + 1; i < keysCount; i++) {
+        setKey(page, i - 1, getKey(page, i));
+        setValue(page, i - 1, getValue(page, i));
+      }
+      setKeysCount(page, keysCount - 1);
+      return value;
+    }
+
+    for (int childIndex = index; childIndex <= keysCount; childIndex++) {
+      int child = getChild(page, childIndex);
+      long removed = remove(child, key);
+
+      if (removed != NOT_REMOVED) {
+        if (keysCount > 0 && isEmpty(child)) {
+          removeChild(page, childIndex);
+          freeSubtree(child);
+        } else {
+          setChildSum(page, childIndex, getChildSum(page, childIndex) - removed);
+        }
+        return removed;
+      }
+
+      // Entries with the key may continue in the next child only if
+      // it starts with the key
+      if (childIndex == keysCount || getKey(page, childIndex) != key) {
+        break;
+      }
+    }
+
+    return NOT_REMOVED;
+  }
+
+  private boolean isEmpty(int page) {
+    if (getType(page) == LEAF) {
+      return getKeysCount(page) == 0;
+    }
+    return getKeysCount(page) == 0 && isEmpty(getChild(page, 0));
+  }
+
+  /**
+   * Removes child and the key to the left of it (or to the right,
+   * if it is the first child).
+   */
+  private void removeChild(int page, int childIndex) {
+    int keysCount = getKeysCount(page);
+
+    for (int i = Math.max(childIndex - 1, 0) + 1; i < keysCount; i++) {
+      setKey(page, i - 1, getKey(page, i));
+    }
+    for (int i = childIndex + 1; i <= keysCount; i++) {
+      setChild(page, i - 1, getChild(page, i));
+      setChildSum(page, i - 1, getChildSum(page, i));
+    }
+    setKeysCount(page, keysCount - 1);
+  }
+
+  /**
+   * Frees empty subtree: chain of inner nodes with a single child ending
+   * with an empty leaf, which is unlinked from the list of leaves.
+   */
+  private void freeSubtree(int page) {
+    if (getType(page) == INNER) {
+      freeSubtree(getChild(page, 0));
+    } else {
+      int previous = getPrevious(page);
+      int next = getNext(page);
+      if (previous != 0) {
+        setNext(previous, next);
+      }
+      if (next != 0) {
+        setPrevious(next, previous);
+      }
+    }
+
+    freePage(page);
+  }
+
+  /**
+   * @return sum of values with keys less than {@code bound}
+   *     (or equal to it, if {@code inclusive})
+   */
+  private long sumBefore(long bound, boolean inclusive) {
+    long result = 0;
+    int page = root;
+
+    while (true) {
+      int keysCount = getKeysCount(page);
+      int index = inclusive
+          ? upperBound(page, keysCount, bound)
+          : lowerBound(page, keysCount, bound);
+
+      if (getType(page) == LEAF) {
+        for (int i = 0; i < index; i++) {
+          result += getValue(page, i);
+        }
+        return result;
+      }
+
+      for (int i = 0; i < index; i++) {
+        result += getChildSum(page, i);
+      }
+      page = getChild(page, index);
+    }
+  }
+
+  /**
+   * @return sum of values in the subtree
+   */
+  private long getSum(int page) {
+    int keysCount = getKeysCount(page);
+    long sum = 0;
+
+    if (getType(page) == LEAF) {
+      for (int i = 0; i < keysCount; i++) {
+        sum += getValue(page, i);
+      }
+    } else {
+      for (int i = 0; i <= keysCount; i++) {
+        sum += getChildSum(page, i);
+      }
+    }
+    return sum;
+  }
+
+  private long getMinimumKey(int page) {
+    while (getType(page) == INNER) {
+      page = getChild(page, 0);
+    }
+    return getKey(page, 0);
+  }
+
+  /**
+   * @return leaf which may contain the first entry with the {@code key};
+   *     if it doesn't, the entry may only be at the start of the next leaf
+   */
+  private int findFirstLeaf(long key) {
+    int page = root;
+    while (getType(page) == INNER) {
+      page = getChild(page, lowerBound(page, getKeysCount(page), key));
+    }
+    return page;
+  }
+
+  /**
+   * @return number of the first {@code count} keys of the node that are
+   *     less than {@code key}
+   */
+  private int lowerBound(int page, int count, long key) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (getKey(page, middle) < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return number of the first {@code count} keys of the node that are
+   *     not greater than {@code key}
+   */
+  private int upperBound(int page, int count, long key) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (getKey(page, middle) <= key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /* Pages */
+
+  /**
+   * Takes page from the free list or appends a new one to the file.
+   *
+   * @return empty node page of the {@code type}
+   */
+  private int allocatePage(int type) {
+    int page = freeList;
+    if (page != 0) {
+      setFreeList(getNext(page));
+    } else {
+      page = pagesCount;
+      setPagesCount(pagesCount + 1);
+      if (page >= chunks.size() * CHUNK_PAGES) {
+        try {
+          mapChunk();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+
+    putInt(page, TYPE_OFFSET, type);
+    setKeysCount(page, 0);
+    setNext(page, 0);
+    setPrevious(page, 0);
+    return page;
+  }
+
+  private void freePage(int page) {
+    putInt(page, TYPE_OFFSET, FREE);
+    setNext(page, freeList);
+    setFreeList(page);
+  }
+
+  /**
+   * Maps the next chunk of the file, file is extended if necessary.
+   */
+  private void mapChunk() throws IOException {
+    long chunkSize = (long) CHUNK_PAGES * PAGE_SIZE;
+    chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, chunks.size() * chunkSize, chunkSize));
+  }
+
+  private int getInt(int page, int offset) {
+    return chunks.get(page / CHUNK_PAGES).getInt((page % CHUNK_PAGES) * PAGE_SIZE + offset);
+  }
+
+  private void putInt(int page, int offset, int value) {
+    chunks.get(page / CHUNK_PAGES).putInt((page % CHUNK_PAGES) * PAGE_SIZE + offset, value);
+  }
+
+  private long getLong(int page, int offset) {
+    return chunks.get(page / CHUNK_PAGES).getLong((page % CHUNK_PAGES) * PAGE_SIZE + offset);
+  }
+
+  private void putLong(int page, int offset, long value) {
+    chunks.get(page / CHUNK_PAGES).putLong((page % CHUNK_PAGES) * PAGE_SIZE + offset, value);
+  }
+
+  /* Header fields */
+
+  private void setRoot(int root) {
+    this.root = root;
+    putInt(0, ROOT_OFFSET, root);
+  }
+
+  private void setPagesCount(int pagesCount) {
+    this.pagesCount = pagesCount;
+    putInt(0, PAGES_COUNT_OFFSET, pagesCount);
+  }
+
+  private void setFreeList(int freeList) {
+    this.freeList = freeList;
+    putInt(0, FREE_LIST_OFFSET, freeList);
+  }
+
+  private void setSize(int size) {
+    this.size = size;
+    putLong(0, SIZE_OFFSET, size);
+  }
+
+  /* Node fields */
+
+  private int getType(int page) {
+    return getInt(page, TYPE_OFFSET);
+  }
+
+  private int getKeysCount(int page) {
+    return getInt(page, KEYS_COUNT_OFFSET);
+  }
+
+  private void setKeysCount(int page, int keysCount) {
+    putInt(page, KEYS_COUNT_OFFSET, keysCount);
+  }
+
+  private int getNext(int page) {
+    return getInt(page, NEXT_OFFSET);
+  }
+
+  private void setNext(int page, int next) {
+    putInt(page, NEXT_OFFSET, next);
+  }
+
+  private int getPrevious(int page) {
+    return getInt(page, PREVIOUS_OFFSET);
+  }
+
+  private void setPrevious(int page, int previous) {
+    putInt(page, PREVIOUS_OFFSET, previous);
+  }
+
+  private long getKey(int page, int index) {
+    return getLong(page, DATA_OFFSET + 8 * index);
+  }
+
+  private void setKey(int page, int index, long key) {
+    putLong(page, DATA_OFFSET + 8 * index, key);
+  }
+
+  private int getValue(int leaf, int index) {
+    return getInt(leaf, valuesOffset + 4 * index);
+  }
+
+  private void setValue(int leaf, int index, int value) {
+    putInt(leaf, valuesOffset + 4 * index, value);
+  }
+
+  private int getChild(int inner, int index) {
+    return getInt(inner, childrenOffset + 4 * index);
+  }
+
+  private void setChild(int inner, int index, int child) {
+    putInt(inner, childrenOffset + 4 * index, child);
+  }
+
+  private long getChildSum(int inner, int index) {
+    return getLong(inner, sumsOffset + 8 * index);
+  }
+
+  private void setChildSum(int inner, int index, long sum) {
+    putLong(inner, sumsOffset + 8 * index, sum);
+  }
+}
@@ -0,0 +1,36 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+/**
+ * Lazy cursor over entries of a key range returned by
+ * {@link RangeMap#rangeCursor(Object, Object)}. Entries are read one by one
+ * in the order of keys, so a caller that stops early doesn't pay for the rest
+ * of the range.
+ * <p>
+ * Cursor is positioned before the first entry, so {@link #next()} must be
+ * called before reading the first entry. Map must not be modified while
+ * the cursor is in use.
+ *
+ * @param <K> type of the key
+ * @param <V> type of the value
+ */
+public interface RangeCursor<K, V> {
+  /**
+   * Moves cursor to the next entry of the range.
+   *
+   * @return {@code false} if there are no more entries
+   */
+  boolean next();
+
+  /**
+   * @throws java.util.NoSuchElementException if cursor is not at an entry
+   */
+  K getKey();
+
+  /**
+   * @throws java.util.NoSuchElementException if cursor is not at an entry
+   */
+  V getValue();
+}
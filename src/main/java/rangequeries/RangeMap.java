@@ -5,6 +5,7 @@
 package rangequeries;
 
 import java.util.List;
+import java.util.function.BiConsumer;
 
 public interface RangeMap<K, V> {
   int size();
@@ -13,5 +14,74 @@ public interface RangeMap<K, V> {
   V remove(K key);
   boolean contains(K key);
   V lookup(K key);
+
+  /**
+   * @return values with keys in range {@code [from, to]} in the order of keys,
+   *     {@code from} and {@code to} don't have to be present in the map
+   */
   List<V> lookupRange(K from, K to);
+
+  /**
+   * @return cursor over entries with keys in range {@code [from, to]}
+   *     in the order of keys
+   */
+  RangeCursor<K, V> rangeCursor(K from, K to);
+
+  /**
+   * Calls {@code visitor} for every entry with key in range {@code [from, to]}
+   * in the order of keys.
+   */
+  default void forEachInRange(K from, K to, BiConsumer<? super K, ? super V> visitor) {
+    RangeCursor<K, V> cursor = rangeCursor(from, to);
+    while (cursor.next()) {
+      visitor.accept(cursor.getKey(), cursor.getValue());
+    }
+  }
+
+  /**
+   * @return the least key greater than or equal to {@code key},
+   *     or {@code null} if there is no such key
+   */
+  K ceilingKey(K key);
+
+  /**
+   * @return the greatest key less than or equal to {@code key},
+   *     or {@code null} if there is no such key
+   */
+  K floorKey(K key);
+
+  /**
+   * @return the least key strictly greater than {@code key},
+   *     or {@code null} if there is no such key
+   */
+  K higherKey(K key);
+
+  /**
+   * @return the greatest key strictly less than {@code key},
+   *     or {@code null} if there is no such key
+   */
+  K lowerKey(K key);
+
+  /**
+   * Aggregates values returned by {@link #lookupRange(Object, Object)}.
+   * Implementations may answer faster for aggregations they maintain.
+   */
+  default <A> A aggregate(Aggregation<? super V, A> aggregation, K from, K to) {
+    A result = aggregation.identity();
+    for (V value : lookupRange(from, to)) {
+      result = aggregation.combine(result, aggregation.lift(value));
+    }
+    return result;
+  }
+
+  /**
+   * Same as {@link #aggregate(Aggregation, Object, Object)}, but without boxing.
+   */
+  default long aggregateAsLong(LongAggregation<? super V> aggregation, K from, K to) {
+    long result = aggregation.identityAsLong();
+    for (V value : lookupRange(from, to)) {
+      result = aggregation.combineAsLong(result, aggregation.liftAsLong(value));
+    }
+    return result;
+  }
 }
@@ -4,7 +4,10 @@
 package rangequeries;
 
 import common.Date;
-import java.util.List;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Scanner;
 import java.util.regex.Matcher;
 
@@ -18,15 +21,32 @@ public class Solution {
    * {@code operationsHistory} {@link RangeMap}.
    *
    * @param commandString     command string to parse and execute
-   * @param operationsHistory {@link RangeMap} object containing operations history
-   *                          on which command will be executed
+   * @param operationsHistory operations history on which command will be executed
    *
    * @throws InvalidInputException when fails to parse the command
    */
   private static void performCommandOnOperationsHistory(
       String commandString,
-      RangeMap<Date, Integer> operationsHistory
+      OperationsHistory operationsHistory
   ) throws InvalidInputException {
+    ParsedCommand parsedCommand = parseCommand(commandString);
+
+    if (parsedCommand.command == Command.REPORT) {
+      long rangeSum = operationsHistory.sumRange(parsedCommand.date, parsedCommand.toDate);
+      System.out.println(rangeSum);
+    } else {
+      operationsHistory.add(parsedCommand.date, parsedCommand.amount);
+    }
+  }
+
+  /**
+   * @param commandString command string to parse
+   *
+   * @return parsed command, amount of WITHDRAW is negated
+   *
+   * @throws InvalidInputException when fails to parse the command
+   */
+  private static ParsedCommand parseCommand(String commandString) throws InvalidInputException {
     Command matchedCommand = null;
     Matcher commandMatcher = null;
     for (Command command : Command.values()) {
@@ -45,37 +65,200 @@ public class Solution {
     String arg2 = commandMatcher.group(2);
 
     try {
+      Date date = Date.fromString(arg1);
       switch (matchedCommand) {
         case DEPOSIT:
-          Date depositDate = Date.fromString(arg1);
-          Integer depositAmount = Integer.parseInt(arg2);
-          operationsHistory.add(depositDate, depositAmount);
-          break;
+          return new ParsedCommand(matchedCommand, date, null, Integer.parseInt(arg2));
         case WITHDRAW:
-          Date withdrawDate = Date.fromString(arg1);
-          Integer withdrawAmount = Integer.parseInt(arg2);
-          operationsHistory.add(withdrawDate, withdrawAmount * -1);
-          break;
-        case REPORT:
-          Date dateFrom = Date.fromString(arg1);
-          Date dateTo = Date.fromString(arg2);
-
-          if (!operationsHistory.contains(dateFrom)) {
-            operationsHistory.add(dateFrom, 0);
-          }
-
-          List<Integer> operations = operationsHistory.lookupRange(dateFrom, dateTo);
-          Integer rangeSum = operations.stream().mapToInt(Integer::intValue).sum();
-          System.out.println(rangeSum);
-          break;
+          return new ParsedCommand(matchedCommand, date, null, Integer.parseInt(arg2) * -1);
+        default:
+          return new ParsedCommand(matchedCommand, date, Date.fromString(arg2), 0);
       }
     } catch (IllegalArgumentException e) {
       throw new InvalidInputException();
     }
   }
 
-  public static void main(String[] args) throws InvalidInputException {
-    RangeMap<Date, Integer> operationsHistory = new BTreeRangeMap<>();
+  /**
+   * Runs the whole script at once: commands are parsed into flat arrays,
+   * dates of the operations are compressed into positions of a
+   * {@link FenwickTree}, and commands are executed in their order, so every
+   * REPORT sees only earlier operations. Takes O((n + q) log n) time for n
+   * operations and q reports, output is printed at once.
+   * <p>
+   * If the script has an invalid command, commands before it are executed,
+   * like in the online mode.
+   */
+  private static void performCommandsOffline() throws InvalidInputException {
+    Scanner scanner = new Scanner(System.in);
+    int n = scanner.nextInt();
+    scanner.nextLine();
+
+    boolean[] isReport = new boolean[n];
+    // Epoch day of the operation or of the start of the report
+    long[] days = new long[n];
+    // Amount of the operation or epoch day of the end of the report
+    long[] arguments = new long[n];
+    long[] operationDays = new long[n];
+    int operationsCount = 0;
+    int parsedCount = 0;
+    boolean isInvalid = false;
+
+    for (; parsedCount < n; parsedCount++) {
+      ParsedCommand parsedCommand;
+      try {
+        parsedCommand = parseCommand(scanner.nextLine());
+      } catch (InvalidInputException e) {
+        isInvalid = true;
+        break;
+      }
+
+      days[parsedCount] = parsedCommand.date.toEpochDay();
+      if (parsedCommand.command == Command.REPORT) {
+        isReport[parsedCount] = true;
+        arguments[parsedCount] = parsedCommand.toDate.toEpochDay();
+      } else {
+        arguments[parsedCount] = parsedCommand.amount;
+        operationDays[operationsCount++] = days[parsedCount];
+      }
+    }
+
+    // Coordinate compression: position of a day is its index among
+    // the distinct days of the operations
+    Arrays.sort(operationDays, 0, operationsCount);
+    int distinctCount = 0;
+    for (int i = 0; i < operationsCount; i++) {
+      if (distinctCount == 0 || operationDays[distinctCount - 1] != operationDays[i]) {
+        operationDays[distinctCount++] = operationDays[i];
+      }
+    }
+
+    FenwickTree operations = new FenwickTree(distinctCount);
+    StringBuilder output = new StringBuilder();
+    for (int i = 0; i < parsedCount; i++) {
+      if (isReport[i]) {
+        int from = findFirstNotLess(operationDays, distinctCount, days[i]);
+        int to = findFirstNotLess(operationDays, distinctCount, arguments[i] + 1) - 1;
+        output.append(operations.sumRange(from, to)).append('\n');
+      } else {
+        operations.add(findFirstNotLess(operationDays, distinctCount, days[i]), arguments[i]);
+      }
+    }
+    System.out.print(output);
+
+    if (isInvalid) {
+      throw new InvalidInputException();
+    }
+  }
+
+  /**
+   * @return index of the first of the {@code count} sorted {@code days},
+   *     which is not less than the {@code day} ({@code count} if there is none)
+   */
+  private static int findFirstNotLess(long[] days, int count, long day) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (days[middle] < day) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Runs commands from the standard input. With arguments {@code --ledger <file>}
+   * operations history is kept in the file (and is loaded from it, if it
+   * exists), otherwise it is kept in memory. With arguments {@code --wal <file>}
+   * history is kept in memory, but every operation is appended to the
+   * write-ahead log before it is applied, and the log is replayed on start.
+   * With argument {@code --offline} the whole script is read first and
+   * executed in a single sweep. With argument {@code --rollups} history is
+   * kept as {@link CalendarRollups}, so a report sums totals of days, months
+   * and years instead of the operations.
+   */
+  public static void main(String[] args) throws InvalidInputException, IOException {
+    if (args.length == 1 && args[0].equals("--offline")) {
+      performCommandsOffline();
+      return;
+    }
+
+    if (args.length == 1 && args[0].equals("--rollups")) {
+      CalendarRollups rollups = new CalendarRollups();
+      performCommands(new OperationsHistory() {
+        @Override
+        public void add(Date date, int amount) {
+          rollups.add(date, amount);
+        }
+
+        @Override
+        public long sumRange(Date from, Date to) {
+          return rollups.sumRange(from, to);
+        }
+      });
+      return;
+    }
+
+    if (args.length == 2 && args[0].equals("--ledger")) {
+      try (MappedLongIntRangeMap ledger = new MappedLongIntRangeMap(Paths.get(args[1]))) {
+        performCommands(new OperationsHistory() {
+          @Override
+          public void add(Date date, int amount) {
+            ledger.add(date.toEpochDay(), amount);
+          }
+
+          @Override
+          public long sumRange(Date from, Date to) {
+            return ledger.sumRange(from.toEpochDay(), to.toEpochDay());
+          }
+        });
+      }
+      return;
+    }
+
+    BTreeRangeMap<Date, Integer> operationsHistory = new BTreeRangeMap<>(Integer::longValue);
+
+    if (args.length == 2 && args[0].equals("--wal")) {
+      try (WriteAheadLog log = new WriteAheadLog(Paths.get(args[1]), operationsHistory)) {
+        performCommands(new OperationsHistory() {
+          @Override
+          public void add(Date date, int amount) {
+            try {
+              log.append(date, amount);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+            operationsHistory.add(date, amount);
+          }
+
+          @Override
+          public long sumRange(Date from, Date to) {
+            return operationsHistory.sumRange(from, to);
+          }
+        });
+      }
+      return;
+    }
+
+    performCommands(new OperationsHistory() {
+      @Override
+      public void add(Date date, int amount) {
+        operationsHistory.add(date, amount);
+      }
+
+      @Override
+      public long sumRange(Date from, Date to) {
+        return operationsHistory.sumRange(from, to);
+      }
+    });
+  }
+
+  private static void performCommands(
+      OperationsHistory operationsHistory
+  ) throws InvalidInputException {
     Scanner scanner = new Scanner(System.in);
     int n = scanner.nextInt();
     scanner.nextLine();
@@ -88,6 +271,33 @@ public class Solution {
     }
   }
 
+  /**
+   * Operations history with the only two operations required by the commands.
+   */
+  private interface OperationsHistory {
+    void add(Date date, int amount);
+
+    long sumRange(Date from, Date to);
+  }
+
+  /**
+   * Command with its arguments: date and amount of the operation
+   * or dates of the report.
+   */
+  private static final class ParsedCommand {
+    final Command command;
+    final Date date;
+    final Date toDate;
+    final int amount;
+
+    ParsedCommand(Command command, Date date, Date toDate, int amount) {
+      this.command = command;
+      this.date = date;
+      this.toDate = toDate;
+      this.amount = amount;
+    }
+  }
+
   /**
    * {@code InvalidInputException} is thrown when program
    * reads input, which is in the incorrect format.
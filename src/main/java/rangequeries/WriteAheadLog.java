@@ -0,0 +1,312 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package rangequeries;
+
+import common.Date;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of ledger operations: every operation is appended to the log
+ * and forced to disk before it is applied to the operations history, and
+ * the history is restored by replaying the log on startup.
+ * <p>
+ * Operation is kept as a compact binary record: epoch day of the date and
+ * the amount (8 bytes). Records are written in frames: number of records
+ * and CRC32C checksum of the records followed by the records. Frame which
+ * is not complete (e.g. after a crash in the middle of writing) ends the log.
+ * <p>
+ * File is pre-allocated with zeros in big chunks, so that appends don't
+ * change the size of the file and forcing doesn't need to write metadata.
+ * <p>
+ * Concurrent writers are batched into group commits: records of all writers
+ * that arrive while a frame is being forced are collected into the next frame,
+ * which is written and forced once by one of them. So there is a single
+ * {@code force()} per group instead of one per operation.
+ */
+public class WriteAheadLog implements Closeable {
+  static final long DEFAULT_PREALLOCATION_SIZE = 64L << 20;
+  private static final int FRAME_HEADER_SIZE = 8;
+  private static final int RECORD_SIZE = 8;
+  private static final int INITIAL_BUFFER_SIZE = 64 << 10;
+
+  private final FileChannel channel;
+  private final long preallocationSize;
+  private final ReentrantLock lock;
+  private final Condition committed;
+  // Frame (header space and records) collected for the next group commit
+  private ByteBuffer pendingFrame;
+  // Buffer for the frame after the one being committed
+  private ByteBuffer spareFrame;
+  private long pendingGroup;
+  private long committedGroup;
+  private boolean committing;
+  private IOException failure;
+  // Position of the next frame and size of the pre-allocated file,
+  // changed only by the committing writer
+  private long position;
+  private long allocatedSize;
+  private int replayedCount;
+
+  /**
+   * Opens the log (creates it if it doesn't exist) with default pre-allocation
+   * size and replays it into the {@code operationsHistory}.
+   */
+  public WriteAheadLog(Path path, RangeMap<Date, Integer> operationsHistory) throws IOException {
+    this(path, operationsHistory, DEFAULT_PREALLOCATION_SIZE);
+  }
+
+  /**
+   * Opens the log (creates it if it doesn't exist) and replays it into
+   * the {@code operationsHistory}.
+   *
+   * @param preallocationSize number of bytes the file is extended by, when
+   *                          it has no space for the next frame
+   */
+  public WriteAheadLog(
+      Path path,
+      RangeMap<Date, Integer> operationsHistory,
+      long preallocationSize
+  ) throws IOException {
+    if (preallocationSize <= 0) {
+      throw new IllegalArgumentException("pre-allocation size must be positive");
+    }
+
+    this.channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE
+    );
+    this.preallocationSize = preallocationSize;
+    this.lock = new ReentrantLock();
+    this.committed = lock.newCondition();
+    this.pendingFrame = createFrameBuffer(INITIAL_BUFFER_SIZE);
+    this.spareFrame = createFrameBuffer(INITIAL_BUFFER_SIZE);
+    this.pendingGroup = 1;
+    this.committedGroup = 0;
+
+    try {
+      this.allocatedSize = channel.size();
+      replay(operationsHistory);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return number of records replayed on opening
+   */
+  public int getReplayedCount() {
+    return replayedCount;
+  }
+
+  /**
+   * Appends operation to the log and waits until it is forced to disk
+   * together with operations of the concurrent writers.
+   *
+   * @throws IOException if writing of the group has failed, after that
+   *                     log can't be appended anymore
+   */
+  public void append(Date date, int amount) throws IOException {
+    lock.lock();
+    try {
+      checkFailure();
+      if (pendingFrame.remaining() < RECORD_SIZE) {
+        ByteBuffer biggerFrame = createFrameBuffer(pendingFrame.capacity() * 2);
+        pendingFrame.flip();
+        biggerFrame.position(0);
+        biggerFrame.put(pendingFrame);
+        pendingFrame = biggerFrame;
+      }
+      pendingFrame.putInt((int) date.toEpochDay());
+      pendingFrame.putInt(amount);
+
+      long group = pendingGroup;
+      while (committedGroup < group) {
+        checkFailure();
+        if (committing) {
+          committed.awaitUninterruptibly();
+        } else {
+          // Nobody is writing -> this writer commits the whole group
+          commit();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the pending commit and closes the log.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      while (committing) {
+        committed.awaitUninterruptibly();
+      }
+      channel.close();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static ByteBuffer createFrameBuffer(int capacity) {
+    ByteBuffer frame = ByteBuffer.allocate(capacity);
+    frame.position(FRAME_HEADER_SIZE);
+    return frame;
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("write-ahead log has failed", failure);
+    }
+  }
+
+  /**
+   * Writes and forces the pending frame. Called with the lock held, which
+   * is released during writing, so that other writers can collect
+   * the next group.
+   */
+  private void commit() throws IOException {
+    committing = true;
+    ByteBuffer frame = pendingFrame;
+    long group = pendingGroup;
+    pendingFrame = spareFrame;
+    pendingGroup++;
+
+    IOException error = null;
+    lock.unlock();
+    try {
+      writeFrame(frame);
+    } catch (IOException e) {
+      error = e;
+    } finally {
+      lock.lock();
+    }
+
+    frame.clear();
+    frame.position(FRAME_HEADER_SIZE);
+    spareFrame = frame;
+    committing = false;
+    if (error != null) {
+      failure = error;
+    } else {
+      committedGroup = group;
+    }
+    committed.signalAll();
+
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void writeFrame(ByteBuffer frame) throws IOException {
+    int recordsSize = frame.position() - FRAME_HEADER_SIZE;
+    CRC32C checksum = new CRC32C();
+    checksum.update(frame.array(), FRAME_HEADER_SIZE, recordsSize);
+    frame.putInt(0, recordsSize / RECORD_SIZE);
+    frame.putInt(4, (int) checksum.getValue());
+    frame.flip();
+
+    boolean extended = false;
+    while (position + frame.limit() > allocatedSize) {
+      preallocate();
+      extended = true;
+    }
+
+    long framePosition = position;
+    while (frame.hasRemaining()) {
+      framePosition += channel.write(frame, framePosition);
+    }
+    // Metadata has to be forced only if the file has grown
+    channel.force(extended);
+    position = framePosition;
+  }
+
+  /**
+   * Extends the file by {@code preallocationSize} zeros. Zero frame header
+   * marks the end of the log.
+   */
+  private void preallocate() throws IOException {
+    ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(preallocationSize, 1 << 20));
+    long end = allocatedSize + preallocationSize;
+    long zerosPosition = allocatedSize;
+
+    while (zerosPosition < end) {
+      zeros.clear();
+      zeros.limit((int) Math.min(zeros.capacity(), end - zerosPosition));
+      zerosPosition += channel.write(zeros, zerosPosition);
+    }
+    allocatedSize = end;
+  }
+
+  /**
+   * Applies all complete frames to the {@code operationsHistory} and positions
+   * the log after them.
+   */
+  private void replay(RangeMap<Date, Integer> operationsHistory) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+    ByteBuffer records = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    while (true) {
+      header.clear();
+      if (!readFully(header, position)) {
+        break;
+      }
+
+      int recordsCount = header.getInt(0);
+      long recordsSize = (long) recordsCount * RECORD_SIZE;
+      if (recordsCount <= 0 || position + FRAME_HEADER_SIZE + recordsSize > allocatedSize) {
+        break;
+      }
+
+      if (records.capacity() < recordsSize) {
+        records = ByteBuffer.allocate((int) recordsSize);
+      }
+      records.clear();
+      records.limit((int) recordsSize);
+      readFully(records, position + FRAME_HEADER_SIZE);
+
+      CRC32C checksum = new CRC32C();
+      checksum.update(records.array(), 0, (int) recordsSize);
+      if ((int) checksum.getValue() != header.getInt(4)) {
+        // Torn frame -> it is overwritten by the next append
+        break;
+      }
+
+      for (int i = 0; i < recordsCount; i++) {
+        Date date = Date.fromEpochDay(records.getInt(i * RECORD_SIZE));
+        operationsHistory.add(date, records.getInt(i * RECORD_SIZE + 4));
+      }
+      replayedCount += recordsCount;
+      position += FRAME_HEADER_SIZE + recordsSize;
+    }
+  }
+
+  /**
+   * @return {@code false} if end of the file is reached before
+   *     the buffer is filled
+   */
+  private boolean readFully(ByteBuffer buffer, long readPosition) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, readPosition);
+      if (read < 0) {
+        return false;
+      }
+      readPosition += read;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package simplefrauddetection;
+
+import java.util.Arrays;
+
+/**
+ * In-place MSD radix sort (American flag sort) of primitive key/index arrays.
+ * <p>
+ * Unlike {@link RadixSort} it does not need any buckets or buffers proportional
+ * to the input: elements are permuted inside the arrays themselves and only
+ * 256 counters per digit level are used.
+ * <p>
+ * Pairs are sorted as 64-bit composite keys: 4 bytes of the (signed) key
+ * followed by 4 bytes of the index. Since indices are unique, pairs with equal
+ * keys end up ordered by index, so sorting with ascending indices
+ * {@code 0..n-1} is stable. Digits on which the whole bucket agrees (like
+ * year and month of dates from the same period) are skipped without moving
+ * any elements. Small buckets are finished by insertion sort.
+ */
+public final class AmericanFlagSort {
+  static final int INSERTION_THRESHOLD = 32;
+  private static final int RADIX = 256;
+  private static final int DIGITS_COUNT = 8;
+
+  private AmericanFlagSort() {
+  }
+
+  /**
+   * Sorts {@code keys} in ascending order and applies the same permutation
+   * to {@code indices}. Equal keys are ordered by their indices.
+   *
+   * @param keys    keys to sort, may be negative
+   * @param indices non-negative indices attached to the keys
+   */
+  public static void sort(int[] keys, int[] indices) {
+    if (keys.length != indices.length) {
+      throw new IllegalArgumentException("keys and indices must have equal length");
+    }
+
+    int[][] bucketEnds = new int[DIGITS_COUNT][RADIX];
+    int[] nextPositions = new int[RADIX];
+    sort(keys, indices, 0, keys.length, 0, bucketEnds, nextPositions);
+  }
+
+  /**
+   * @return digit of the composite {@code (key, index)} number at
+   *     position {@code digit} starting from the most significant one
+   */
+  private static int getDigit(int key, int index, int digit) {
+    if (digit < 4) {
+      // Flip sign bit, so that negative keys come before positive ones
+      return ((key ^ Integer.MIN_VALUE) >>> (24 - 8 * digit)) & 0xFF;
+    }
+    return (index >>> (24 - 8 * (digit - 4))) & 0xFF;
+  }
+
+  private static boolean isLess(int key1, int index1, int key2, int index2) {
+    return key1 < key2 || (key1 == key2 && index1 < index2);
+  }
+
+  private static void sort(
+      int[] keys,
+      int[] indices,
+      int from,
+      int to,
+      int digit,
+      int[][] bucketEnds,
+      int[] nextPositions
+  ) {
+    if (to - from <= INSERTION_THRESHOLD) {
+      insertionSort(keys, indices, from, to);
+      return;
+    }
+
+    int[] ends = bucketEnds[digit];
+
+    /* Skip digits that are equal for the whole range */
+
+    while (true) {
+      Arrays.fill(ends, 0);
+      for (int i = from; i < to; i++) {
+        ends[getDigit(keys[i], indices[i], digit)]++;
+      }
+
+      int singleBucket = getDigit(keys[from], indices[from], digit);
+      if (ends[singleBucket] != to - from) {
+        break;
+      }
+
+      digit++;
+      if (digit == DIGITS_COUNT) {
+        // Only possible if indices are not unique: elements are equal
+        return;
+      }
+      ends = bucketEnds[digit];
+    }
+
+    /* Turn counts into bucket boundaries */
+
+    int position = from;
+    for (int bucket = 0; bucket < RADIX; bucket++) {
+      nextPositions[bucket] = position;
+      position += ends[bucket];
+      ends[bucket] = position;
+    }
+
+    /* Permute elements into their buckets following the cycles */
+
+    for (int bucket = 0; bucket < RADIX; bucket++) {
+      while (nextPositions[bucket] < ends[bucket]) {
+        int key = keys[nextPositions[bucket]];
+        int index = indices[nextPositions[bucket]];
+        int keyBucket = getDigit(key, index, digit);
+
+        while (keyBucket != bucket) {
+          int target = nextPositions[keyBucket]++;
+          int displacedKey = keys[target];
+          int displacedIndex = indices[target];
+          keys[target] = key;
+          indices[target] = index;
+          key = displacedKey;
+          index = displacedIndex;
+          keyBucket = getDigit(key, index, digit);
+        }
+
+        keys[nextPositions[bucket]] = key;
+        indices[nextPositions[bucket]] = index;
+        nextPositions[bucket]++;
+      }
+    }
+
+    if (digit + 1 == DIGITS_COUNT) {
+      return;
+    }
+
+    /* Sort each bucket by the next digit */
+
+    int bucketStart = from;
+    for (int bucket = 0; bucket < RADIX; bucket++) {
+      int bucketEnd = ends[bucket];
+      if (bucketEnd - bucketStart > 1) {
+        sort(keys, indices, bucketStart, bucketEnd, digit + 1, bucketEnds, nextPositions);
+      }
+      bucketStart = bucketEnd;
+    }
+  }
+
+  private static void insertionSort(int[] keys, int[] indices, int from, int to) {
+    for (int i = from + 1; i < to; i++) {
+      int key = keys[i];
+      int index = indices[i];
+      int j = i - 1;
+      while (j >= from && isLess(key, index, keys[j], indices[j])) {
+        keys[j + 1] = keys[j];
+        indices[j + 1] = indices[j];
+        j--;
+      }
+      keys[j + 1] = key;
+      indices[j + 1] = index;
+    }
+  }
+}
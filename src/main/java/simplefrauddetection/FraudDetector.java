@@ -9,13 +9,28 @@ import common.Date;
  * Class with fraud detection logic.
  */
 public class FraudDetector {
-  private final MedianBoundedQueue lastTrailingDaysSpendings;
+  private final SpendingWindow lastTrailingDaysSpendings;
+  private final SuspicionRule suspicionRule;
   private double currentDayTotalAmount;
   private int alertsCount;
   private Date lastSpendingDate;
 
+  /**
+   * Creates detector with the default policy: alert is raised when the day total
+   * is at least twice the median of {@code trailingDaysCount} trailing days.
+   */
   public FraudDetector(int trailingDaysCount) {
-    this.lastTrailingDaysSpendings = new MedianBoundedQueue(trailingDaysCount);
+    this(new SortedArrayWindow(trailingDaysCount), new MedianMultipleRule(2));
+  }
+
+  /**
+   * @param trailingDaysWindow empty window, its capacity defines the number of
+   *                           trailing days
+   * @param suspicionRule      rule evaluated on each recorded spending
+   */
+  public FraudDetector(SpendingWindow trailingDaysWindow, SuspicionRule suspicionRule) {
+    this.lastTrailingDaysSpendings = trailingDaysWindow;
+    this.suspicionRule = suspicionRule;
     this.alertsCount = 0;
     this.currentDayTotalAmount = 0;
     this.lastSpendingDate = null;
@@ -72,13 +87,6 @@ public class FraudDetector {
   }
 
   private boolean isSpendingSuspicious(double amount) {
-    boolean hasEnoughDataToEvaluate = lastTrailingDaysSpendings.isFull();
-
-    if (hasEnoughDataToEvaluate) {
-      double median = lastTrailingDaysSpendings.getMedian();
-      return amount >= median * 2;
-    }
-
-    return false;
+    return suspicionRule.isSuspicious(amount, lastTrailingDaysSpendings);
   }
 }
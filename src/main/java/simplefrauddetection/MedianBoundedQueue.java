@@ -3,8 +3,8 @@
  */
 package simplefrauddetection;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 
@@ -12,10 +12,11 @@ import java.util.Queue;
  * Wrapper for {@link Queue} that bounds size to {@code capacity} and provides
  * method for calculating median value of the queue.
  */
-public class MedianBoundedQueue {
+public final class MedianBoundedQueue implements SpendingWindow {
   private final int capacity;
   private final Queue<Double> values;
-  private Double cachedMedian;
+  private double cachedMedian;
+  private boolean isMedianCached;
 
   public MedianBoundedQueue(int capacity) {
     if (capacity <= 0) {
@@ -23,11 +24,11 @@ public class MedianBoundedQueue {
     }
 
     this.capacity = capacity;
-    this.values = new LinkedList<>();
-    this.cachedMedian = null;
+    this.values = new ArrayDeque<>(capacity);
+    this.isMedianCached = false;
   }
 
-  private static Double getMedianInSortedList(List<Double> list) {
+  private static double getMedianInSortedList(List<Double> list) {
     int size = list.size();
     int mid = size / 2;
     if (size % 2 == 1) {
@@ -37,12 +38,14 @@ public class MedianBoundedQueue {
     }
   }
 
+  @Override
   public int getCapacity() {
     return capacity;
   }
 
-  public void add(Double value) {
-    cachedMedian = null;
+  @Override
+  public void add(double value) {
+    isMedianCached = false;
 
     if (isFilled()) {
       values.poll();
@@ -50,27 +53,36 @@ public class MedianBoundedQueue {
     values.add(value);
   }
 
+  @Override
   public boolean isFull() {
     return values.size() >= capacity;
   }
 
+  @Override
   public int size() {
     return values.size();
   }
 
   /**
-   * @return current median of the queue
+   * @return current median of the queue or {@code null} if it is empty
    */
+  @Override
   public Double getMedian() {
+    return values.isEmpty() ? null : getMedianValue();
+  }
+
+  @Override
+  public double getMedianValue() {
     if (values.isEmpty()) {
-      return null;
+      throw new IllegalStateException("queue is empty");
     }
 
     // If there is no cached median, calculate it
-    if (cachedMedian == null) {
+    if (!isMedianCached) {
       ArrayList<Double> valuesCopy = new ArrayList<>(values);
-      MergeSort.sort(valuesCopy);
+      SortEngine.sort(valuesCopy);
       cachedMedian = getMedianInSortedList(valuesCopy);
+      isMedianCached = true;
     }
 
     return cachedMedian;
@@ -0,0 +1,28 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package simplefrauddetection;
+
+/**
+ * {@link SuspicionRule} that raises an alert when the amount is greater or equal
+ * to the median of the full trailing window multiplied by {@code factor}.
+ */
+public final class MedianMultipleRule implements SuspicionRule {
+  private final double factor;
+
+  public MedianMultipleRule(double factor) {
+    this.factor = factor;
+  }
+
+  @Override
+  public boolean isSuspicious(double amount, SpendingWindow window) {
+    boolean hasEnoughDataToEvaluate = window.isFull();
+
+    if (hasEnoughDataToEvaluate) {
+      double median = window.getMedianValue();
+      return amount >= median * factor;
+    }
+
+    return false;
+  }
+}
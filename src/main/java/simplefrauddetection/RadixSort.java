@@ -3,48 +3,78 @@
  */
 package simplefrauddetection;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * Class with radix sorting algorithm implementation.
  * <p>
- * <b><i>Note:</i></b> only suitable for sorting items that
- * can be represented as <b>positive integers.</b>
+ * Items are sorted by their signed 64-bit (or 32-bit) integer keys, one byte
+ * per pass starting from the least significant one. Sign bit of the keys is
+ * flipped before sorting, so that negative keys come before positive ones.
+ * Passes over bytes that are equal for all keys are skipped.
+ * <p>
+ * Sort is stable, which allows sorting by several fields in one pass
+ * with keys built by {@link #compositeKey(int, int)}.
  */
 public class RadixSort {
+  private static final int RADIX = 256;
+
   /**
-   * Sorts a list of items of any type (by getting their positive
-   * integer representations) using radix algorithm.
+   * Sorts a list of items of any type by their integer keys using
+   * radix algorithm.
    *
-   * @param list              list to sort
-   * @param positiveIntGetter function that will be called on items to get their
-   *                          positive integer representations
-   * @param <T>               items type
+   * @param list      list to sort
+   * @param intGetter function that will be called on items to get their
+   *                  integer keys (may be negative)
+   * @param <T>       items type
    */
   public static <T> void sort(
       List<T> list,
-      ToIntFunction<T> positiveIntGetter
+      ToIntFunction<? super T> intGetter
+  ) {
+    sortByLong(list, intGetter::applyAsInt);
+  }
+
+  /**
+   * Sorts a list of items of any type by their 64-bit integer keys using
+   * radix algorithm.
+   *
+   * @param list       list to sort
+   * @param longGetter function that will be called on items to get their
+   *                   long keys (may be negative)
+   * @param <T>        items type
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> void sortByLong(
+      List<T> list,
+      ToLongFunction<? super T> longGetter
   ) {
-    if (list.isEmpty()) {
+    int n = list.size();
+    if (n <= 1) {
       return;
     }
 
-    ArrayList<LinkedList<T>> buckets = createBuckets();
+    Object[] items = new Object[n];
+    long[] keys = new long[n];
 
-    int maxDigits = getDigitsCount(
-        list.stream()
-            .mapToInt(positiveIntGetter)
-            .max()
-            .orElse(0)
-    );
+    int i = 0;
+    for (T item : list) {
+      items[i] = item;
+      // Flip sign bit, so that keys can be compared as unsigned
+      keys[i] = longGetter.applyAsLong(item) ^ Long.MIN_VALUE;
+      i++;
+    }
+
+    items = sortByKeys(keys, items);
 
-    for (int i = 0; i < maxDigits; i++) {
-      transferIntegersFromListToBucketsByDigit(list, buckets, i, positiveIntGetter);
-      transferIntegersFromBucketsToList(buckets, list);
+    ListIterator<T> iterator = list.listIterator();
+    for (Object item : items) {
+      iterator.next();
+      iterator.set((T) item);
     }
   }
 
@@ -58,76 +88,68 @@ public class RadixSort {
   }
 
   /**
-   * @return digit of the {@code number} at {@code index} starting from least
-   *     significant digit
+   * Builds a key which orders items by {@code major} first and then
+   * by {@code minor}, e.g. {@code compositeKey(accountId, epochDay)} groups
+   * spendings by account and orders each group by time.
+   *
+   * @return key for {@link #sortByLong(List, ToLongFunction)}
    */
-  private static byte getDigit(int number, int index) {
-    String s = Integer.toString(Math.abs(number));
-    index = s.length() - 1 - index;
-
-    if (index < 0) {
-      return 0;
-    }
-
-    return (byte) Character.getNumericValue(s.charAt(index));
+  public static long compositeKey(int major, int minor) {
+    return ((long) major << 32) | ((minor ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
   }
 
   /**
-   * @return number of digits in the {@code number}
+   * LSD radix sort of {@code items} by unsigned {@code keys}.
+   *
+   * @return array with sorted items (may be one of the given arrays)
    */
-  private static int getDigitsCount(int number) {
-    return Integer.toString(Math.abs(number)).length();
-  }
+  private static Object[] sortByKeys(long[] keys, Object[] items) {
+    int n = keys.length;
 
-  /**
-   * @return {@link ArrayList} containing 10 empty {@link LinkedList}s.
-   */
-  private static <T> ArrayList<LinkedList<T>> createBuckets() {
-    ArrayList<LinkedList<T>> buckets = new ArrayList<>(10);
-    for (byte i = 0; i < 10; i++) {
-      buckets.add(new LinkedList<>());
+    // Bits that differ at least in one key from the first key
+    long differentBits = 0;
+    for (long key : keys) {
+      differentBits |= key ^ keys[0];
     }
-    return buckets;
-  }
 
-  /**
-   * Transfers items from the {@code list} into {@code buckets}.
-   * Index of bucket to transfer item into is determined by the digit
-   * of the item's integer representation at index {@code digitIndex}.
-   *
-   * @param list              list containing values
-   * @param buckets           buckets to put items into
-   * @param digitIndex        index of the digit, by which index of the bucket will be
-   *                          determined
-   * @param positiveIntGetter function that converts values from list into positive
-   *                          integers
-   */
-  private static <T> void transferIntegersFromListToBucketsByDigit(
-      List<T> list,
-      ArrayList<LinkedList<T>> buckets,
-      int digitIndex,
-      ToIntFunction<T> positiveIntGetter
-  ) {
-    Iterator<T> iterator = list.iterator();
-    while (iterator.hasNext()) {
-      T value = iterator.next();
-      int intValue = positiveIntGetter.applyAsInt(value);
-      buckets.get(getDigit(intValue, digitIndex)).add(value);
-      iterator.remove();
+    long[] keysBuffer = new long[n];
+    Object[] itemsBuffer = new Object[n];
+    int[] positions = new int[RADIX + 1];
+
+    for (int shift = 0; shift < Long.SIZE; shift += 8) {
+      if (((differentBits >>> shift) & 0xFF) == 0) {
+        /* All keys have the same byte here -> nothing to do in this pass */
+        continue;
+      }
+
+      Arrays.fill(positions, 0);
+      for (long key : keys) {
+        positions[getByte(key, shift) + 1]++;
+      }
+      for (int i = 1; i < positions.length; i++) {
+        positions[i] += positions[i - 1];
+      }
+      for (int i = 0; i < n; i++) {
+        int position = positions[getByte(keys[i], shift)]++;
+        keysBuffer[position] = keys[i];
+        itemsBuffer[position] = items[i];
+      }
+
+      long[] swapKeys = keys;
+      keys = keysBuffer;
+      keysBuffer = swapKeys;
+      Object[] swapItems = items;
+      items = itemsBuffer;
+      itemsBuffer = swapItems;
     }
+
+    return items;
   }
 
   /**
-   * Transfer all values from {@code buckets} 0..9 into {@code list}.
+   * @return byte of the {@code key} starting at bit {@code shift}
    */
-  private static <T> void transferIntegersFromBucketsToList(
-      ArrayList<LinkedList<T>> buckets,
-      List<T> list
-  ) {
-    for (LinkedList<T> bucket : buckets) {
-      while (!bucket.isEmpty()) {
-        list.add(bucket.removeFirst());
-      }
-    }
+  private static int getByte(long key, int shift) {
+    return (int) (key >>> shift) & 0xFF;
   }
 }
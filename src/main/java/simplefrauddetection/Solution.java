@@ -3,7 +3,7 @@
  */
 package simplefrauddetection;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 import java.util.regex.Matcher;
@@ -45,14 +45,14 @@ public class Solution {
     int trailingDaysCount = scanner.nextInt();
     scanner.nextLine();
 
-    List<Spending> spendings = new LinkedList<>();
+    List<Spending> spendings = new ArrayList<>(recordsCount);
 
     for (int i = 0; i < recordsCount; i++) {
       spendings.add(parseSpending(scanner.nextLine()));
     }
 
     FraudDetector fraudDetector = new FraudDetector(trailingDaysCount);
-    RadixSort.sort(spendings, s -> s.getDate().toInt());
+    SortEngine.sort(spendings, s -> s.getDate().toInt());
 
     for (Spending spending : spendings) {
       fraudDetector.recordSpending(spending);
@@ -0,0 +1,445 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package simplefrauddetection;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntPredicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Facade over sorting algorithms that inspects the input before sorting and
+ * chooses the algorithm suitable for it.
+ * <p>
+ * The input is scanned once to find out its size, whether it is already sorted
+ * (and how many descents it has) and the range of the keys. Then:
+ * <ol>
+ *   <li>sorted input is left untouched;</li>
+ *   <li>small input is sorted by insertion sort;</li>
+ *   <li>keys from a narrow range are sorted by counting sort;</li>
+ *   <li>nearly sorted input is sorted by natural merge sort;</li>
+ *   <li>huge input is sorted in parallel;</li>
+ *   <li>large input is sorted by in-place MSD radix sort;</li>
+ *   <li>everything else is sorted by byte-wise radix sort.</li>
+ * </ol>
+ * All strategies are stable. Number of times each strategy was chosen
+ * is recorded and can be read with {@link #getStrategyCount(Strategy)}.
+ */
+public final class SortEngine {
+  static final int INSERTION_THRESHOLD = 32;
+  static final int IN_PLACE_RADIX_THRESHOLD = 1 << 15;
+  static final int PARALLEL_THRESHOLD = 1 << 17;
+  private static final int COUNTING_RANGE_FACTOR = 2;
+  private static final int NEARLY_SORTED_DESCENTS_DIVISOR = 64;
+  private static final AtomicLongArray strategyCounters = new AtomicLongArray(
+      Strategy.values().length
+  );
+
+  private SortEngine() {
+  }
+
+  /**
+   * Sorts a list of items by their integer keys. Keys may be negative.
+   *
+   * @param list      list to sort
+   * @param keyGetter function that will be called on items to get their keys
+   * @param <T>       items type
+   *
+   * @return strategy that was used
+   */
+  public static <T> Strategy sort(List<T> list, ToIntFunction<? super T> keyGetter) {
+    return sort(list, keyGetter, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Same as {@link #sort(List, ToIntFunction)}, but parallel sort is chosen
+   * only if there are more than one of the {@code processors}.
+   */
+  static <T> Strategy sort(List<T> list, ToIntFunction<? super T> keyGetter, int processors) {
+    int n = list.size();
+    if (n <= 1) {
+      return record(Strategy.NONE);
+    }
+
+    Object[] items = new Object[n];
+    int[] keys = new int[n];
+    int min = Integer.MAX_VALUE;
+    int max = Integer.MIN_VALUE;
+    int descents = 0;
+
+    int i = 0;
+    for (T item : list) {
+      int key = keyGetter.applyAsInt(item);
+      if (i > 0 && key < keys[i - 1]) {
+        descents++;
+      }
+      items[i] = item;
+      keys[i] = key;
+      min = Math.min(min, key);
+      max = Math.max(max, key);
+      i++;
+    }
+
+    long range = (long) max - min;
+    Strategy strategy;
+
+    if (descents == 0) {
+      return record(Strategy.NONE);
+    } else if (n <= INSERTION_THRESHOLD) {
+      strategy = Strategy.INSERTION;
+      insertionSort(keys, items);
+    } else if (range < (long) n * COUNTING_RANGE_FACTOR) {
+      strategy = Strategy.COUNTING;
+      items = countingSort(keys, items, min, (int) range + 1);
+    } else if (descents <= n / NEARLY_SORTED_DESCENTS_DIVISOR) {
+      strategy = Strategy.MERGE;
+      items = naturalMergeSort(keys, items);
+    } else if (n >= PARALLEL_THRESHOLD && processors > 1) {
+      strategy = Strategy.PARALLEL;
+      items = parallelSort(keys, items);
+    } else if (n >= IN_PLACE_RADIX_THRESHOLD) {
+      strategy = Strategy.MSD_RADIX;
+      int[] order = new int[n];
+      for (int j = 0; j < n; j++) {
+        order[j] = j;
+      }
+      AmericanFlagSort.sort(keys, order);
+      writeBack(items, order, list);
+      return record(strategy);
+    } else {
+      strategy = Strategy.RADIX;
+      items = radixSort(keys, items, min, range);
+    }
+
+    writeBack(items, list);
+    return record(strategy);
+  }
+
+  /**
+   * Sorts a list of comparable items. Only comparison based strategies are
+   * applicable here, so the choice is between insertion, merge and
+   * parallel sort.
+   *
+   * @param list list to sort
+   * @param <T>  items type
+   *
+   * @return strategy that was used
+   */
+  public static <T extends Comparable<? super T>> Strategy sort(List<T> list) {
+    int n = list.size();
+    if (n <= 1) {
+      return record(Strategy.NONE);
+    }
+
+    Object[] items = list.toArray();
+    int descents = 0;
+    for (int i = 1; i < n; i++) {
+      if (compare(items[i], items[i - 1]) < 0) {
+        descents++;
+      }
+    }
+
+    Strategy strategy;
+
+    if (descents == 0) {
+      return record(Strategy.NONE);
+    } else if (n <= INSERTION_THRESHOLD) {
+      strategy = Strategy.INSERTION;
+      insertionSort(items);
+    } else if (n >= PARALLEL_THRESHOLD
+        && descents > n / NEARLY_SORTED_DESCENTS_DIVISOR
+        && Runtime.getRuntime().availableProcessors() > 1) {
+      strategy = Strategy.PARALLEL;
+      // Arrays.parallelSort for objects is a stable merge sort
+      Arrays.parallelSort(items, 0, n, SortEngine::compare);
+    } else {
+      strategy = Strategy.MERGE;
+      items = naturalMergeSort(items);
+    }
+
+    writeBack(items, list);
+    return record(strategy);
+  }
+
+  /**
+   * @return number of times {@code strategy} was chosen since start
+   *     (or since the last {@link #resetMetrics()})
+   */
+  public static long getStrategyCount(Strategy strategy) {
+    return strategyCounters.get(strategy.ordinal());
+  }
+
+  public static void resetMetrics() {
+    for (int i = 0; i < strategyCounters.length(); i++) {
+      strategyCounters.set(i, 0);
+    }
+  }
+
+  private static Strategy record(Strategy strategy) {
+    strategyCounters.incrementAndGet(strategy.ordinal());
+    return strategy;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int compare(Object a, Object b) {
+    return ((Comparable<Object>) a).compareTo(b);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> void writeBack(Object[] items, List<T> list) {
+    ListIterator<T> iterator = list.listIterator();
+    for (Object item : items) {
+      iterator.next();
+      iterator.set((T) item);
+    }
+  }
+
+  /**
+   * Writes {@code items[order[0]], items[order[1]], ...} into the list.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> void writeBack(Object[] items, int[] order, List<T> list) {
+    ListIterator<T> iterator = list.listIterator();
+    for (int index : order) {
+      iterator.next();
+      iterator.set((T) items[index]);
+    }
+  }
+
+  private static void insertionSort(int[] keys, Object[] items) {
+    for (int i = 1; i < keys.length; i++) {
+      int key = keys[i];
+      Object item = items[i];
+      int j = i - 1;
+      while (j >= 0 && keys[j] > key) {
+        keys[j + 1] = keys[j];
+        items[j + 1] = items[j];
+        j--;
+      }
+      keys[j + 1] = key;
+      items[j + 1] = item;
+    }
+  }
+
+  private static void insertionSort(Object[] items) {
+    for (int i = 1; i < items.length; i++) {
+      Object item = items[i];
+      int j = i - 1;
+      while (j >= 0 && compare(items[j], item) > 0) {
+        items[j + 1] = items[j];
+        j--;
+      }
+      items[j + 1] = item;
+    }
+  }
+
+  /**
+   * @param rangeSize number of distinct possible keys ({@code max - min + 1})
+   *
+   * @return sorted items
+   */
+  private static Object[] countingSort(int[] keys, Object[] items, int min, int rangeSize) {
+    int[] positions = new int[rangeSize + 1];
+    for (int key : keys) {
+      positions[key - min + 1]++;
+    }
+    for (int i = 1; i < positions.length; i++) {
+      positions[i] += positions[i - 1];
+    }
+
+    Object[] sorted = new Object[items.length];
+    for (int i = 0; i < keys.length; i++) {
+      sorted[positions[keys[i] - min]++] = items[i];
+    }
+    return sorted;
+  }
+
+  /**
+   * LSD radix sort by bytes of {@code key - min}. Only bytes that can be
+   * non-zero within the key range are processed.
+   *
+   * @return sorted items
+   */
+  private static Object[] radixSort(int[] keys, Object[] items, int min, long range) {
+    int n = keys.length;
+    int[] keysBuffer = new int[n];
+    Object[] itemsBuffer = new Object[n];
+    int[] counts = new int[257];
+
+    for (int shift = 0; shift < 32 && (range >>> shift) > 0; shift += 8) {
+      Arrays.fill(counts, 0);
+      for (int key : keys) {
+        counts[(((key - min) >>> shift) & 0xFF) + 1]++;
+      }
+      for (int i = 1; i < counts.length; i++) {
+        counts[i] += counts[i - 1];
+      }
+      for (int i = 0; i < n; i++) {
+        int position = counts[((keys[i] - min) >>> shift) & 0xFF]++;
+        keysBuffer[position] = keys[i];
+        itemsBuffer[position] = items[i];
+      }
+
+      int[] swapKeys = keys;
+      keys = keysBuffer;
+      keysBuffer = swapKeys;
+      Object[] swapItems = items;
+      items = itemsBuffer;
+      itemsBuffer = swapItems;
+    }
+
+    return items;
+  }
+
+  /**
+   * Sorts packed {@code (key, index)} pairs with {@link Arrays#parallelSort}.
+   * Signed key in the upper bits keeps the signed order of the pairs,
+   * and index in the lower bits makes the result stable.
+   *
+   * @return sorted items
+   */
+  private static Object[] parallelSort(int[] keys, Object[] items) {
+    int n = keys.length;
+    long[] packed = new long[n];
+    for (int i = 0; i < n; i++) {
+      packed[i] = ((long) keys[i] << 32) | i;
+    }
+
+    Arrays.parallelSort(packed);
+
+    Object[] sorted = new Object[n];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = items[(int) packed[i]];
+    }
+    return sorted;
+  }
+
+  /**
+   * Bottom-up merge sort that starts from the already sorted runs of
+   * the input instead of single elements, so that it takes
+   * O(n * log(runs)) time.
+   *
+   * @return sorted items
+   */
+  private static Object[] naturalMergeSort(int[] keys, Object[] items) {
+    int n = keys.length;
+    int[] source = keys;
+    int[] runs = findRuns(n, i -> source[i] < source[i - 1]);
+    int runsCount = runs[n];
+
+    int[] keysBuffer = new int[n];
+    Object[] itemsBuffer = new Object[n];
+
+    while (runsCount > 1) {
+      int merged = 0;
+      for (int r = 0; r < runsCount; r += 2) {
+        int from = runs[r];
+        int middle = r + 1 < runsCount ? runs[r + 1] : n;
+        int to = r + 2 < runsCount ? runs[r + 2] : n;
+
+        int left = from;
+        int right = middle;
+        for (int k = from; k < to; k++) {
+          if (right >= to || (left < middle && keys[left] <= keys[right])) {
+            keysBuffer[k] = keys[left];
+            itemsBuffer[k] = items[left++];
+          } else {
+            keysBuffer[k] = keys[right];
+            itemsBuffer[k] = items[right++];
+          }
+        }
+        runs[merged++] = from;
+      }
+      runsCount = merged;
+
+      int[] swapKeys = keys;
+      keys = keysBuffer;
+      keysBuffer = swapKeys;
+      Object[] swapItems = items;
+      items = itemsBuffer;
+      itemsBuffer = swapItems;
+    }
+
+    return items;
+  }
+
+  /**
+   * Same as {@link #naturalMergeSort(int[], Object[])}, but compares items.
+   */
+  private static Object[] naturalMergeSort(Object[] items) {
+    int n = items.length;
+    Object[] source = items;
+    int[] runs = findRuns(n, i -> compare(source[i], source[i - 1]) < 0);
+    int runsCount = runs[n];
+
+    Object[] buffer = new Object[n];
+
+    while (runsCount > 1) {
+      int merged = 0;
+      for (int r = 0; r < runsCount; r += 2) {
+        int from = runs[r];
+        int middle = r + 1 < runsCount ? runs[r + 1] : n;
+        int to = r + 2 < runsCount ? runs[r + 2] : n;
+
+        int left = from;
+        int right = middle;
+        for (int k = from; k < to; k++) {
+          if (right >= to || (left < middle && compare(items[left], items[right]) <= 0)) {
+            buffer[k] = items[left++];
+          } else {
+            buffer[k] = items[right++];
+          }
+        }
+        runs[merged++] = from;
+      }
+      runsCount = merged;
+
+      Object[] swap = items;
+      items = buffer;
+      buffer = swap;
+    }
+
+    return items;
+  }
+
+  /**
+   * @param isDescent returns {@code true} if item at the given index is less
+   *                  than the previous one
+   *
+   * @return array of size {@code n + 1}, where first elements are start
+   *     indices of the sorted runs, and the last element is number of runs
+   */
+  private static int[] findRuns(int n, IntPredicate isDescent) {
+    int[] runs = new int[n + 1];
+    int runsCount = 1;
+    for (int i = 1; i < n; i++) {
+      if (isDescent.test(i)) {
+        runs[runsCount++] = i;
+      }
+    }
+    runs[n] = runsCount;
+    return runs;
+  }
+
+  /**
+   * Sorting strategies that {@link SortEngine} can choose from.
+   */
+  public enum Strategy {
+    /**
+     * Input was empty, single item or already sorted.
+     */
+    NONE,
+    INSERTION,
+    COUNTING,
+    MERGE,
+    RADIX,
+    /**
+     * In-place {@link AmericanFlagSort}, which needs no buffers for items.
+     */
+    MSD_RADIX,
+    PARALLEL
+  }
+}
@@ -0,0 +1,90 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package simplefrauddetection;
+
+import java.util.Arrays;
+
+/**
+ * {@link SpendingWindow} backed by two pre-sized arrays: a ring buffer that keeps
+ * values in insertion order (for eviction) and a sorted copy of the same values
+ * (for the median).
+ * <p>
+ * Adding is O(capacity) because of the shift inside the sorted array, but
+ * it does not allocate and the median is read in O(1).
+ */
+public final class SortedArrayWindow implements SpendingWindow {
+  private final double[] ring;
+  private final double[] sorted;
+  private int head;
+  private int size;
+
+  public SortedArrayWindow(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be greater than 0");
+    }
+
+    this.ring = new double[capacity];
+    this.sorted = new double[capacity];
+    this.head = 0;
+    this.size = 0;
+  }
+
+  @Override
+  public int getCapacity() {
+    return ring.length;
+  }
+
+  @Override
+  public void add(double value) {
+    if (isFull()) {
+      /* Evict the oldest value from both arrays */
+      double evicted = ring[head];
+      int evictedIndex = Arrays.binarySearch(sorted, 0, size, evicted);
+      System.arraycopy(sorted, evictedIndex + 1, sorted, evictedIndex, size - evictedIndex - 1);
+      size--;
+
+      ring[head] = value;
+      head = (head + 1) % ring.length;
+    } else {
+      ring[(head + size) % ring.length] = value;
+    }
+
+    int insertionIndex = Arrays.binarySearch(sorted, 0, size, value);
+    if (insertionIndex < 0) {
+      insertionIndex = -insertionIndex - 1;
+    }
+    System.arraycopy(sorted, insertionIndex, sorted, insertionIndex + 1, size - insertionIndex);
+    sorted[insertionIndex] = value;
+    size++;
+  }
+
+  @Override
+  public boolean isFull() {
+    return size >= ring.length;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Double getMedian() {
+    return size == 0 ? null : getMedianValue();
+  }
+
+  @Override
+  public double getMedianValue() {
+    if (size == 0) {
+      throw new IllegalStateException("window is empty");
+    }
+
+    int mid = size / 2;
+    if (size % 2 == 1) {
+      return sorted[mid];
+    } else {
+      return (sorted[mid - 1] + sorted[mid]) / 2;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package simplefrauddetection;
+
+/**
+ * Bounded window of trailing days spendings that is used by {@link FraudDetector}
+ * to evaluate the current day spending.
+ * <p>
+ * Implementations are expected to be {@code final} classes, so that the call
+ * sites in {@link FraudDetector} stay monomorphic and can be inlined by the JIT.
+ */
+public interface SpendingWindow {
+  /**
+   * @return maximum number of values the window holds
+   */
+  int getCapacity();
+
+  /**
+   * Adds value to the window evicting the oldest one if the window is full.
+   */
+  void add(double value);
+
+  boolean isFull();
+
+  int size();
+
+  /**
+   * @return median of the values in the window or {@code null} if it is empty
+   */
+  Double getMedian();
+
+  /**
+   * Same as {@link #getMedian()}, but without boxing, so it is used on
+   * the hot path after checking that the window is not empty.
+   *
+   * @return median of the values in the window
+   *
+   * @throws IllegalStateException if the window is empty
+   */
+  double getMedianValue();
+}
@@ -0,0 +1,197 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package simplefrauddetection;
+
+import java.util.List;
+import java.util.ListIterator;
+import java.util.function.Function;
+
+/**
+ * Class with MSD radix sort implementation for string keys.
+ * <p>
+ * Strings are distributed into buckets by one byte of their UTF-16 chars at
+ * a time (high byte first), so the resulting order is the same as the natural
+ * order of {@link String}. Strings in a bucket share the prefix that has already
+ * been processed, so it is never compared again. Bytes on which the whole
+ * bucket agrees (like the high byte of ASCII chars or a common prefix of
+ * identifiers) are skipped without moving any strings. Small buckets are
+ * finished by insertion sort, which compares strings starting right after
+ * their common prefix.
+ * <p>
+ * Sort is stable.
+ */
+public final class StringRadixSort {
+  static final int INSERTION_THRESHOLD = 16;
+  private static final int RADIX = 256;
+
+  private StringRadixSort() {
+  }
+
+  /**
+   * Sorts array of strings in their natural order.
+   *
+   * @param strings strings to sort, must not contain {@code null}
+   */
+  public static void sort(String[] strings) {
+    sort(strings, null, new String[strings.length], null, 0, strings.length, 0);
+  }
+
+  /**
+   * Sorts a list of items of any type by their string keys.
+   *
+   * @param list      list to sort
+   * @param keyGetter function that will be called on items to get their keys
+   * @param <T>       items type
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> void sort(List<T> list, Function<? super T, String> keyGetter) {
+    int n = list.size();
+    String[] keys = new String[n];
+    Object[] items = new Object[n];
+
+    int i = 0;
+    for (T item : list) {
+      keys[i] = keyGetter.apply(item);
+      items[i] = item;
+      i++;
+    }
+
+    sort(keys, items, new String[n], new Object[n], 0, n, 0);
+
+    ListIterator<T> iterator = list.listIterator();
+    for (Object item : items) {
+      iterator.next();
+      iterator.set((T) item);
+    }
+  }
+
+  /**
+   * @return byte of the string at position {@code digit} (two bytes per char,
+   *     high byte first) plus one, or 0 if the string is shorter
+   */
+  private static int getDigit(String s, int digit) {
+    int charIndex = digit >>> 1;
+    if (charIndex >= s.length()) {
+      return 0;
+    }
+
+    char c = s.charAt(charIndex);
+    return ((digit & 1) == 0 ? (c >>> 8) : (c & 0xFF)) + 1;
+  }
+
+  /**
+   * Sorts range {@code [from, to)} of keys (and items, if they are not
+   * {@code null}) assuming all keys in the range share first
+   * {@code digit} bytes.
+   */
+  private static void sort(
+      String[] keys,
+      Object[] items,
+      String[] keysBuffer,
+      Object[] itemsBuffer,
+      int from,
+      int to,
+      int digit
+  ) {
+    if (to - from <= INSERTION_THRESHOLD) {
+      insertionSort(keys, items, from, to, digit >>> 1);
+      return;
+    }
+
+    // Bucket 0 is for ended strings, buckets 1..RADIX are for bytes
+    int[] positions = new int[RADIX + 3];
+
+    /* Skip bytes that are equal for the whole range */
+
+    while (true) {
+      for (int i = from; i < to; i++) {
+        positions[getDigit(keys[i], digit) + 2]++;
+      }
+
+      int singleBucket = getDigit(keys[from], digit);
+      if (positions[singleBucket + 2] != to - from) {
+        break;
+      }
+
+      if (singleBucket == 0) {
+        /* All strings have ended -> they are equal */
+        return;
+      }
+
+      positions[singleBucket + 2] = 0;
+      digit++;
+    }
+
+    /* Distribute into buffer and copy back */
+
+    for (int i = 1; i < positions.length; i++) {
+      positions[i] += positions[i - 1];
+    }
+    for (int i = from; i < to; i++) {
+      int position = from + positions[getDigit(keys[i], digit) + 1]++;
+      keysBuffer[position] = keys[i];
+      if (items != null) {
+        itemsBuffer[position] = items[i];
+      }
+    }
+    System.arraycopy(keysBuffer, from, keys, from, to - from);
+    if (items != null) {
+      System.arraycopy(itemsBuffer, from, items, from, to - from);
+    }
+
+    /* Now bucket b is [from + positions[b], from + positions[b + 1]) */
+
+    for (int bucket = 1; bucket <= RADIX; bucket++) {
+      int bucketFrom = from + positions[bucket];
+      int bucketTo = from + positions[bucket + 1];
+      if (bucketTo - bucketFrom > 1) {
+        sort(keys, items, keysBuffer, itemsBuffer, bucketFrom, bucketTo, digit + 1);
+      }
+    }
+  }
+
+  /**
+   * Compares strings that are known to share first {@code offset} chars.
+   */
+  private static int compareFrom(String a, String b, int offset) {
+    int aLength = a.length();
+    int bLength = b.length();
+    int limit = Math.min(aLength, bLength);
+
+    for (int i = offset; i < limit; i++) {
+      char aChar = a.charAt(i);
+      char bChar = b.charAt(i);
+      if (aChar != bChar) {
+        return aChar - bChar;
+      }
+    }
+
+    return aLength - bLength;
+  }
+
+  private static void insertionSort(
+      String[] keys,
+      Object[] items,
+      int from,
+      int to,
+      int offset
+  ) {
+    for (int i = from + 1; i < to; i++) {
+      String key = keys[i];
+      Object item = items == null ? null : items[i];
+      int j = i - 1;
+      while (j >= from && compareFrom(keys[j], key, offset) > 0) {
+        keys[j + 1] = keys[j];
+        if (items != null) {
+          items[j + 1] = items[j];
+        }
+        j--;
+      }
+      keys[j + 1] = key;
+      if (items != null) {
+        items[j + 1] = item;
+      }
+    }
+  }
+}
@@ -0,0 +1,18 @@
+/**
+ * Created by Vladislav Deryabkin
+ */
+package simplefrauddetection;
+
+/**
+ * Predicate which decides whether the current day spending is suspicious
+ * relative to the trailing days {@link SpendingWindow}.
+ */
+public interface SuspicionRule {
+  /**
+   * @param amount total amount spent in the current day
+   * @param window trailing days spendings (not including the current day)
+   *
+   * @return {@code true} if the alert must be raised
+   */
+  boolean isSuspicious(double amount, SpendingWindow window);
+}
@@ -3,10 +3,17 @@ package rangequeries;
 import static common.Utils.getRandomInteger;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.StreamSupport;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 
@@ -218,4 +225,648 @@ class BTreeRangeMapTest {
 
     assertEquals(0, sumIntegers(rangeMap.lookupRange(-15, 20)));
   }
+
+  @Test
+  void testRejectsTooSmallBranchingFactor() {
+    assertThrows(IllegalArgumentException.class, () -> new BTreeRangeMap<Integer, Integer>(3));
+  }
+
+  @RepeatedTest(100)
+  void testMatchesTreeMapWithSmallBranchingFactor() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(getRandomInteger(4, 7));
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<>();
+
+    for (int i = 0; i < 1000; i++) {
+      int key = getRandomInteger(-500, 500);
+      rangeMap.add(key, i);
+      expected.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+    }
+
+    for (int key = -501; key <= 501; key++) {
+      List<Integer> values = expected.get(key);
+      assertEquals(values == null ? null : values.get(0), rangeMap.lookup(key));
+    }
+
+    for (Integer from : expected.keySet()) {
+      int to = from + getRandomInteger(0, 100);
+      List<Integer> expectedRange = new ArrayList<>();
+      expected.subMap(from, true, to, true).values().forEach(expectedRange::addAll);
+      assertEquals(expectedRange, rangeMap.lookupRange(from, to));
+    }
+  }
+
+  @RepeatedTest(100)
+  void testSumRangeMatchesSumOfLookupRange() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), Integer::longValue
+    );
+    TreeMap<Integer, Long> expectedSums = new TreeMap<>();
+
+    for (int i = 0; i < 1000; i++) {
+      int key = getRandomInteger(-500, 500);
+      int value = getRandomInteger(-100000, 100000);
+      rangeMap.add(key, value);
+      expectedSums.merge(key, (long) value, Long::sum);
+    }
+
+    for (int i = 0; i < 100; i++) {
+      int from = getRandomInteger(-600, 600);
+      int to = from + getRandomInteger(-10, 300);
+
+      long expected = from > to ? 0 : expectedSums.subMap(from, true, to, true)
+          .values()
+          .stream()
+          .mapToLong(Long::longValue)
+          .sum();
+
+      assertEquals(expected, rangeMap.sumRange(from, to));
+    }
+  }
+
+  @Test
+  void testSumRangeWithoutSummandIsUnsupported() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>();
+    rangeMap.add(1, 1);
+    assertThrows(UnsupportedOperationException.class, () -> rangeMap.sumRange(0, 2));
+  }
+
+  @RepeatedTest(50)
+  void testAggregationsMatchLookupRange() {
+    LongAggregation<Integer> min = Aggregations.min(Integer::longValue);
+    LongAggregation<Integer> max = Aggregations.max(Integer::longValue);
+    LongAggregation<Integer> count = Aggregations.count();
+    Aggregation<Integer, Aggregations.Average> average =
+        Aggregations.average(Integer::longValue);
+    // Not commutative, so it checks that values are combined in order of keys
+    Aggregation<Integer, String> concatenation =
+        Aggregations.of("", String::valueOf, String::concat);
+
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), min, max, count, average, concatenation
+    );
+
+    for (int i = 0; i < 1000; i++) {
+      rangeMap.add(getRandomInteger(-500, 500), getRandomInteger(-100000, 100000));
+    }
+
+    LongAggregation<Integer> notRegisteredSum = Aggregations.sum(Integer::longValue);
+
+    for (int i = 0; i < 100; i++) {
+      int from = getRandomInteger(-600, 600);
+      int to = from + getRandomInteger(-10, 300);
+
+      List<Integer> values = new ArrayList<>();
+      for (int key = from; key <= to; key++) {
+        values.addAll(rangeMap.lookupRange(key, key));
+      }
+
+      assertEquals(
+          values.stream().mapToLong(Integer::longValue).min().orElse(Long.MAX_VALUE),
+          rangeMap.aggregateAsLong(min, from, to)
+      );
+      assertEquals(
+          values.stream().mapToLong(Integer::longValue).max().orElse(Long.MIN_VALUE),
+          rangeMap.aggregateAsLong(max, from, to)
+      );
+      assertEquals(values.size(), rangeMap.aggregateAsLong(count, from, to));
+      assertEquals(
+          values.stream().mapToLong(Integer::longValue).average().orElse(Double.NaN),
+          rangeMap.aggregate(average, from, to).getValue(),
+          1e-9
+      );
+      assertEquals(
+          values.stream().map(String::valueOf).reduce("", String::concat),
+          rangeMap.aggregate(concatenation, from, to)
+      );
+      assertEquals(
+          sumIntegers(values),
+          rangeMap.aggregateAsLong(notRegisteredSum, from, to)
+      );
+    }
+  }
+
+  @Test
+  void testLookupRangeFromMissingKey() {
+    RangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>();
+
+    rangeMap.add(-20, 123);
+    rangeMap.add(10, 7);
+    rangeMap.add(21, 500);
+
+    assertEquals(Arrays.asList(7, 500), rangeMap.lookupRange(-15, 30));
+    assertEquals(Collections.singletonList(123), rangeMap.lookupRange(-100, 0));
+    assertFalse(rangeMap.contains(-15));
+    assertEquals(3, rangeMap.size());
+  }
+
+  @RepeatedTest(50)
+  void testNavigationMatchesTreeMap() {
+    RangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(getRandomInteger(4, 7));
+    TreeMap<Integer, Integer> expected = new TreeMap<>();
+
+    for (int i = 0; i < 500; i++) {
+      int key = getRandomInteger(-1000, 1000);
+      rangeMap.add(key, i);
+      expected.putIfAbsent(key, i);
+    }
+
+    for (int key = -1001; key <= 1001; key++) {
+      assertEquals(expected.ceilingKey(key), rangeMap.ceilingKey(key));
+      assertEquals(expected.floorKey(key), rangeMap.floorKey(key));
+      assertEquals(expected.higherKey(key), rangeMap.higherKey(key));
+      assertEquals(expected.lowerKey(key), rangeMap.lowerKey(key));
+    }
+  }
+
+  @Test
+  void testNavigationOnEmptyMap() {
+    RangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>();
+
+    assertNull(rangeMap.ceilingKey(0));
+    assertNull(rangeMap.floorKey(0));
+    assertNull(rangeMap.higherKey(0));
+    assertNull(rangeMap.lowerKey(0));
+  }
+
+  private static void assertMatchesTreeMap(
+      TreeMap<Integer, List<Integer>> expected,
+      BTreeRangeMap<Integer, Integer> rangeMap
+  ) {
+    List<Integer> expectedValues = new ArrayList<>();
+    expected.values().forEach(expectedValues::addAll);
+
+    assertEquals(expectedValues.size(), rangeMap.size());
+    assertEquals(expectedValues, rangeMap.lookupRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+    assertEquals(
+        sumIntegers(expectedValues),
+        rangeMap.sumRange(Integer.MIN_VALUE, Integer.MAX_VALUE)
+    );
+
+    for (int i = 0; i < 50; i++) {
+      int key = getRandomInteger(-600, 600);
+      List<Integer> values = expected.get(key);
+      assertEquals(values == null ? null : values.get(0), rangeMap.lookup(key));
+      assertEquals(expected.floorKey(key), rangeMap.floorKey(key));
+      assertEquals(expected.higherKey(key), rangeMap.higherKey(key));
+
+      int to = key + getRandomInteger(0, 200);
+      List<Integer> expectedRange = new ArrayList<>();
+      expected.subMap(key, true, to, true).values().forEach(expectedRange::addAll);
+      assertEquals(sumIntegers(expectedRange), rangeMap.sumRange(key, to));
+    }
+  }
+
+  @Test
+  void testRemoveValuesOneByOne() {
+    RangeMap<Integer, String> rangeMap = new BTreeRangeMap<>();
+
+    rangeMap.add(1, "a");
+    rangeMap.add(1, "b");
+    rangeMap.add(2, "c");
+
+    assertEquals("a", rangeMap.remove(1));
+    assertTrue(rangeMap.contains(1));
+    assertEquals("b", rangeMap.lookup(1));
+
+    assertEquals("b", rangeMap.remove(1));
+    assertFalse(rangeMap.contains(1));
+    assertNull(rangeMap.remove(1));
+
+    assertEquals(1, rangeMap.size());
+    assertEquals(Collections.singletonList("c"), rangeMap.lookupRange(0, 5));
+  }
+
+  @Test
+  void testRemoveSpecificValue() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(Integer::longValue);
+
+    rangeMap.add(1, 10);
+    rangeMap.add(1, 20);
+    rangeMap.add(1, 30);
+
+    assertTrue(rangeMap.remove(1, 20));
+    assertFalse(rangeMap.remove(1, 20));
+    assertFalse(rangeMap.remove(2, 10));
+
+    assertEquals(Arrays.asList(10, 30), rangeMap.lookupRange(1, 1));
+    assertEquals(40, rangeMap.sumRange(1, 1));
+    assertEquals(2, rangeMap.size());
+  }
+
+  @RepeatedTest(100)
+  void testRandomRemovesMatchTreeMap() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), Integer::longValue
+    );
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<>();
+
+    for (int i = 0; i < 1000; i++) {
+      int key = getRandomInteger(-500, 500);
+      rangeMap.add(key, i);
+      expected.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+    }
+
+    for (int i = 0; i < 900; i++) {
+      int key = getRandomInteger(-500, 500);
+      List<Integer> values = expected.get(key);
+
+      Integer removed = rangeMap.remove(key);
+      assertEquals(values == null ? null : values.get(0), removed);
+
+      if (values != null) {
+        values.remove(0);
+        if (values.isEmpty()) {
+          expected.remove(key);
+        }
+      }
+    }
+
+    assertMatchesTreeMap(expected, rangeMap);
+  }
+
+  @RepeatedTest(100)
+  void testRemoveRangeMatchesTreeMap() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), Integer::longValue
+    );
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<>();
+
+    for (int round = 0; round < 5; round++) {
+      for (int i = 0; i < 500; i++) {
+        int key = getRandomInteger(-500, 500);
+        int value = getRandomInteger(-1000, 1000);
+        rangeMap.add(key, value);
+        expected.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+      }
+
+      for (int i = 0; i < 5; i++) {
+        int from = getRandomInteger(-550, 550);
+        int to = from + getRandomInteger(-10, 400);
+
+        int expectedCount = 0;
+        if (from <= to) {
+          Map<Integer, List<Integer>> removed = expected.subMap(from, true, to, true);
+          for (List<Integer> values : removed.values()) {
+            expectedCount += values.size();
+          }
+          removed.clear();
+        }
+
+        assertEquals(expectedCount, rangeMap.removeRange(from, to));
+        assertMatchesTreeMap(expected, rangeMap);
+      }
+    }
+
+    int sizeBeforeClear = rangeMap.size();
+    assertEquals(sizeBeforeClear, rangeMap.removeRange(-1000, 1000));
+    assertTrue(rangeMap.isEmpty());
+    assertEquals(Collections.emptyList(), rangeMap.lookupRange(-1000, 1000));
+
+    rangeMap.add(1, 1);
+    assertEquals(Collections.singletonList(1), rangeMap.lookupRange(-1000, 1000));
+  }
+
+  @RepeatedTest(100)
+  void testBulkLoadMatchesTreeMap() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), Integer::longValue
+    );
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<>();
+    List<Map.Entry<Integer, Integer>> entries = new ArrayList<>();
+
+    int key = -500;
+    int count = getRandomInteger(0, 1000);
+    for (int i = 0; i < count; i++) {
+      key += getRandomInteger(0, 2);
+      int value = getRandomInteger(-1000, 1000);
+      entries.add(new AbstractMap.SimpleEntry<>(key, value));
+      expected.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+    }
+
+    rangeMap.bulkLoad(entries.iterator(), getRandomInteger(1, 10) / 10.0);
+    assertMatchesTreeMap(expected, rangeMap);
+
+    /* Tree must stay valid for further modifications */
+
+    for (int i = 0; i < 500; i++) {
+      int newKey = getRandomInteger(-600, 600);
+      rangeMap.add(newKey, i);
+      expected.computeIfAbsent(newKey, k -> new ArrayList<>()).add(i);
+
+      int removedKey = getRandomInteger(-600, 600);
+      if (rangeMap.remove(removedKey) != null) {
+        List<Integer> values = expected.get(removedKey);
+        values.remove(0);
+        if (values.isEmpty()) {
+          expected.remove(removedKey);
+        }
+      }
+    }
+
+    assertMatchesTreeMap(expected, rangeMap);
+  }
+
+  @Test
+  void testBulkLoadRejectsInvalidInput() {
+    List<Map.Entry<Integer, Integer>> unsorted = Arrays.asList(
+        new AbstractMap.SimpleEntry<>(2, 1),
+        new AbstractMap.SimpleEntry<>(1, 1)
+    );
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>();
+
+    assertThrows(IllegalArgumentException.class, () -> rangeMap.bulkLoad(unsorted.iterator()));
+    assertTrue(rangeMap.isEmpty());
+
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> rangeMap.bulkLoad(Collections.emptyIterator(), 0)
+    );
+
+    rangeMap.add(1, 1);
+    assertThrows(
+        IllegalStateException.class,
+        () -> rangeMap.bulkLoad(Collections.emptyIterator())
+    );
+  }
+
+  @RepeatedTest(100)
+  void testMostlyIncreasingKeysMatchTreeMap() {
+    Aggregation<Integer, String> concatenation =
+        Aggregations.of("", String::valueOf, String::concat);
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), concatenation
+    );
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<>();
+
+    int day = 0;
+    for (int i = 0; i < 2000; i++) {
+      day += getRandomInteger(0, 2);
+      // Some operations arrive late
+      int key = getRandomInteger(0, 9) == 0 ? day - getRandomInteger(0, 30) : day;
+      rangeMap.add(key, i);
+      expected.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+
+      if (getRandomInteger(0, 49) == 0) {
+        int from = day - getRandomInteger(0, 50);
+        int to = from + getRandomInteger(0, 20);
+        rangeMap.removeRange(from, to);
+        expected.subMap(from, true, to, true).clear();
+      }
+      if (getRandomInteger(0, 19) == 0 && !expected.isEmpty()) {
+        // The maximum key may lose its last value
+        int maximumKey = expected.lastKey();
+        List<Integer> values = expected.get(maximumKey);
+        assertEquals(values.remove(0), rangeMap.remove(maximumKey));
+        if (values.isEmpty()) {
+          expected.remove(maximumKey);
+          day = maximumKey - getRandomInteger(0, 2);
+        }
+      }
+    }
+
+    List<Integer> expectedValues = new ArrayList<>();
+    expected.values().forEach(expectedValues::addAll);
+
+    assertEquals(expectedValues.size(), rangeMap.size());
+    assertEquals(expectedValues, rangeMap.lookupRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+
+    for (int i = 0; i < 100; i++) {
+      int from = getRandomInteger(-10, day);
+      int to = from + getRandomInteger(0, 100);
+
+      StringBuilder expectedConcatenation = new StringBuilder();
+      for (List<Integer> values : expected.subMap(from, true, to, true).values()) {
+        values.forEach(expectedConcatenation::append);
+      }
+      assertEquals(
+          expectedConcatenation.toString(),
+          rangeMap.aggregate(concatenation, from, to)
+      );
+    }
+  }
+
+  @RepeatedTest(50)
+  void testRangeCursorMatchesForEachInRange() {
+    RangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(getRandomInteger(4, 7));
+    for (int i = 0; i < 1000; i++) {
+      rangeMap.add(getRandomInteger(-500, 500), i);
+    }
+
+    for (int i = 0; i < 50; i++) {
+      int from = getRandomInteger(-600, 600);
+      int to = from + getRandomInteger(-10, 300);
+
+      List<Integer> expectedKeys = new ArrayList<>();
+      List<Integer> expectedValues = new ArrayList<>();
+      rangeMap.forEachInRange(from, to, (key, value) -> {
+        expectedKeys.add(key);
+        expectedValues.add(value);
+      });
+      assertEquals(rangeMap.lookupRange(from, to), expectedValues);
+
+      List<Integer> keys = new ArrayList<>();
+      List<Integer> values = new ArrayList<>();
+      RangeCursor<Integer, Integer> cursor = rangeMap.rangeCursor(from, to);
+      while (cursor.next()) {
+        keys.add(cursor.getKey());
+        values.add(cursor.getValue());
+      }
+      assertFalse(cursor.next());
+
+      assertEquals(expectedKeys, keys);
+      assertEquals(expectedValues, values);
+    }
+  }
+
+  @Test
+  void testRangeCursorStopsEarly() {
+    RangeMap<Integer, String> rangeMap = new BTreeRangeMap<>();
+    rangeMap.add(1, "a");
+    rangeMap.add(2, "b");
+    rangeMap.add(2, "c");
+    rangeMap.add(3, "d");
+
+    RangeCursor<Integer, String> cursor = rangeMap.rangeCursor(2, 3);
+    assertThrows(NoSuchElementException.class, cursor::getKey);
+
+    assertTrue(cursor.next());
+    assertEquals(2, cursor.getKey());
+    assertEquals("b", cursor.getValue());
+    assertTrue(cursor.next());
+    assertEquals(2, cursor.getKey());
+    assertEquals("c", cursor.getValue());
+    assertTrue(cursor.next());
+    assertEquals(3, cursor.getKey());
+    assertFalse(cursor.next());
+    assertThrows(NoSuchElementException.class, cursor::getValue);
+  }
+
+  /**
+   * Splits spliterator recursively and collects values of all parts in order,
+   * checking that every part knows its exact size.
+   */
+  private static void collectSplitValues(Spliterator<Integer> spliterator, List<Integer> result) {
+    long size = spliterator.getExactSizeIfKnown();
+    int sizeBefore = result.size();
+
+    Spliterator<Integer> prefix = spliterator.trySplit();
+    if (prefix != null) {
+      assertEquals(size, prefix.getExactSizeIfKnown() + spliterator.getExactSizeIfKnown());
+      collectSplitValues(prefix, result);
+      collectSplitValues(spliterator, result);
+    } else {
+      spliterator.forEachRemaining(result::add);
+      assertEquals(0, spliterator.estimateSize());
+    }
+
+    assertEquals(size, result.size() - sizeBefore);
+  }
+
+  @RepeatedTest(50)
+  void testSpliteratorPartsCoverRange() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), Integer::longValue
+    );
+    for (int i = 0; i < 2000; i++) {
+      rangeMap.add(getRandomInteger(-500, 500), getRandomInteger(-1000, 1000));
+    }
+
+    for (int i = 0; i < 20; i++) {
+      int from = getRandomInteger(-600, 600);
+      int to = from + getRandomInteger(-10, 600);
+
+      List<Integer> values = new ArrayList<>();
+      collectSplitValues(rangeMap.spliterator(from, to), values);
+      assertEquals(rangeMap.lookupRange(from, to), values);
+
+      long parallelSum = StreamSupport.stream(rangeMap.spliterator(from, to), true)
+          .mapToLong(Integer::longValue)
+          .sum();
+      assertEquals(rangeMap.sumRange(from, to), parallelSum);
+    }
+  }
+
+  private static TreeMap<Integer, List<Integer>> copyOf(TreeMap<Integer, List<Integer>> map) {
+    TreeMap<Integer, List<Integer>> copy = new TreeMap<>();
+    map.forEach((key, values) -> copy.put(key, new ArrayList<>(values)));
+    return copy;
+  }
+
+  @RepeatedTest(50)
+  void testSnapshotsAreNotAffectedByModifications() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), Integer::longValue
+    );
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<>();
+    List<BTreeRangeMap<Integer, Integer>> snapshots = new ArrayList<>();
+    List<TreeMap<Integer, List<Integer>>> expectedSnapshots = new ArrayList<>();
+
+    for (int round = 0; round < 10; round++) {
+      snapshots.add(rangeMap.snapshot());
+      expectedSnapshots.add(copyOf(expected));
+
+      for (int i = 0; i < 200; i++) {
+        int operation = getRandomInteger(0, 9);
+        int key = getRandomInteger(-500, 500);
+
+        if (operation < 5) {
+          rangeMap.add(key, i);
+          expected.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        } else if (operation < 7) {
+          // Appended to the rightmost leaf
+          int appendedKey = (expected.isEmpty() ? 0 : expected.lastKey()) + getRandomInteger(0, 2);
+          rangeMap.add(appendedKey, i);
+          expected.computeIfAbsent(appendedKey, k -> new ArrayList<>()).add(i);
+        } else if (operation < 9) {
+          List<Integer> values = expected.get(key);
+          Integer removed = values == null ? null : values.remove(0);
+          if (values != null && values.isEmpty()) {
+            expected.remove(key);
+          }
+          assertEquals(removed, rangeMap.remove(key));
+        } else {
+          int to = key + getRandomInteger(0, 50);
+          rangeMap.removeRange(key, to);
+          expected.subMap(key, true, to, true).clear();
+        }
+      }
+    }
+
+    assertMatchesTreeMap(expected, rangeMap);
+    assertEquals(0, rangeMap.getDetachedLinkedLeavesCount());
+    for (int i = 0; i < snapshots.size(); i++) {
+      assertMatchesTreeMap(expectedSnapshots.get(i), snapshots.get(i));
+    }
+  }
+
+  @RepeatedTest(20)
+  void testDroppedSnapshotsLeaveNoLinkedLeaves() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(
+        getRandomInteger(4, 7), Integer::longValue
+    );
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<>();
+
+    for (int i = 0; i < 5000; i++) {
+      // Every modification copies the leaves it touches
+      rangeMap.snapshot();
+      int key = getRandomInteger(0, 3) == 0 ? getRandomInteger(0, i) : i;
+      rangeMap.add(key, i);
+      expected.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+    }
+
+    // Replaced leaves are not reachable from the map through the links
+    assertEquals(0, rangeMap.getDetachedLinkedLeavesCount());
+    assertMatchesTreeMap(expected, rangeMap);
+  }
+
+  @Test
+  void testSnapshotIsReadOnly() {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>();
+    rangeMap.add(1, 1);
+    BTreeRangeMap<Integer, Integer> snapshot = rangeMap.snapshot();
+
+    assertThrows(UnsupportedOperationException.class, () -> snapshot.add(2, 2));
+    assertThrows(UnsupportedOperationException.class, () -> snapshot.remove(1));
+    assertThrows(UnsupportedOperationException.class, () -> snapshot.remove(1, 1));
+    assertThrows(UnsupportedOperationException.class, () -> snapshot.removeRange(0, 2));
+    assertSame(snapshot, snapshot.snapshot());
+
+    rangeMap.remove(1);
+    assertEquals(List.of(1), snapshot.lookupRange(0, 2));
+    assertTrue(rangeMap.isEmpty());
+  }
+
+  @RepeatedTest(5)
+  void testSnapshotIsReadableWhileMapIsModified() throws InterruptedException {
+    BTreeRangeMap<Integer, Integer> rangeMap = new BTreeRangeMap<>(4, Integer::longValue);
+    for (int i = 0; i < 10000; i++) {
+      rangeMap.add(getRandomInteger(0, 10000), 1);
+    }
+
+    BTreeRangeMap<Integer, Integer> snapshot = rangeMap.snapshot();
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      try {
+        for (int i = 0; i < 200; i++) {
+          assertEquals(10000, snapshot.sumRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+          assertEquals(10000, snapshot.lookupRange(Integer.MIN_VALUE, Integer.MAX_VALUE).size());
+        }
+      } catch (Throwable e) {
+        failure.set(e);
+      }
+    });
+    reader.start();
+
+    for (int i = 0; i < 20000; i++) {
+      int key = getRandomInteger(0, 10000);
+      if (i % 2 == 0) {
+        rangeMap.add(key, 1);
+      } else {
+        rangeMap.removeRange(key, key + 5);
+      }
+    }
+
+    reader.join();
+    assertNull(failure.get());
+  }
 }
@@ -0,0 +1,112 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import common.Date;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class CachingRangeMapTest {
+  private static final LongAggregation<Integer> SUM = Aggregations.sum(Integer::longValue);
+
+  @RepeatedTest(50)
+  void testMatchesUncachedMap() {
+    BTreeRangeMap<Integer, Integer> expected = new BTreeRangeMap<>(Integer::longValue);
+    int capacity = getRandomInteger(1, 50);
+    BTreeRangeMap<Integer, Integer> wrapped = new BTreeRangeMap<>(getRandomInteger(4, 32), SUM);
+    CachingRangeMap<Integer, Integer> rangeMap = new CachingRangeMap<>(wrapped, SUM, capacity);
+
+    int count = getRandomInteger(0, 3000);
+    for (int i = 0; i < count; i++) {
+      int key = getRandomInteger(-500, 500);
+      switch (getRandomInteger(0, 3)) {
+        case 0:
+          assertEquals(expected.remove(key), rangeMap.remove(key));
+          break;
+        case 1:
+          int value = getRandomInteger(-1000, 1000);
+          expected.add(key, value);
+          rangeMap.add(key, value);
+          break;
+        default:
+          // Few distinct ranges, so that most of them are answered by the cache
+          int from = getRandomInteger(-10, 10) * 50;
+          int to = from + getRandomInteger(-1, 4) * 50;
+          assertEquals(expected.sumRange(from, to), rangeMap.aggregateAsLong(SUM, from, to));
+          assertEquals(expected.sumRange(from, to), (long) rangeMap.aggregate(SUM, from, to));
+      }
+
+      assertTrue(rangeMap.getCachedCount() <= capacity);
+    }
+
+    assertEquals(expected.size(), rangeMap.size());
+    assertEquals(
+        expected.lookupRange(Integer.MIN_VALUE, Integer.MAX_VALUE),
+        rangeMap.lookupRange(Integer.MIN_VALUE, Integer.MAX_VALUE)
+    );
+  }
+
+  @Test
+  void testInvalidatesOnlyRangesContainingWrittenKey() {
+    CachingRangeMap<Integer, Integer> rangeMap =
+        new CachingRangeMap<>(new BTreeRangeMap<Integer, Integer>(4, SUM), SUM, 10);
+    rangeMap.add(5, 1);
+
+    assertEquals(1, rangeMap.aggregateAsLong(SUM, 0, 10));
+    assertEquals(0, rangeMap.aggregateAsLong(SUM, 20, 30));
+    assertEquals(0, rangeMap.aggregateAsLong(SUM, 11, 19));
+    assertEquals(3, rangeMap.getCachedCount());
+
+    rangeMap.add(25, 2);
+    assertEquals(2, rangeMap.getCachedCount());
+    assertEquals(2, rangeMap.aggregateAsLong(SUM, 20, 30));
+
+    // Boundaries of the ranges are inclusive
+    rangeMap.add(10, 3);
+    assertEquals(2, rangeMap.getCachedCount());
+    assertEquals(4, rangeMap.aggregateAsLong(SUM, 0, 10));
+
+    // Missing key changes nothing
+    assertNull(rangeMap.remove(15));
+    assertEquals(3, rangeMap.getCachedCount());
+    assertEquals(3, rangeMap.remove(10));
+    assertEquals(2, rangeMap.getCachedCount());
+  }
+
+  @Test
+  void testEvictsLeastRecentlyUsedRange() {
+    CachingRangeMap<Integer, Integer> rangeMap =
+        new CachingRangeMap<>(new BTreeRangeMap<Integer, Integer>(4, SUM), SUM, 2);
+
+    rangeMap.aggregateAsLong(SUM, 0, 10);
+    rangeMap.aggregateAsLong(SUM, 20, 30);
+    rangeMap.aggregateAsLong(SUM, 0, 10);
+    rangeMap.aggregateAsLong(SUM, 40, 50);
+    assertEquals(2, rangeMap.getCachedCount());
+
+    // Evicted range is not in the index anymore, write to it changes nothing
+    rangeMap.add(25, 1);
+    assertEquals(2, rangeMap.getCachedCount());
+    rangeMap.add(5, 1);
+    assertEquals(1, rangeMap.getCachedCount());
+  }
+
+  @Test
+  void testEqualDatesHitCache() {
+    CachingRangeMap<Date, Integer> rangeMap =
+        new CachingRangeMap<>(new BTreeRangeMap<Date, Integer>(4, SUM), SUM, 10);
+    rangeMap.add(Date.fromString("2020-01-15"), 7);
+
+    // Every report parses its own bounds
+    for (int i = 0; i < 5; i++) {
+      assertEquals(7, rangeMap.aggregateAsLong(
+          SUM, Date.fromString("2020-01-01"), Date.fromString("2020-01-31")
+      ));
+    }
+    assertEquals(1, rangeMap.getCachedCount());
+
+    rangeMap.add(Date.fromString("2020-01-31"), 1);
+    assertEquals(0, rangeMap.getCachedCount());
+  }
+}
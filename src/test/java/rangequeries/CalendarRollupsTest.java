@@ -0,0 +1,64 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import common.Date;
+import java.util.TreeMap;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class CalendarRollupsTest {
+  private static final long FIRST_DAY = Date.fromString("2019-11-15").toEpochDay();
+
+  private static long sumRange(CalendarRollups rollups, String from, String to) {
+    return rollups.sumRange(Date.fromString(from), Date.fromString(to));
+  }
+
+  @Test
+  void testDateFields() {
+    Date date = Date.fromString("2024-02-29");
+    assertEquals(2024, date.getYear());
+    assertEquals(2, date.getMonth());
+    assertEquals(29, date.getDay());
+  }
+
+  @RepeatedTest(50)
+  void testMatchesDailySums() {
+    CalendarRollups rollups = new CalendarRollups();
+    TreeMap<Long, Long> expected = new TreeMap<>();
+
+    int count = getRandomInteger(0, 1000);
+    for (int i = 0; i < count; i++) {
+      long day = FIRST_DAY + getRandomInteger(0, 2000);
+      int amount = getRandomInteger(-1000, 1000);
+      rollups.add(Date.fromEpochDay(day), amount);
+      expected.merge(day, (long) amount, Long::sum);
+    }
+
+    for (int i = 0; i < 200; i++) {
+      long from = FIRST_DAY + getRandomInteger(-100, 2100);
+      // Both short ranges inside of a month and ranges over several years
+      long to = from + (i % 2 == 0 ? getRandomInteger(-5, 40) : getRandomInteger(0, 2000));
+      long expectedSum = from > to ? 0 : expected.subMap(from, true, to, true).values().stream()
+          .mapToLong(Long::longValue)
+          .sum();
+      assertEquals(expectedSum, rollups.sumRange(Date.fromEpochDay(from), Date.fromEpochDay(to)));
+    }
+  }
+
+  @Test
+  void testRangeBoundariesAreInclusive() {
+    CalendarRollups rollups = new CalendarRollups();
+    rollups.add(Date.fromString("2020-01-01"), 1);
+    rollups.add(Date.fromString("2020-12-31"), 2);
+    rollups.add(Date.fromString("2021-03-01"), 4);
+    rollups.add(Date.fromString("2021-03-31"), 8);
+
+    assertEquals(3, sumRange(rollups, "2020-01-01", "2020-12-31"));
+    assertEquals(2, sumRange(rollups, "2020-01-02", "2020-12-31"));
+    assertEquals(12, sumRange(rollups, "2021-03-01", "2021-03-31"));
+    assertEquals(14, sumRange(rollups, "2020-02-01", "2021-03-31"));
+    assertEquals(0, sumRange(rollups, "2021-03-31", "2021-03-01"));
+  }
+}
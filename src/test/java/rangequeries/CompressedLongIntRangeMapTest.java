@@ -0,0 +1,98 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class CompressedLongIntRangeMapTest {
+  @Test
+  void testRejectsTooSmallBranchingFactor() {
+    assertThrows(IllegalArgumentException.class, () -> new CompressedLongIntRangeMap(3));
+  }
+
+  @RepeatedTest(100)
+  void testMatchesLongIntRangeMap() {
+    int branchingFactor = getRandomInteger(4, 16);
+    CompressedLongIntRangeMap rangeMap = new CompressedLongIntRangeMap(branchingFactor);
+    LongIntRangeMap expected = new LongIntRangeMap(branchingFactor);
+    long offset = (long) getRandomInteger(-1000000, 1000000) * 100000;
+
+    for (int i = 0; i < 1000; i++) {
+      // Few distinct keys, so that equal keys span several leaves
+      long key = offset + getRandomInteger(-100, 100);
+      int value;
+      switch (getRandomInteger(0, 3)) {
+        case 0:
+          value = Integer.MIN_VALUE + getRandomInteger(0, 1);
+          break;
+        case 1:
+          value = Integer.MAX_VALUE - getRandomInteger(0, 1);
+          break;
+        default:
+          value = getRandomInteger(-100000, 100000);
+      }
+      rangeMap.add(key, value);
+      expected.add(key, value);
+    }
+
+    assertEquals(expected.size(), rangeMap.size());
+
+    for (long key = offset - 101; key <= offset + 101; key++) {
+      assertEquals(expected.contains(key), rangeMap.contains(key));
+      assertEquals(expected.lookup(key), rangeMap.lookup(key));
+    }
+
+    for (int i = 0; i < 100; i++) {
+      long from = offset + getRandomInteger(-120, 120);
+      long to = from + getRandomInteger(-10, 100);
+      assertArrayEquals(expected.lookupRange(from, to), rangeMap.lookupRange(from, to));
+      assertEquals(expected.sumRange(from, to), rangeMap.sumRange(from, to));
+
+      List<Long> keys = new ArrayList<>();
+      CompressedLongIntRangeMap.Cursor cursor = rangeMap.rangeCursor(from, to);
+      while (cursor.next()) {
+        keys.add(cursor.getKey());
+      }
+      List<Long> expectedKeys = new ArrayList<>();
+      expected.forEachInRange(from, to, (key, value) -> expectedKeys.add(key));
+      assertEquals(expectedKeys, keys);
+    }
+  }
+
+  @Test
+  void testExtremeKeys() {
+    CompressedLongIntRangeMap rangeMap = new CompressedLongIntRangeMap(4);
+    long[] keys = {Long.MAX_VALUE, Long.MIN_VALUE, 0, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+    for (int i = 0; i < keys.length; i++) {
+      rangeMap.add(keys[i], i);
+    }
+
+    assertArrayEquals(
+        new int[] {1, 5, 4, 2, 0, 3},
+        rangeMap.lookupRange(Long.MIN_VALUE, Long.MAX_VALUE)
+    );
+    assertEquals(3, rangeMap.sumRange(Long.MAX_VALUE, Long.MAX_VALUE));
+    assertEquals(10, rangeMap.sumRange(Long.MIN_VALUE, -1));
+  }
+
+  @Test
+  void testLedgerEntriesAreCompressed() {
+    CompressedLongIntRangeMap rangeMap = new CompressedLongIntRangeMap();
+    long epochDay = 18000;
+
+    // Ten years of daily operations with amounts up to a thousand
+    for (int i = 0; i < 3650 * 5; i++) {
+      if (getRandomInteger(0, 4) == 0) {
+        epochDay++;
+      }
+      rangeMap.add(epochDay, getRandomInteger(-1000, 1000));
+    }
+
+    // A byte for the key and at most two for the amount
+    assertTrue(rangeMap.getEncodedSize() <= 3 * rangeMap.size() + 1000);
+  }
+}
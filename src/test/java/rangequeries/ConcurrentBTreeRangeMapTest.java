@@ -0,0 +1,150 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class ConcurrentBTreeRangeMapTest {
+  @Test
+  void testRejectsTooSmallBranchingFactor() {
+    assertThrows(IllegalArgumentException.class, () -> new ConcurrentBTreeRangeMap<>(3));
+  }
+
+  @RepeatedTest(100)
+  void testMatchesTreeMap() {
+    RangeMap<Integer, Integer> rangeMap = new ConcurrentBTreeRangeMap<>(getRandomInteger(4, 7));
+    TreeMap<Integer, List<Integer>> expected = new TreeMap<>();
+
+    int count = getRandomInteger(0, 2000);
+    for (int i = 0; i < count; i++) {
+      int key = getRandomInteger(-500, 500);
+      if (getRandomInteger(0, 3) == 0) {
+        List<Integer> values = expected.get(key);
+        Integer removed = values == null ? null : values.remove(0);
+        if (values != null && values.isEmpty()) {
+          expected.remove(key);
+        }
+        assertEquals(removed, rangeMap.remove(key));
+      } else {
+        rangeMap.add(key, i);
+        expected.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+      }
+    }
+
+    List<Integer> expectedValues = new ArrayList<>();
+    expected.values().forEach(expectedValues::addAll);
+    assertEquals(expectedValues.size(), rangeMap.size());
+    assertEquals(expectedValues.isEmpty(), rangeMap.isEmpty());
+    assertEquals(expectedValues, rangeMap.lookupRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+
+    for (int i = 0; i < 100; i++) {
+      int key = getRandomInteger(-600, 600);
+      List<Integer> values = expected.get(key);
+      assertEquals(values != null, rangeMap.contains(key));
+      assertEquals(values == null ? null : values.get(0), rangeMap.lookup(key));
+      assertEquals(expected.ceilingKey(key), rangeMap.ceilingKey(key));
+      assertEquals(expected.floorKey(key), rangeMap.floorKey(key));
+      assertEquals(expected.higherKey(key), rangeMap.higherKey(key));
+      assertEquals(expected.lowerKey(key), rangeMap.lowerKey(key));
+
+      int to = key + getRandomInteger(-10, 200);
+      List<Integer> expectedRange = new ArrayList<>();
+      if (key <= to) {
+        expected.subMap(key, true, to, true).values().forEach(expectedRange::addAll);
+      }
+      assertEquals(expectedRange, rangeMap.lookupRange(key, to));
+    }
+  }
+
+  @RepeatedTest(10)
+  void testConcurrentAddsAndReads() throws InterruptedException {
+    ConcurrentBTreeRangeMap<Integer, Integer> rangeMap =
+        new ConcurrentBTreeRangeMap<>(getRandomInteger(4, 7));
+    int writersCount = 4;
+    int keysPerWriter = 5000;
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+
+    for (int writer = 0; writer < writersCount; writer++) {
+      int offset = writer;
+      threads.add(new Thread(() -> {
+        // Writers insert interleaving keys, value is equal to the key
+        for (int i = 0; i < keysPerWriter; i++) {
+          rangeMap.add(i * writersCount + offset, i * writersCount + offset);
+        }
+      }));
+    }
+
+    threads.add(new Thread(() -> {
+      try {
+        while (rangeMap.size() < writersCount * keysPerWriter) {
+          int from = getRandomInteger(0, writersCount * keysPerWriter);
+          List<Integer> range = rangeMap.lookupRange(from, from + 100);
+          for (int i = 1; i < range.size(); i++) {
+            assertTrue(range.get(i - 1) < range.get(i));
+          }
+
+          Integer floor = rangeMap.floorKey(from);
+          assertTrue(floor == null || floor <= from);
+          if (floor != null) {
+            assertEquals(floor, rangeMap.lookup(floor));
+          }
+        }
+      } catch (Throwable e) {
+        failure.set(e);
+      }
+    }));
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertNull(failure.get());
+
+    List<Integer> expected = new ArrayList<>();
+    for (int key = 0; key < writersCount * keysPerWriter; key++) {
+      expected.add(key);
+    }
+    assertEquals(expected, rangeMap.lookupRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+    assertEquals(expected.size(), rangeMap.size());
+  }
+
+  @RepeatedTest(10)
+  void testConcurrentRemovesOfSameKeys() throws InterruptedException {
+    ConcurrentBTreeRangeMap<Integer, Integer> rangeMap = new ConcurrentBTreeRangeMap<>(4);
+    // Every key has 8 values, every remover removes 2 values of every key
+    for (int i = 0; i < 8000; i++) {
+      rangeMap.add(i % 1000, i);
+    }
+
+    List<Thread> threads = new ArrayList<>();
+    for (int remover = 0; remover < 4; remover++) {
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < 2000; i++) {
+          assertNotNull(rangeMap.remove(i % 1000));
+        }
+      }));
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(rangeMap.isEmpty());
+    assertEquals(List.of(), rangeMap.lookupRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+    assertNull(rangeMap.ceilingKey(Integer.MIN_VALUE));
+    assertNull(rangeMap.floorKey(Integer.MAX_VALUE));
+  }
+}
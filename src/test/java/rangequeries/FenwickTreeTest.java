@@ -0,0 +1,50 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class FenwickTreeTest {
+  @RepeatedTest(100)
+  void testMatchesArray() {
+    int size = getRandomInteger(1, 500);
+    FenwickTree tree = new FenwickTree(size);
+    long[] expected = new long[size];
+
+    for (int i = 0; i < 1000; i++) {
+      int position = getRandomInteger(0, size - 1);
+      int delta = getRandomInteger(-1000, 1000);
+      tree.add(position, delta);
+      expected[position] += delta;
+
+      int from = getRandomInteger(0, size - 1);
+      int to = getRandomInteger(0, size - 1);
+      long expectedSum = 0;
+      for (int j = from; j <= to; j++) {
+        expectedSum += expected[j];
+      }
+      assertEquals(expectedSum, tree.sumRange(from, to));
+    }
+
+    long expectedSum = 0;
+    for (int count = 0; count <= size; count++) {
+      assertEquals(expectedSum, tree.prefixSum(count));
+      if (count < size) {
+        expectedSum += expected[count];
+      }
+    }
+  }
+
+  @Test
+  void testRejectsPositionsOutOfRange() {
+    FenwickTree tree = new FenwickTree(3);
+    assertThrows(IndexOutOfBoundsException.class, () -> tree.add(3, 1));
+    assertThrows(IndexOutOfBoundsException.class, () -> tree.add(-1, 1));
+    assertThrows(IndexOutOfBoundsException.class, () -> tree.prefixSum(4));
+    assertThrows(IndexOutOfBoundsException.class, () -> tree.sumRange(0, 3));
+    assertEquals(0, tree.sumRange(2, 1));
+    assertEquals(0, new FenwickTree(0).prefixSum(0));
+  }
+}
@@ -0,0 +1,123 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class LongIntRangeMapTest {
+  @Test
+  void testLookupOfMissingKeyReturnsSentinel() {
+    LongIntRangeMap rangeMap = new LongIntRangeMap();
+    assertEquals(LongIntRangeMap.NO_VALUE, rangeMap.lookup(1));
+
+    rangeMap.add(1, 5);
+    rangeMap.add(1, 7);
+    assertEquals(5, rangeMap.lookup(1));
+    assertEquals(LongIntRangeMap.NO_VALUE, rangeMap.lookup(2));
+    assertFalse(rangeMap.contains(0));
+    assertEquals(2, rangeMap.size());
+  }
+
+  @Test
+  void testRejectsTooSmallBranchingFactor() {
+    assertThrows(IllegalArgumentException.class, () -> new LongIntRangeMap(3));
+  }
+
+  @RepeatedTest(100)
+  void testMatchesTreeMap() {
+    LongIntRangeMap rangeMap = new LongIntRangeMap(getRandomInteger(4, 7));
+    TreeMap<Long, List<Integer>> expected = new TreeMap<>();
+    long offset = (long) getRandomInteger(-1000000, 1000000) * 100000;
+
+    for (int i = 0; i < 1000; i++) {
+      // Few distinct keys, so that equal keys span several leaves
+      long key = offset + getRandomInteger(-100, 100);
+      int value = getRandomInteger(-100000, 100000);
+      rangeMap.add(key, value);
+      expected.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+    }
+
+    assertEquals(1000, rangeMap.size());
+
+    for (long key = offset - 101; key <= offset + 101; key++) {
+      List<Integer> values = expected.get(key);
+      assertEquals(values != null, rangeMap.contains(key));
+      assertEquals(
+          values == null ? LongIntRangeMap.NO_VALUE : values.get(0),
+          rangeMap.lookup(key)
+      );
+    }
+
+    for (int i = 0; i < 100; i++) {
+      long from = offset + getRandomInteger(-120, 120);
+      long to = from + getRandomInteger(-10, 100);
+
+      List<Integer> expectedRange = new ArrayList<>();
+      if (from <= to) {
+        expected.subMap(from, true, to, true).values().forEach(expectedRange::addAll);
+      }
+
+      int[] range = rangeMap.lookupRange(from, to);
+      List<Integer> actualRange = new ArrayList<>();
+      for (int value : range) {
+        actualRange.add(value);
+      }
+
+      assertEquals(expectedRange, actualRange);
+      assertEquals(
+          expectedRange.stream().mapToLong(Integer::longValue).sum(),
+          rangeMap.sumRange(from, to)
+      );
+    }
+  }
+
+  @Test
+  void testSumRangeDoesNotOverflow() {
+    LongIntRangeMap rangeMap = new LongIntRangeMap();
+    for (int i = 0; i < 1000; i++) {
+      rangeMap.add(i, Integer.MAX_VALUE);
+    }
+
+    assertEquals(1000L * Integer.MAX_VALUE, rangeMap.sumRange(Long.MIN_VALUE, Long.MAX_VALUE));
+  }
+
+  @RepeatedTest(20)
+  void testRangeCursorMatchesForEachInRange() {
+    LongIntRangeMap rangeMap = new LongIntRangeMap(getRandomInteger(4, 7));
+    for (int i = 0; i < 1000; i++) {
+      rangeMap.add(getRandomInteger(-100, 100), i);
+    }
+
+    for (int i = 0; i < 50; i++) {
+      long from = getRandomInteger(-120, 120);
+      long to = from + getRandomInteger(-10, 100);
+
+      List<Long> expectedKeys = new ArrayList<>();
+      List<Integer> expectedValues = new ArrayList<>();
+      rangeMap.forEachInRange(from, to, (key, value) -> {
+        expectedKeys.add(key);
+        expectedValues.add(value);
+      });
+
+      List<Long> keys = new ArrayList<>();
+      List<Integer> values = new ArrayList<>();
+      LongIntRangeMap.Cursor cursor = rangeMap.rangeCursor(from, to);
+      while (cursor.next()) {
+        keys.add(cursor.getKey());
+        values.add(cursor.getValue());
+      }
+
+      assertEquals(expectedKeys, keys);
+      assertEquals(expectedValues, values);
+      assertEquals(
+          values.stream().mapToLong(Integer::longValue).sum(),
+          rangeMap.sumRange(from, to)
+      );
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class LsmRangeMapTest {
+  private static void deleteDirectory(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private static void assertMatches(LsmRangeMap rangeMap, TreeMap<Long, List<Integer>> expected) {
+    List<Integer> expectedValues = new ArrayList<>();
+    expected.values().forEach(expectedValues::addAll);
+    assertEquals(expectedValues.size(), rangeMap.size());
+    assertEquals(expectedValues, rangeMap.lookupRange(Long.MIN_VALUE, Long.MAX_VALUE));
+
+    for (int i = 0; i < 100; i++) {
+      long key = getRandomInteger(-600, 600);
+      List<Integer> values = expected.get(key);
+      assertEquals(values != null, rangeMap.contains(key));
+      assertEquals(values == null ? null : values.get(0), rangeMap.lookup(key));
+      assertEquals(expected.ceilingKey(key), rangeMap.ceilingKey(key));
+      assertEquals(expected.floorKey(key), rangeMap.floorKey(key));
+      assertEquals(expected.higherKey(key), rangeMap.higherKey(key));
+      assertEquals(expected.lowerKey(key), rangeMap.lowerKey(key));
+
+      long to = key + getRandomInteger(-10, 400);
+      List<Integer> expectedRange = new ArrayList<>();
+      if (key <= to) {
+        expected.subMap(key, true, to, true).values().forEach(expectedRange::addAll);
+      }
+      assertEquals(expectedRange, rangeMap.lookupRange(key, to));
+      assertEquals(
+          expectedRange.stream().mapToLong(Integer::longValue).sum(),
+          rangeMap.sumRange(key, to)
+      );
+    }
+  }
+
+  @RepeatedTest(5)
+  void testMatchesTreeMapAcrossFlushesAndReopening() throws IOException {
+    Path directory = Files.createTempDirectory("lsm");
+    TreeMap<Long, List<Integer>> expected = new TreeMap<>();
+    int memtableSize = getRandomInteger(100, 500);
+
+    try {
+      for (int round = 0; round < 3; round++) {
+        try (LsmRangeMap rangeMap = new LsmRangeMap(directory, memtableSize)) {
+          assertMatches(rangeMap, expected);
+
+          int count = getRandomInteger(0, 3000);
+          for (int i = 0; i < count; i++) {
+            long key = getRandomInteger(-500, 500);
+            if (getRandomInteger(0, 3) == 0) {
+              List<Integer> values = expected.get(key);
+              Integer removed = values == null ? null : values.remove(0);
+              if (values != null && values.isEmpty()) {
+                expected.remove(key);
+              }
+              assertEquals(removed, rangeMap.remove(key));
+            } else {
+              int value = getRandomInteger(-1000, 1000);
+              rangeMap.add(key, value);
+              expected.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+            }
+          }
+
+          assertMatches(rangeMap, expected);
+        }
+      }
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  void testCompactionMergesRuns() throws IOException {
+    Path directory = Files.createTempDirectory("lsm");
+
+    try {
+      // Every key has 100 values, and the first one is removed
+      try (LsmRangeMap rangeMap = new LsmRangeMap(directory, 1000)) {
+        for (int i = 0; i < 100_000; i++) {
+          rangeMap.add((long) i % 1000, i);
+        }
+        for (int i = 0; i < 1000; i++) {
+          assertEquals(i, rangeMap.remove((long) i));
+        }
+
+        rangeMap.awaitCompaction();
+        // Runs grow geometrically, so there are a few of them
+        assertTrue(rangeMap.getRunsCount() < 2 * LsmRangeMap.COMPACTION_THRESHOLD);
+        assertEquals(99_000, rangeMap.size());
+        assertEquals(99, rangeMap.lookupRange(7L, 7L).size());
+      }
+
+      try (LsmRangeMap rangeMap = new LsmRangeMap(directory)) {
+        assertEquals(99_000, rangeMap.size());
+        assertEquals(1007, rangeMap.lookup(7L));
+        assertEquals(99, rangeMap.lookupRange(7L, 7L).size());
+        // Sum of all values except of the removed ones: 0..999
+        assertEquals(99_999L * 100_000 / 2 - 999 * 1000 / 2, rangeMap.sumRange(0L, 999L));
+      }
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @RepeatedTest(10)
+  void testCloseWaitsForCompactionStartedByLastFlush() throws IOException {
+    Path directory = Files.createTempDirectory("lsm");
+    int memtableSize = 100;
+
+    try {
+      // The last flush on closing starts compaction of all runs
+      int count = LsmRangeMap.COMPACTION_THRESHOLD * memtableSize - 1;
+      try (LsmRangeMap rangeMap = new LsmRangeMap(directory, memtableSize)) {
+        for (int i = 0; i < count; i++) {
+          rangeMap.add((long) i, i);
+        }
+        assertEquals(LsmRangeMap.COMPACTION_THRESHOLD - 1, rangeMap.getRunsCount());
+      }
+
+      try (LsmRangeMap rangeMap = new LsmRangeMap(directory, memtableSize)) {
+        assertEquals(1, rangeMap.getRunsCount());
+        assertEquals(count, rangeMap.size());
+        assertEquals((long) count * (count - 1) / 2, rangeMap.sumRange(0L, (long) count));
+        try (Stream<Path> files = Files.list(directory)) {
+          // Manifest and the compacted run
+          assertEquals(2, files.count());
+        }
+      }
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+
+  @Test
+  void testRejectsForeignFiles() throws IOException {
+    Path directory = Files.createTempDirectory("lsm");
+
+    try {
+      new LsmRangeMap(directory).close();
+      Files.write(directory.resolve("MANIFEST"), List.of("run-0"));
+      Files.write(directory.resolve("run-0"), new byte[100]);
+      assertThrows(IOException.class, () -> new LsmRangeMap(directory));
+    } finally {
+      deleteDirectory(directory);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class MappedLongIntRangeMapTest {
+  private static void assertMatchesTreeMap(
+      TreeMap<Long, List<Integer>> expected,
+      MappedLongIntRangeMap rangeMap
+  ) {
+    List<Integer> expectedValues = new ArrayList<>();
+    expected.values().forEach(expectedValues::addAll);
+    assertEquals(expectedValues.size(), rangeMap.size());
+
+    for (long key = -110; key <= 110; key++) {
+      List<Integer> values = expected.get(key);
+      assertEquals(values != null, rangeMap.contains(key));
+      assertEquals(
+          values == null ? MappedLongIntRangeMap.NO_VALUE : values.get(0),
+          rangeMap.lookup(key)
+      );
+    }
+
+    for (int i = 0; i < 50; i++) {
+      long from = getRandomInteger(-120, 120);
+      long to = from + getRandomInteger(-10, 100);
+
+      List<Integer> expectedRange = new ArrayList<>();
+      if (from <= to) {
+        expected.subMap(from, true, to, true).values().forEach(expectedRange::addAll);
+      }
+
+      List<Integer> actualRange = new ArrayList<>();
+      for (int value : rangeMap.lookupRange(from, to)) {
+        actualRange.add(value);
+      }
+
+      assertEquals(expectedRange, actualRange);
+      assertEquals(
+          expectedRange.stream().mapToLong(Integer::longValue).sum(),
+          rangeMap.sumRange(from, to)
+      );
+    }
+  }
+
+  @Test
+  void testRejectsInvalidBranchingFactor() throws IOException {
+    Path path = Files.createTempFile("range-map", ".db");
+    try {
+      assertThrows(IllegalArgumentException.class, () -> new MappedLongIntRangeMap(path, 3));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> new MappedLongIntRangeMap(path, MappedLongIntRangeMap.MAX_BRANCHING_FACTOR + 1)
+      );
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  void testRejectsForeignFile() throws IOException {
+    Path path = Files.createTempFile("range-map", ".db");
+    try {
+      Files.writeString(path, "not a range map");
+      assertThrows(IOException.class, () -> new MappedLongIntRangeMap(path));
+      assertEquals("not a range map", Files.readString(path));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @RepeatedTest(20)
+  void testMatchesTreeMapAfterReopening() throws IOException {
+    Path path = Files.createTempFile("range-map", ".db");
+    Files.delete(path);
+    TreeMap<Long, List<Integer>> expected = new TreeMap<>();
+    int branchingFactor = getRandomInteger(4, 7);
+
+    try {
+      for (int round = 0; round < 3; round++) {
+        try (MappedLongIntRangeMap rangeMap = new MappedLongIntRangeMap(path, branchingFactor)) {
+          assertMatchesTreeMap(expected, rangeMap);
+
+          for (int i = 0; i < 1000; i++) {
+            // Few distinct keys, so that equal keys span several leaves
+            long key = getRandomInteger(-100, 100);
+            if (getRandomInteger(0, 2) == 0) {
+              List<Integer> values = expected.get(key);
+              if (values != null) {
+                values.remove(0);
+                if (values.isEmpty()) {
+                  expected.remove(key);
+                }
+              }
+              assertEquals(values != null, rangeMap.remove(key));
+            } else {
+              int value = getRandomInteger(-100000, 100000);
+              rangeMap.add(key, value);
+              expected.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+            }
+          }
+
+          assertMatchesTreeMap(expected, rangeMap);
+        }
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  void testReusesFreedPages() throws IOException {
+    Path path = Files.createTempFile("range-map", ".db");
+    Files.delete(path);
+
+    try (MappedLongIntRangeMap rangeMap = new MappedLongIntRangeMap(path, 4)) {
+      for (int i = 0; i < 10000; i++) {
+        rangeMap.add(i, i);
+      }
+      int pagesCount = rangeMap.getPagesCount();
+
+      for (int i = 0; i < 10000; i++) {
+        assertTrue(rangeMap.remove(i));
+      }
+      assertTrue(rangeMap.isEmpty());
+      assertEquals(0, rangeMap.lookupRange(Long.MIN_VALUE, Long.MAX_VALUE).length);
+
+      for (int i = 0; i < 10000; i++) {
+        rangeMap.add(i, 1);
+      }
+      assertEquals(pagesCount, rangeMap.getPagesCount());
+      assertEquals(10000, rangeMap.sumRange(Long.MIN_VALUE, Long.MAX_VALUE));
+    } finally {
+      Files.delete(path);
+    }
+  }
+}
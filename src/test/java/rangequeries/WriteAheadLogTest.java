@@ -0,0 +1,130 @@
+package rangequeries;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import common.Date;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class WriteAheadLogTest {
+  private static final long FIRST_DAY = Date.fromString("2022-01-01").toEpochDay();
+
+  private static BTreeRangeMap<Date, Integer> replay(Path path) throws IOException {
+    BTreeRangeMap<Date, Integer> operationsHistory = new BTreeRangeMap<>(Integer::longValue);
+    new WriteAheadLog(path, operationsHistory).close();
+    return operationsHistory;
+  }
+
+  @Test
+  void testDateFromEpochDay() {
+    Date date = Date.fromString("2022-03-01");
+    assertEquals("2022-03-01", Date.fromEpochDay(date.toEpochDay()).toString());
+    assertEquals("1969-12-31", Date.fromEpochDay(-1).toString());
+  }
+
+  @RepeatedTest(10)
+  void testReplayRestoresOperations() throws IOException {
+    Path path = Files.createTempFile("operations", ".log");
+    BTreeRangeMap<Date, Integer> expected = new BTreeRangeMap<>(Integer::longValue);
+    Date from = Date.fromEpochDay(FIRST_DAY - 1000);
+    Date to = Date.fromEpochDay(FIRST_DAY + 1000);
+
+    try {
+      for (int round = 0; round < 3; round++) {
+        BTreeRangeMap<Date, Integer> operationsHistory = new BTreeRangeMap<>(Integer::longValue);
+        try (WriteAheadLog log = new WriteAheadLog(path, operationsHistory, 4096)) {
+          assertEquals(expected.size(), log.getReplayedCount());
+          assertEquals(expected.lookupRange(from, to), operationsHistory.lookupRange(from, to));
+          assertEquals(expected.sumRange(from, to), operationsHistory.sumRange(from, to));
+
+          // Enough records to extend the file several times
+          int count = getRandomInteger(0, 2000);
+          for (int i = 0; i < count; i++) {
+            Date date = Date.fromEpochDay(FIRST_DAY + getRandomInteger(-500, 500));
+            int amount = getRandomInteger(-1000, 1000);
+            log.append(date, amount);
+            expected.add(date, amount);
+          }
+        }
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  void testConcurrentAppendsAreAllLogged() throws IOException, InterruptedException {
+    Path path = Files.createTempFile("operations", ".log");
+
+    try {
+      try (WriteAheadLog log = new WriteAheadLog(path, new BTreeRangeMap<>())) {
+        List<Thread> threads = new ArrayList<>();
+        for (int writer = 0; writer < 8; writer++) {
+          threads.add(new Thread(() -> {
+            for (int i = 0; i < 500; i++) {
+              try {
+                log.append(Date.fromEpochDay(FIRST_DAY + i), 1);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+          }));
+        }
+
+        for (Thread thread : threads) {
+          thread.start();
+        }
+        for (Thread thread : threads) {
+          thread.join();
+        }
+      }
+
+      BTreeRangeMap<Date, Integer> operationsHistory = replay(path);
+      assertEquals(4000, operationsHistory.size());
+      for (int i = 0; i < 500; i++) {
+        Date date = Date.fromEpochDay(FIRST_DAY + i);
+        assertEquals(8, operationsHistory.sumRange(date, date));
+      }
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  void testTornFrameEndsLog() throws IOException {
+    Path path = Files.createTempFile("operations", ".log");
+    Date date = Date.fromEpochDay(FIRST_DAY);
+
+    try {
+      try (WriteAheadLog log = new WriteAheadLog(path, new BTreeRangeMap<>(), 4096)) {
+        log.append(date, 1);
+        log.append(date, 2);
+      }
+
+      // Damage the amount of the second record (the second frame)
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        channel.write(ByteBuffer.allocate(4).putInt(0, 100), 16 + 8 + 4);
+      }
+      assertEquals(List.of(1), replay(path).lookupRange(date, date));
+
+      // Torn frame is overwritten
+      try (WriteAheadLog log = new WriteAheadLog(path, new BTreeRangeMap<>(), 4096)) {
+        assertEquals(1, log.getReplayedCount());
+        log.append(date, 3);
+      }
+      assertEquals(List.of(1, 3), replay(path).lookupRange(date, date));
+    } finally {
+      Files.delete(path);
+    }
+  }
+}
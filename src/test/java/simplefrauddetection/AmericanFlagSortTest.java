@@ -0,0 +1,61 @@
+package simplefrauddetection;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class AmericanFlagSortTest {
+  private static void sortAndCompare(int[] keys) {
+    int n = keys.length;
+    int[] indices = new int[n];
+    Integer[] expectedIndices = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      indices[i] = i;
+      expectedIndices[i] = i;
+    }
+
+    // Stable library sort of indices by keys
+    int[] originalKeys = keys.clone();
+    Arrays.sort(expectedIndices, Comparator.comparingInt(i -> originalKeys[i]));
+
+    AmericanFlagSort.sort(keys, indices);
+
+    for (int i = 0; i < n; i++) {
+      assertEquals(expectedIndices[i], indices[i]);
+      assertEquals(originalKeys[indices[i]], keys[i]);
+    }
+  }
+
+  @RepeatedTest(100)
+  void testSortsRandomSignedIntegers() {
+    int size = getRandomInteger(0, 5000);
+    int[] keys = new int[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = getRandomInteger(-1000000000, 1000000000);
+    }
+
+    sortAndCompare(keys);
+  }
+
+  @RepeatedTest(20)
+  void testStableOnDateKeysWithSharedPrefix() {
+    int[] keys = new int[10000];
+    for (int i = 0; i < keys.length; i++) {
+      // Dates from 2022-03-01 to 2022-03-28 as in Date.toInt()
+      keys[i] = 20220300 + getRandomInteger(1, 28);
+    }
+
+    sortAndCompare(keys);
+  }
+
+  @Test
+  void testExtremeKeys() {
+    sortAndCompare(new int[] {
+        Integer.MAX_VALUE, 0, Integer.MIN_VALUE, -1, 1, Integer.MIN_VALUE, Integer.MAX_VALUE
+    });
+  }
+}
@@ -3,10 +3,13 @@ package simplefrauddetection;
 import static common.Utils.getRandomInteger;
 import static org.junit.jupiter.api.Assertions.*;
 
+import common.Date;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
 
 class RadixSortTest {
   @RepeatedTest(100)
@@ -26,4 +29,55 @@ class RadixSortTest {
 
     assertEquals(sortedCopy, positiveIntegers);
   }
+
+  @RepeatedTest(100)
+  void testSortsRandomSignedLongs() {
+    List<Long> longs = new ArrayList<>();
+    int size = getRandomInteger(0, 1000);
+
+    for (int i = 0; i < size; i++) {
+      long randomLong = (long) getRandomInteger(-100000, 100000) * getRandomInteger(0, 100000000);
+      longs.add(randomLong);
+    }
+    longs.add(Long.MIN_VALUE);
+    longs.add(Long.MAX_VALUE);
+
+    List<Long> sortedCopy = new ArrayList<>(longs);
+    sortedCopy.sort(Long::compareTo);
+
+    RadixSort.sortByLong(longs, n -> n);
+
+    assertEquals(sortedCopy, longs);
+  }
+
+  @Test
+  void testSortsNegativeIntegers() {
+    List<Integer> integers = new ArrayList<>(List.of(5, -3, 0, -100, 42, -1, Integer.MIN_VALUE));
+
+    RadixSort.sort(integers, n -> n);
+
+    assertEquals(List.of(Integer.MIN_VALUE, -100, -3, -1, 0, 5, 42), integers);
+  }
+
+  @RepeatedTest(20)
+  void testGroupsByAccountAndOrdersByDateWithCompositeKey() {
+    List<int[]> spendings = new ArrayList<>();
+
+    for (int i = 0; i < 1000; i++) {
+      int account = getRandomInteger(-5, 5);
+      int epochDay = (int) Date.fromString("2022-01-01").toEpochDay() + getRandomInteger(-400, 400);
+      spendings.add(new int[] {account, epochDay, i});
+    }
+
+    List<int[]> sortedCopy = new ArrayList<>(spendings);
+    sortedCopy.sort(
+        Comparator.<int[]>comparingInt(s -> s[0]).thenComparingInt(s -> s[1])
+    );
+
+    RadixSort.sortByLong(spendings, s -> RadixSort.compositeKey(s[0], s[1]));
+
+    for (int i = 0; i < spendings.size(); i++) {
+      assertArrayEquals(sortedCopy.get(i), spendings.get(i));
+    }
+  }
 }
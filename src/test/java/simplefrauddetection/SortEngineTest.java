@@ -0,0 +1,139 @@
+package simplefrauddetection;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class SortEngineTest {
+  /**
+   * Sorts random {@code (key, sequence number)} pairs by key with {@link SortEngine}
+   * and compares the result with the stable library sort.
+   */
+  private static SortEngine.Strategy sortRandomPairsAndCompare(
+      int size,
+      int minKey,
+      int maxKey
+  ) {
+    List<int[]> pairs = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      pairs.add(new int[] {getRandomInteger(minKey, maxKey), i});
+    }
+
+    List<int[]> expected = new ArrayList<>(pairs);
+    expected.sort(Comparator.comparingInt(pair -> pair[0]));
+
+    SortEngine.Strategy strategy = SortEngine.sort(pairs, pair -> pair[0]);
+
+    for (int i = 0; i < size; i++) {
+      assertArrayEquals(expected.get(i), pairs.get(i));
+    }
+
+    return strategy;
+  }
+
+  @Test
+  void testLeavesSortedInputUntouched() {
+    List<Integer> list = new LinkedList<>();
+    for (int i = 0; i < 1000; i++) {
+      list.add(i / 3);
+    }
+
+    assertEquals(SortEngine.Strategy.NONE, SortEngine.sort(list, n -> n));
+    assertEquals(SortEngine.Strategy.NONE, SortEngine.sort(new ArrayList<Integer>()));
+  }
+
+  @RepeatedTest(20)
+  void testInsertionSortOnSmallInput() {
+    assertEquals(
+        SortEngine.Strategy.INSERTION,
+        sortRandomPairsAndCompare(SortEngine.INSERTION_THRESHOLD, -1000, 1000)
+    );
+  }
+
+  @RepeatedTest(20)
+  void testCountingSortOnNarrowKeyRange() {
+    assertEquals(SortEngine.Strategy.COUNTING, sortRandomPairsAndCompare(1000, -300, 300));
+  }
+
+  @RepeatedTest(20)
+  void testRadixSortOnWideKeyRange() {
+    assertEquals(
+        SortEngine.Strategy.RADIX,
+        sortRandomPairsAndCompare(1000, -1000000000, 1000000000)
+    );
+  }
+
+  @RepeatedTest(5)
+  void testInPlaceRadixSortOnLargeInput() {
+    assertEquals(
+        SortEngine.Strategy.MSD_RADIX,
+        sortRandomPairsAndCompare(SortEngine.IN_PLACE_RADIX_THRESHOLD, -1000000000, 1000000000)
+    );
+  }
+
+  @RepeatedTest(3)
+  void testParallelSortOnFullKeyRange() {
+    int size = SortEngine.PARALLEL_THRESHOLD;
+    List<int[]> pairs = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      // Keys close to both ends of the int range
+      int key = i % 2 == 0
+          ? Integer.MIN_VALUE + getRandomInteger(0, 1000000)
+          : Integer.MAX_VALUE - getRandomInteger(0, 1000000);
+      pairs.add(new int[] {key, i});
+    }
+
+    List<int[]> expected = new ArrayList<>(pairs);
+    expected.sort(Comparator.comparingInt(pair -> pair[0]));
+
+    assertEquals(SortEngine.Strategy.PARALLEL, SortEngine.sort(pairs, pair -> pair[0], 4));
+    for (int i = 0; i < size; i++) {
+      assertArrayEquals(expected.get(i), pairs.get(i));
+    }
+  }
+
+  @Test
+  void testMergeSortOnNearlySortedInput() {
+    List<Integer> list = new ArrayList<>();
+    for (int i = 0; i < 10000; i++) {
+      list.add(i * 1000);
+    }
+    list.set(5000, -1);
+    list.set(7000, Integer.MAX_VALUE);
+
+    List<Integer> expected = new ArrayList<>(list);
+    expected.sort(Integer::compareTo);
+
+    assertEquals(SortEngine.Strategy.MERGE, SortEngine.sort(list, n -> n));
+    assertEquals(expected, list);
+  }
+
+  @RepeatedTest(20)
+  void testSortsComparableItems() {
+    List<Double> list = new LinkedList<>();
+    int size = getRandomInteger(0, 1000);
+    for (int i = 0; i < size; i++) {
+      list.add(getRandomInteger(-100000, 100000) / 7.0);
+    }
+
+    List<Double> expected = new ArrayList<>(list);
+    expected.sort(Double::compareTo);
+
+    SortEngine.sort(list);
+
+    assertEquals(expected, list);
+  }
+
+  @Test
+  void testRecordsChosenStrategy() {
+    long countBefore = SortEngine.getStrategyCount(SortEngine.Strategy.COUNTING);
+    sortRandomPairsAndCompare(1000, 0, 10);
+    assertTrue(SortEngine.getStrategyCount(SortEngine.Strategy.COUNTING) > countBefore);
+  }
+}
@@ -0,0 +1,80 @@
+package simplefrauddetection;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class SortedArrayWindowTest {
+  @Test
+  void testIsFull() {
+    SortedArrayWindow window = new SortedArrayWindow(3);
+
+    window.add(1.0);
+    assertFalse(window.isFull());
+    window.add(-3.0);
+    assertFalse(window.isFull());
+    window.add(100.0);
+    assertTrue(window.isFull());
+    window.add(11.5);
+    assertTrue(window.isFull());
+    assertEquals(3, window.size());
+  }
+
+  @Test
+  void testNullMedianWhenEmpty() {
+    assertNull(new SortedArrayWindow(7).getMedian());
+    assertThrows(IllegalStateException.class, new SortedArrayWindow(7)::getMedianValue);
+  }
+
+  @Test
+  void testCorrectMedianWithEvenCapacity() {
+    SortedArrayWindow window = new SortedArrayWindow(6);
+
+    window.add(-10.0);
+    window.add(13.04);
+    assertEquals((-10.0 + 13.04) / 2, window.getMedian());
+
+    window.add(-1300.2);
+    window.add(17.1234);
+    window.add(10.005);
+    window.add(123.45);
+    assertEquals((10.005 + 13.04) / 2, window.getMedian());
+
+    window.add(21.007);
+    assertEquals((13.04 + 17.1234) / 2, window.getMedian());
+  }
+
+  @RepeatedTest(100)
+  void testMedianMatchesMedianBoundedQueue() {
+    int capacity = getRandomInteger(1, 20);
+    SortedArrayWindow window = new SortedArrayWindow(capacity);
+    MedianBoundedQueue queue = new MedianBoundedQueue(capacity);
+
+    for (int i = 0; i < 200; i++) {
+      // Small range, so that equal values are evicted as well
+      double value = getRandomInteger(0, 10);
+      window.add(value);
+      queue.add(value);
+
+      assertEquals(queue.isFull(), window.isFull());
+      assertEquals(queue.getMedian(), window.getMedian());
+    }
+  }
+
+  @Test
+  void testFraudDetectorWithCustomPolicy() {
+    FraudDetector detector = new FraudDetector(
+        new MedianBoundedQueue(2),
+        new MedianMultipleRule(3)
+    );
+
+    detector.recordSpending(new Spending("2022-01-14", 10.0));
+    detector.recordSpending(new Spending("2022-01-15", 10.0));
+    detector.recordSpending(new Spending("2022-01-16", 25.0));
+    assertEquals(0, detector.getAlertsCount());
+    detector.recordSpending(new Spending("2022-01-16", 5.0));
+    assertEquals(1, detector.getAlertsCount());
+  }
+}
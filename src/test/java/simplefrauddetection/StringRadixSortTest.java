@@ -0,0 +1,72 @@
+package simplefrauddetection;
+
+import static common.Utils.getRandomInteger;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+class StringRadixSortTest {
+  private static String getRandomString(String prefix, int maxLength, char maxChar) {
+    StringBuilder builder = new StringBuilder(prefix);
+    int length = getRandomInteger(0, maxLength);
+    for (int i = 0; i < length; i++) {
+      builder.append((char) (int) getRandomInteger('0', maxChar));
+    }
+    return builder.toString();
+  }
+
+  @RepeatedTest(100)
+  void testSortsIdentifiersWithSharedPrefixes() {
+    String[] prefixes = {"", "branch-", "branch-moscow-", "ACC0000000000000"};
+    String[] strings = new String[getRandomInteger(0, 2000)];
+
+    for (int i = 0; i < strings.length; i++) {
+      String prefix = prefixes[getRandomInteger(0, prefixes.length - 1)];
+      strings[i] = getRandomString(prefix, 6, 'z');
+    }
+
+    String[] expected = strings.clone();
+    Arrays.sort(expected);
+
+    StringRadixSort.sort(strings);
+
+    assertArrayEquals(expected, strings);
+  }
+
+  @RepeatedTest(20)
+  void testSortsNonAsciiStrings() {
+    String[] strings = new String[1000];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = getRandomString("", 4, 'ѐ');
+    }
+
+    String[] expected = strings.clone();
+    Arrays.sort(expected);
+
+    StringRadixSort.sort(strings);
+
+    assertArrayEquals(expected, strings);
+  }
+
+  @Test
+  void testSortsItemsByKeyStably() {
+    List<String[]> branches = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      branches.add(new String[] {"B" + getRandomInteger(0, 30), Integer.toString(i)});
+    }
+
+    List<String[]> expected = new ArrayList<>(branches);
+    expected.sort(Comparator.comparing(branch -> branch[0]));
+
+    StringRadixSort.sort(branches, branch -> branch[0]);
+
+    for (int i = 0; i < branches.size(); i++) {
+      assertArrayEquals(expected.get(i), branches.get(i));
+    }
+  }
+}